@@ -1,9 +1,22 @@
 package com.enovationgroup.dane;
 
+import com.enovationgroup.dane.audit.AuditLog;
 import com.enovationgroup.dane.dns.DaneResolver;
 import com.enovationgroup.dane.dns.DnsResolver;
+import com.enovationgroup.dane.dns.LatencyAwareMxOrdering;
+import com.enovationgroup.dane.jfr.DeliveryTrace;
+import com.enovationgroup.dane.smtp.DaneSmtpTransport;
+import com.enovationgroup.dane.smtp.LocalAddressPool;
+import com.enovationgroup.dane.smtp.MxCircuitBreaker;
+import com.enovationgroup.dane.smtp.MxLatencyTracker;
+import com.enovationgroup.dane.smtp.SmtpReplies;
 import com.enovationgroup.dane.smtp.TransportFactory;
+import com.enovationgroup.dane.smtp.TransportOptions;
 
+import java.util.concurrent.TimeUnit;
+
+import lombok.Getter;
+import lombok.Setter;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
@@ -17,6 +30,26 @@ public class DaneConnect {
     final static int dnsPort = 5353;
     final static boolean useDnsTcpOnly = true;
 
+    private final MxCircuitBreaker circuitBreaker;
+    private final MxLatencyTracker latencyTracker;
+    private final LatencyAwareMxOrdering mxOrdering;
+    /** When set, connections are bound to a local address from the pool. */
+    @Getter @Setter
+    private LocalAddressPool localAddressPool;
+    /** When set, DANE validations are recorded in the audit log. */
+    @Getter @Setter
+    private AuditLog auditLog;
+
+    public DaneConnect() {
+        this(MxCircuitBreaker.shared(), MxLatencyTracker.shared(), LatencyAwareMxOrdering.shared());
+    }
+
+    public DaneConnect(MxCircuitBreaker circuitBreaker, MxLatencyTracker latencyTracker, LatencyAwareMxOrdering mxOrdering) {
+        this.circuitBreaker = circuitBreaker;
+        this.latencyTracker = latencyTracker;
+        this.mxOrdering = mxOrdering;
+    }
+
     public static void main(String[] args) {
 
         if (args == null || args.length < 1) {
@@ -30,34 +63,79 @@ public class DaneConnect {
         }
     }
 
-    @SneakyThrows
     public boolean tryDaneConnnection(String domain) {
 
+        try (var trace = DeliveryTrace.begin()) {
+            log.debug("Delivery id {} for domain {}", trace.getDeliveryId(), domain);
+            return tryDaneConnnectionTraced(domain);
+        }
+    }
+
+    @SneakyThrows
+    boolean tryDaneConnnectionTraced(String domain) {
+
         var dnsResolver = new DnsResolver(dnsHost, dnsPort);
         if (useDnsTcpOnly) {
             dnsResolver.setTCP(true);
         }
-        var resolver = new DaneResolver(dnsResolver, false);
+        var resolver = new DaneResolver(dnsResolver, false, mxOrdering);
         log.debug("Resolving DNS with host {}:{}", dnsHost, dnsPort);
         var daneMailServers = resolver.resolveDaneRecords(domain);
         if (daneMailServers.isEmpty()) {
             log.info("No email-servers found for domain {}", domain);
         }
+        var options = new TransportOptions();
+        options.setSmtpDebug(true);
+        options.setAuditLog(auditLog);
+        options.setDomain(domain);
         boolean connected = false;
         for (String emailServer : daneMailServers.keySet()) {
+            if (!circuitBreaker.allowConnection(emailServer, daneMailServers.get(emailServer))) {
+                log.info("Skipping {}, circuit is open after previous failures.", emailServer);
+                continue;
+            }
+            var lease = (localAddressPool == null ? null : localAddressPool.acquire(emailServer));
+            DaneSmtpTransport transport = null;
+            long connectMillis = 0L;
             try {
-                var transport = TransportFactory.buildTransport(emailServer, daneMailServers.get(emailServer), true);
+                var serverOptions = latencyTracker.adaptTimeouts(emailServer, options);
+                if (lease != null) {
+                    serverOptions.setLocalAddress(lease.getAddress());
+                }
+                transport = TransportFactory.buildTransport(emailServer, daneMailServers.get(emailServer), serverOptions);
                 try {
+                    long start = System.nanoTime();
                     transport.connect();
+                    // Connect plus STARTTLS handshake (and DANE validation) for the MX ordering,
+                    // the TCP connect only for the connect timeout.
+                    connectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    latencyTracker.recordConnect(emailServer, Math.max(0L, transport.getTcpConnectMillis()));
+                    start = System.nanoTime();
                     transport.isConnected(); // send NOOP command.
+                    latencyTracker.recordRead(emailServer, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
                     connected = true;
                     log.info("DANE connection OK for {}", emailServer);
                 } finally {
                     transport.close();
                 }
+                circuitBreaker.recordSuccess(emailServer);
             } catch (Exception e) {
                 log.warn("Failed to connect to {}: {}", emailServer, e.toString());
+                // Timeouts after the TCP connect (greeting, TLS handshake, commands) are read timeouts.
+                boolean connectPhase = (transport == null || transport.getTcpConnectMillis() < 0L);
+                if (SmtpReplies.isTimeout(e)) {
+                    latencyTracker.recordTimeout(emailServer, connectPhase);
+                }
+                if (!SmtpReplies.isThrottled(e)) {
+                    // A throttled connection is not a broken mail-server.
+                    circuitBreaker.recordFailure(emailServer);
+                }
+            } finally {
+                if (lease != null) {
+                    lease.close();
+                }
             }
+            mxOrdering.recordResult(emailServer, connectMillis, connected);
             if (connected) {
                 break;
             }
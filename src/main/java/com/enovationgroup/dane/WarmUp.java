@@ -0,0 +1,168 @@
+package com.enovationgroup.dane;
+
+import com.enovationgroup.dane.dns.DaneRecord;
+import com.enovationgroup.dane.dns.DaneResolver;
+import com.enovationgroup.dane.smtp.TransportFactory;
+import com.enovationgroup.dane.smtp.TrustManagerDane;
+
+import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Exercises the hot paths of a DANE connection before the first delivery:
+ * JCE provider lookups, javax.mail class loading, {@link TrustManagerDane} validation
+ * (against a built-in certificate) and optionally DNS lookups via a {@link DaneResolver}.
+ * <br>Use {@link #isWarm()} in readiness probes.
+ */
+@Slf4j
+public class WarmUp {
+
+    static final String FIXTURE_CERT = "warmup/0-relay.zorgmail.nl.crt";
+
+    private static volatile boolean warm;
+
+    /**
+     * Number of validations per DANE record type, enough for the JIT to compile the validation methods.
+     */
+    @Getter @Setter
+    private int validationIterations = 2_000;
+
+    /** Optional, when set the probe domains are resolved to prime the DNS resolver. */
+    @Getter @Setter
+    private DaneResolver daneResolver;
+
+    @Getter
+    private final List<String> probeDomains = new ArrayList<>();
+
+    /**
+     * True once a warm-up completed without failures.
+     */
+    public static boolean isWarm() {
+        return warm;
+    }
+
+    public WarmUp addProbeDomain(String domain) {
+        probeDomains.add(domain);
+        return this;
+    }
+
+    public WarmUpReport run() {
+
+        var report = new WarmUpReport();
+        step(report, "jce", this::warmUpJce);
+        var cert = loadFixtureCert();
+        var records = createFixtureRecords(cert);
+        step(report, "javamail", () -> warmUpJavaMail(records));
+        step(report, "dane-validation", () -> warmUpValidation(cert, records));
+        if (daneResolver != null) {
+            step(report, "dns", this::warmUpDns);
+        }
+        report.setJvmUptimeMillis(ManagementFactory.getRuntimeMXBean().getUptime());
+        warm = report.isSuccess();
+        if (warm) {
+            log.info(report.summary());
+        } else {
+            log.warn(report.summary());
+        }
+        return report;
+    }
+
+    void step(WarmUpReport report, String name, ThrowingRunnable step) {
+
+        long start = System.nanoTime();
+        try {
+            step.run();
+        } catch (Exception e) {
+            log.warn("Warm-up step {} failed: {}", name, e.toString());
+            report.addFailure(name, e.toString());
+        }
+        report.addStep(name, System.nanoTime() - start);
+    }
+
+    void warmUpJce() throws Exception {
+
+        MessageDigest.getInstance("SHA-256");
+        MessageDigest.getInstance("SHA-512");
+        CertificateFactory.getInstance("X.509");
+        TransportFactory.createSslSocketFactory(new TrustManagerDane(List.of()), null);
+    }
+
+    void warmUpJavaMail(Collection<DaneRecord> records) throws Exception {
+        // Creates a session and transport, does not connect.
+        TransportFactory.buildTransport("localhost", records, false).close();
+    }
+
+    void warmUpValidation(X509Certificate cert, Collection<DaneRecord> records) throws Exception {
+
+        var certs = new X509Certificate[] { cert };
+        for (DaneRecord record : records) {
+            var tm = new TrustManagerDane(List.of(record));
+            for (int i = 0; i < validationIterations; i++) {
+                tm.checkServerTrusted(certs, "RSA");
+            }
+        }
+    }
+
+    void warmUpDns() throws Exception {
+
+        for (String domain : probeDomains) {
+            var servers = daneResolver.resolveDaneRecords(domain);
+            log.debug("Warm-up resolved {} DANE email-server(s) for domain {}.", servers.size(), domain);
+        }
+    }
+
+    @SneakyThrows
+    static X509Certificate loadFixtureCert() {
+
+        try (var in = WarmUp.class.getClassLoader().getResourceAsStream(FIXTURE_CERT)) {
+            if (in == null) {
+                throw new IllegalStateException("Missing warm-up resource " + FIXTURE_CERT);
+            }
+            return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+        }
+    }
+
+    /**
+     * DANE_EE records for the selector and matching types in common use (3 1 1, 3 1 2, 3 0 1).
+     */
+    @SneakyThrows
+    static List<DaneRecord> createFixtureRecords(X509Certificate cert) {
+
+        var records = new ArrayList<DaneRecord>();
+        records.add(createFixtureRecord(DaneRecord.Selector.PUBLIC_KEY, DaneRecord.MatchingType.SHA_256,
+                MessageDigest.getInstance("SHA-256").digest(cert.getPublicKey().getEncoded())));
+        records.add(createFixtureRecord(DaneRecord.Selector.PUBLIC_KEY, DaneRecord.MatchingType.SHA_512,
+                MessageDigest.getInstance("SHA-512").digest(cert.getPublicKey().getEncoded())));
+        records.add(createFixtureRecord(DaneRecord.Selector.FULL, DaneRecord.MatchingType.SHA_256,
+                MessageDigest.getInstance("SHA-256").digest(cert.getEncoded())));
+        return records;
+    }
+
+    static DaneRecord createFixtureRecord(DaneRecord.Selector selector, DaneRecord.MatchingType matchingType, byte[] data) {
+
+        var record = new DaneRecord();
+        record.setMxDomain("warmup");
+        record.setDomain("warmup");
+        record.setCertificateUsage(DaneRecord.CertificateUsage.DANE_EE);
+        record.setSelector(selector);
+        record.setMatchingType(matchingType);
+        record.setCertificateAssociationData(data);
+        return record;
+    }
+
+    @FunctionalInterface
+    interface ThrowingRunnable {
+        void run() throws Exception;
+    }
+
+}
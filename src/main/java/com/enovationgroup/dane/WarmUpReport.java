@@ -0,0 +1,52 @@
+package com.enovationgroup.dane;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Data;
+
+/**
+ * Timings measured by {@link WarmUp#run()}, in order of execution.
+ */
+@Data
+public class WarmUpReport {
+
+    /** Step name to elapsed nanos. */
+    private final Map<String, Long> stepNanos = new LinkedHashMap<>();
+    /** Step name to failure description, only contains failed steps. */
+    private final Map<String, String> failures = new LinkedHashMap<>();
+    /** Milliseconds between JVM start and end of the warm-up. */
+    private long jvmUptimeMillis;
+
+    public void addStep(String step, long nanos) {
+        stepNanos.put(step, nanos);
+    }
+
+    public void addFailure(String step, String failure) {
+        failures.put(step, failure);
+    }
+
+    public boolean isSuccess() {
+        return failures.isEmpty();
+    }
+
+    public long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(stepNanos.values().stream().mapToLong(Long::longValue).sum());
+    }
+
+    public String summary() {
+
+        var sb = new StringBuilder("Warm-up ");
+        sb.append(isSuccess() ? "completed" : "failed").append(" in ").append(getTotalMillis()).append(" ms");
+        sb.append(" (JVM uptime ").append(jvmUptimeMillis).append(" ms):");
+        stepNanos.forEach((step, nanos) -> {
+            sb.append(' ').append(step).append('=').append(TimeUnit.NANOSECONDS.toMillis(nanos)).append("ms");
+            if (failures.containsKey(step)) {
+                sb.append(" [").append(failures.get(step)).append(']');
+            }
+        });
+        return sb.toString();
+    }
+
+}
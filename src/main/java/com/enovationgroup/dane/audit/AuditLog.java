@@ -0,0 +1,409 @@
+package com.enovationgroup.dane.audit;
+
+import com.enovationgroup.dane.dns.DaneRecord;
+import com.enovationgroup.dane.jfr.DeliveryTrace;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Append-only log of DANE validation decisions in fixed-size binary entries, read with {@link AuditLogReader}.
+ * <br>{@link #record(AuditLogEntry, X509Certificate[])} computes the certificate fingerprints and adds the entry
+ * to a lock-free queue (the chain is not retained), a writer thread appends the queued entries in batches
+ * to memory-mapped segment files in the log directory. A segment file holds {@link #getSegmentEntries()} entries,
+ * the writer continues in a new segment file when a segment is full.
+ * <br>Every decision must be logged: when an entry cannot be queued (the log is closed, the writer stopped,
+ * see {@link #getFailure()}, or the queue is full) <tt>record</tt> throws an {@link IllegalStateException}
+ * and {@link com.enovationgroup.dane.smtp.TrustManagerDane} rejects the validation.
+ * <br>Entries are written to the mapped files and survive a crash of the JVM, use {@link #setForceOnBatch(boolean)}
+ * to also force each batch to the storage device.
+ * <br>Segment layout: a header of {@link #SEGMENT_HEADER_SIZE} bytes (magic, version, entry size, creation time, sequence)
+ * followed by entries of {@link #ENTRY_SIZE} bytes. An entry starts with a marker and a CRC-32 of the remaining
+ * entry bytes, a zero marker indicates the end of the written entries.
+ */
+@Slf4j
+public class AuditLog implements AutoCloseable {
+
+    static final long SEGMENT_MAGIC = 0x44414E4541554431L; // "DANEAUD1"
+    static final int VERSION = 1;
+    static final int SEGMENT_HEADER_SIZE = 64;
+    static final int ENTRY_MARKER = 0x44414E45; // "DANE"
+    static final int ENTRY_SIZE = 512;
+    static final String SEGMENT_PREFIX = "audit-";
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    // Entry field offsets.
+    static final int CRC = 4;
+    static final int TIMESTAMP = 8;
+    static final int VALIDATION_MICROS = 16;
+    static final int OUTCOME = 24;
+    static final int USAGE = 25;
+    static final int SELECTOR = 26;
+    static final int MATCHING_TYPE = 27;
+    static final int CHAIN_LENGTH = 28;
+    static final int RECORD_COUNT = 30;
+    static final int DELIVERY_ID = 32;
+    static final int DOMAIN = 64;
+    static final int MX_HOST = 160;
+    static final int ASSOCIATION_LENGTH = 256;
+    static final int FINGERPRINT_COUNT = 257;
+    static final int ASSOCIATION_DATA = 264;
+    static final int FINGERPRINTS = 328;
+
+    static final int MAX_DELIVERY_ID_BYTES = 31;
+    public static final int MAX_TEXT_BYTES = 95;
+    public static final int MAX_ASSOCIATION_BYTES = 64;
+    public static final int MAX_FINGERPRINTS = 4;
+    static final int FINGERPRINT_SIZE = 32;
+    /** Byte value for a missing usage, selector or matching type. */
+    static final int NONE = 0xFF;
+
+    static final int MAX_BATCH = 1_024;
+    static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10L);
+
+    private final Path directory;
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(AuditLog::newSha256);
+
+    private final ConcurrentLinkedQueue<AuditLogEntry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean idle;
+    private volatile boolean closed;
+    /** Set when the writer thread stopped because of an error. */
+    private volatile Throwable failure;
+
+    @Getter
+    private final int segmentEntries;
+    /** Entries are rejected (and counted as dropped) when this many entries are waiting for the writer. */
+    @Getter @Setter
+    private int maxQueued = 1_000_000;
+    @Getter @Setter
+    private volatile boolean forceOnBatch;
+
+    // Used by the writer thread only.
+    private long segmentSequence;
+    private FileChannel segmentChannel;
+    private MappedByteBuffer segment;
+    private final CRC32 crc = new CRC32();
+
+    public AuditLog(Path directory) throws IOException {
+        this(directory, 65_536);
+    }
+
+    /**
+     * @param segmentEntries number of entries per segment file.
+     */
+    public AuditLog(Path directory, int segmentEntries) throws IOException {
+
+        this.directory = directory;
+        this.segmentEntries = segmentEntries;
+        Files.createDirectories(directory);
+        for (var segment : AuditLogReader.listSegments(directory)) {
+            segmentSequence = Math.max(segmentSequence, AuditLogReader.segmentSequence(segment));
+        }
+        this.writer = new Thread(this::writeLoop, "dane-audit-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Records the outcome of a DANE validation, see {@link com.enovationgroup.dane.smtp.TrustManagerDane}.
+     * @param matched the matched record, null if no record matched.
+     * @param failure the validation failure, null if the chain is valid.
+     */
+    public void record(X509Certificate[] chain, Collection<DaneRecord> records, DaneRecord matched, Throwable failure, long validationNanos) {
+        record(records.stream().map(DaneRecord::getMxDomain).filter(d -> d != null).findFirst().orElse(null), chain, records, matched, failure, validationNanos);
+    }
+
+    /**
+     * Records the outcome of a DANE validation for the recipient domain.
+     * @param domain the recipient domain, null when unknown (e.g. records resolved for many domains).
+     */
+    public void record(String domain, X509Certificate[] chain, Collection<DaneRecord> records, DaneRecord matched, Throwable failure, long validationNanos) {
+
+        var entry = new AuditLogEntry();
+        entry.setTimestamp(System.currentTimeMillis());
+        entry.setDeliveryId(DeliveryTrace.current());
+        entry.setDomain(domain);
+        records.stream().findFirst().ifPresent(r -> entry.setMxHost(r.getDomain()));
+        if (failure == null) {
+            entry.setOutcome(AuditResult.Outcome.VALID);
+        } else {
+            entry.setOutcome(failure instanceof CertificateException ? AuditResult.Outcome.INVALID : AuditResult.Outcome.ERROR);
+        }
+        if (matched != null) {
+            entry.setMatchedUsage(matched.getCertificateUsage());
+            entry.setMatchedSelector(matched.getSelector());
+            entry.setMatchedMatchingType(matched.getMatchingType());
+            entry.setMatchedAssociationData(matched.getCertificateAssociationData());
+        }
+        entry.setChainLength(chain == null ? 0 : chain.length);
+        entry.setRecordCount(records.size());
+        entry.setValidationMicros(TimeUnit.NANOSECONDS.toMicros(validationNanos));
+        record(entry, chain);
+    }
+
+    /**
+     * Adds the fingerprints of the chain (if not null) to the entry and queues the entry for the writer thread.
+     * @throws IllegalStateException when the entry cannot be written (the log is closed, the writer stopped or cannot keep up).
+     */
+    public void record(AuditLogEntry entry, X509Certificate[] chain) {
+
+        if (closed) {
+            dropped.incrementAndGet();
+            throw new IllegalStateException("DANE audit log is closed, validation not recorded.");
+        }
+        if (failure != null || !writer.isAlive()) {
+            dropped.incrementAndGet();
+            throw new IllegalStateException("DANE audit log writer stopped, validation not recorded.", failure);
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            throw new IllegalStateException("DANE audit log writer cannot keep up (" + maxQueued + " entries queued), validation not recorded.");
+        }
+        if (chain != null) {
+            entry.setChainFingerprints(fingerprints(chain));
+        }
+        recorded.incrementAndGet();
+        queue.add(entry);
+        // Closed while adding: the writer may have done its final drain.
+        // An entry the writer already took is written, the writer drains the queue after close.
+        if (closed && queue.remove(entry)) {
+            queued.decrementAndGet();
+            recorded.decrementAndGet();
+            dropped.incrementAndGet();
+            throw new IllegalStateException("DANE audit log is closed, validation not recorded.");
+        }
+        if (idle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * The error that stopped the writer thread, null while the writer is running (or closed normally).
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Waits until all entries recorded before this call are written (to the mapped segment files).
+     */
+    public void sync() throws InterruptedException {
+
+        long target = recorded.get();
+        while (written.get() < target && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            Thread.sleep(1L);
+        }
+    }
+
+    void writeLoop() {
+
+        var batch = new ArrayList<AuditLogEntry>(MAX_BATCH);
+        try {
+            while (true) {
+                // Read before polling: entries added before close are in the queue when the writer stops.
+                boolean stopping = closed;
+                AuditLogEntry pending;
+                while (batch.size() < MAX_BATCH && (pending = queue.poll()) != null) {
+                    batch.add(pending);
+                }
+                if (batch.isEmpty()) {
+                    if (stopping) {
+                        break;
+                    }
+                    idle = true;
+                    if (queue.isEmpty() && !closed) {
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                    idle = false;
+                    continue;
+                }
+                queued.addAndGet(-batch.size());
+                writeBatch(batch);
+                batch.clear();
+            }
+        } catch (Exception | Error e) {
+            failure = e;
+            log.error("DANE audit log writer stopped, DANE validations will be rejected.", e);
+        } finally {
+            try {
+                closeSegment();
+            } catch (RuntimeException e) {
+                log.warn("Closing DANE audit log segment failed: {}", e.toString());
+            }
+        }
+    }
+
+    void writeBatch(List<AuditLogEntry> batch) throws IOException {
+
+        for (var entry : batch) {
+            if (segment == null || segment.remaining() < ENTRY_SIZE) {
+                closeSegment();
+                openSegment();
+            }
+            int offset = segment.position();
+            encode(entry, (entry.getChainFingerprints() == null ? List.of() : entry.getChainFingerprints()), segment, offset);
+            segment.position(offset + ENTRY_SIZE);
+        }
+        if (forceOnBatch) {
+            segment.force();
+        }
+        written.addAndGet(batch.size());
+    }
+
+    static List<byte[]> fingerprints(X509Certificate[] chain) {
+
+        var sha256 = SHA256.get();
+        var fingerprints = new ArrayList<byte[]>();
+        for (int i = 0; i < chain.length && i < MAX_FINGERPRINTS; i++) {
+            try {
+                fingerprints.add(sha256.digest(chain[i].getEncoded()));
+            } catch (Exception e) {
+                log.debug("No fingerprint for certificate {} of chain: {}", i, e.toString());
+                fingerprints.add(new byte[FINGERPRINT_SIZE]);
+            }
+        }
+        return fingerprints;
+    }
+
+    @SneakyThrows
+    static MessageDigest newSha256() {
+        return MessageDigest.getInstance("SHA-256");
+    }
+
+    void openSegment() throws IOException {
+
+        segmentSequence++;
+        var file = directory.resolve(AuditLogReader.segmentName(segmentSequence));
+        segmentChannel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0L, SEGMENT_HEADER_SIZE + (long) segmentEntries * ENTRY_SIZE);
+        segment.putLong(SEGMENT_MAGIC);
+        segment.putInt(VERSION);
+        segment.putInt(ENTRY_SIZE);
+        segment.putLong(System.currentTimeMillis());
+        segment.putLong(segmentSequence);
+        segment.position(SEGMENT_HEADER_SIZE);
+        log.debug("Writing DANE audit log segment {}", file);
+    }
+
+    void closeSegment() {
+
+        if (segment == null) {
+            return;
+        }
+        try {
+            segment.force();
+            segmentChannel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            segment = null;
+            segmentChannel = null;
+        }
+    }
+
+    /**
+     * Writes the entry in a zero-filled slot at the offset.
+     */
+    void encode(AuditLogEntry entry, List<byte[]> fingerprints, ByteBuffer buffer, int offset) {
+
+        buffer.putLong(offset + TIMESTAMP, entry.getTimestamp());
+        buffer.putLong(offset + VALIDATION_MICROS, entry.getValidationMicros());
+        buffer.put(offset + OUTCOME, (byte) (entry.getOutcome() == null ? NONE : entry.getOutcome().ordinal()));
+        buffer.put(offset + USAGE, (byte) (entry.getMatchedUsage() == null ? NONE : entry.getMatchedUsage().value()));
+        buffer.put(offset + SELECTOR, (byte) (entry.getMatchedSelector() == null ? NONE : entry.getMatchedSelector().value()));
+        buffer.put(offset + MATCHING_TYPE, (byte) (entry.getMatchedMatchingType() == null ? NONE : entry.getMatchedMatchingType().value()));
+        buffer.putShort(offset + CHAIN_LENGTH, (short) Math.min(entry.getChainLength(), 0xFFFF));
+        buffer.putShort(offset + RECORD_COUNT, (short) Math.min(entry.getRecordCount(), 0xFFFF));
+        putText(buffer, offset + DELIVERY_ID, entry.getDeliveryId(), MAX_DELIVERY_ID_BYTES);
+        putText(buffer, offset + DOMAIN, entry.getDomain(), MAX_TEXT_BYTES);
+        putText(buffer, offset + MX_HOST, entry.getMxHost(), MAX_TEXT_BYTES);
+        var data = entry.getMatchedAssociationData();
+        int dataLength = (data == null ? 0 : Math.min(data.length, MAX_ASSOCIATION_BYTES));
+        buffer.put(offset + ASSOCIATION_LENGTH, (byte) dataLength);
+        for (int i = 0; i < dataLength; i++) {
+            buffer.put(offset + ASSOCIATION_DATA + i, data[i]);
+        }
+        int count = Math.min(fingerprints.size(), MAX_FINGERPRINTS);
+        buffer.put(offset + FINGERPRINT_COUNT, (byte) count);
+        for (int i = 0; i < count; i++) {
+            var fingerprint = fingerprints.get(i);
+            for (int j = 0; j < FINGERPRINT_SIZE; j++) {
+                buffer.put(offset + FINGERPRINTS + i * FINGERPRINT_SIZE + j, fingerprint[j]);
+            }
+        }
+        crc.reset();
+        crc.update(buffer.duplicate().position(offset + TIMESTAMP).limit(offset + ENTRY_SIZE));
+        buffer.putInt(offset + CRC, (int) crc.getValue());
+        // Marker last: the entry is complete.
+        buffer.putInt(offset, ENTRY_MARKER);
+    }
+
+    static void putText(ByteBuffer buffer, int offset, String text, int maxBytes) {
+
+        if (text == null) {
+            return;
+        }
+        var bytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, maxBytes);
+        // Do not cut a multi-byte character.
+        while (length < bytes.length && length > 0 && (bytes[length] & 0xC0) == 0x80) {
+            length--;
+        }
+        buffer.put(offset, (byte) length);
+        for (int i = 0; i < length; i++) {
+            buffer.put(offset + 1 + i, bytes[i]);
+        }
+    }
+
+    /**
+     * Writes the queued entries and closes the current segment.
+     */
+    @Override
+    @SneakyThrows
+    public void close() {
+
+        closed = true;
+        LockSupport.unpark(writer);
+        writer.join();
+    }
+
+}
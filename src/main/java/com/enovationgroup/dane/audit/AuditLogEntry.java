@@ -0,0 +1,39 @@
+package com.enovationgroup.dane.audit;
+
+import com.enovationgroup.dane.dns.DaneRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lombok.Data;
+import lombok.ToString;
+
+/**
+ * One DANE validation decision in the {@link AuditLog}.
+ * <br>Text values are truncated to the fixed entry layout: {@link AuditLog#MAX_TEXT_BYTES} UTF-8 bytes for
+ * domain and email-server, {@link AuditLog#MAX_ASSOCIATION_BYTES} bytes of the matched association data and
+ * the fingerprints of the first {@link AuditLog#MAX_FINGERPRINTS} certificates of the chain.
+ */
+@Data
+public class AuditLogEntry {
+
+    private long timestamp;
+    private String deliveryId;
+    /** Recipient domain. */
+    private String domain;
+    private String mxHost;
+    private AuditResult.Outcome outcome;
+    /** Usage, selector and matching type of the matched TLSA record, null when no record matched. */
+    private DaneRecord.CertificateUsage matchedUsage;
+    private DaneRecord.Selector matchedSelector;
+    private DaneRecord.MatchingType matchedMatchingType;
+    @ToString.Exclude
+    private byte[] matchedAssociationData;
+    private int chainLength;
+    private int recordCount;
+    /** SHA-256 fingerprints of the certificates in the chain (server certificate first). */
+    @ToString.Exclude
+    private List<byte[]> chainFingerprints = new ArrayList<>();
+    private long validationMicros;
+
+}
@@ -0,0 +1,204 @@
+package com.enovationgroup.dane.audit;
+
+import com.enovationgroup.dane.dns.DaneRecord;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Reads the segment files of an {@link AuditLog} (also while the log is written).
+ * Entries are read from read-only memory-mapped segment files, in the order they were written.
+ * Entries with an invalid CRC (e.g. partially written before a crash) are skipped and counted.
+ */
+@Slf4j
+public class AuditLogReader {
+
+    private final CRC32 crc = new CRC32();
+
+    @Getter
+    private long corruptEntries;
+
+    public static void main(String[] args) throws IOException {
+
+        if (args == null || args.length < 1) {
+            System.out.println("Provide arguments: audit log directory, optional domain or email-server to filter on.");
+            return;
+        }
+        var json = new JsonLines();
+        var out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        var reader = new AuditLogReader();
+        Predicate<AuditLogEntry> filter = (args.length > 1 ?
+                e -> args[1].equalsIgnoreCase(e.getDomain()) || args[1].equalsIgnoreCase(e.getMxHost()) : e -> true);
+        long count = reader.scan(Paths.get(args[0]), entry -> {
+            if (filter.test(entry)) {
+                try {
+                    out.write(json.write(entry));
+                    out.newLine();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+        out.flush();
+        log.info("Read {} audit log entries, {} corrupt entries.", count, reader.getCorruptEntries());
+    }
+
+    /**
+     * JSON output for {@link #main(String[])} in a separate class: Jackson is an optional dependency,
+     * reading the audit log does not require it.
+     */
+    static class JsonLines {
+
+        final ObjectMapper mapper = new ObjectMapper();
+
+        String write(AuditLogEntry entry) throws IOException {
+            return mapper.writeValueAsString(entry);
+        }
+    }
+
+    /**
+     * Reads all entries from all segments in the directory.
+     * @return the number of entries read.
+     */
+    public long scan(Path directory, Consumer<AuditLogEntry> consumer) throws IOException {
+
+        long count = 0L;
+        for (var segment : listSegments(directory)) {
+            count += scanSegment(segment, consumer);
+        }
+        return count;
+    }
+
+    public List<AuditLogEntry> readAll(Path directory) throws IOException {
+
+        var entries = new ArrayList<AuditLogEntry>();
+        scan(directory, entries::add);
+        return entries;
+    }
+
+    long scanSegment(Path file, Consumer<AuditLogEntry> consumer) throws IOException {
+
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < AuditLog.SEGMENT_HEADER_SIZE) {
+                return 0L;
+            }
+            var segment = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+            if (segment.getLong(0) != AuditLog.SEGMENT_MAGIC || segment.getInt(8) != AuditLog.VERSION) {
+                throw new IOException("Not a DANE audit log segment: " + file);
+            }
+            int entrySize = segment.getInt(12);
+            long count = 0L;
+            for (int offset = AuditLog.SEGMENT_HEADER_SIZE; offset + entrySize <= segment.limit(); offset += entrySize) {
+                int marker = segment.getInt(offset);
+                if (marker == 0) {
+                    break;
+                }
+                if (marker != AuditLog.ENTRY_MARKER || !isValid(segment, offset, entrySize)) {
+                    corruptEntries++;
+                    continue;
+                }
+                consumer.accept(decode(segment, offset));
+                count++;
+            }
+            return count;
+        }
+    }
+
+    boolean isValid(ByteBuffer segment, int offset, int entrySize) {
+
+        crc.reset();
+        crc.update(segment.duplicate().position(offset + AuditLog.TIMESTAMP).limit(offset + entrySize));
+        return (int) crc.getValue() == segment.getInt(offset + AuditLog.CRC);
+    }
+
+    static AuditLogEntry decode(ByteBuffer segment, int offset) {
+
+        var entry = new AuditLogEntry();
+        entry.setTimestamp(segment.getLong(offset + AuditLog.TIMESTAMP));
+        entry.setValidationMicros(segment.getLong(offset + AuditLog.VALIDATION_MICROS));
+        int outcome = segment.get(offset + AuditLog.OUTCOME) & 0xFF;
+        entry.setOutcome(outcome < AuditResult.Outcome.values().length ? AuditResult.Outcome.values()[outcome] : null);
+        entry.setMatchedUsage(DaneRecord.CertificateUsage.find(segment.get(offset + AuditLog.USAGE) & 0xFF).orElse(null));
+        entry.setMatchedSelector(DaneRecord.Selector.find(segment.get(offset + AuditLog.SELECTOR) & 0xFF).orElse(null));
+        entry.setMatchedMatchingType(DaneRecord.MatchingType.find(segment.get(offset + AuditLog.MATCHING_TYPE) & 0xFF).orElse(null));
+        entry.setChainLength(segment.getShort(offset + AuditLog.CHAIN_LENGTH) & 0xFFFF);
+        entry.setRecordCount(segment.getShort(offset + AuditLog.RECORD_COUNT) & 0xFFFF);
+        entry.setDeliveryId(getText(segment, offset + AuditLog.DELIVERY_ID));
+        entry.setDomain(getText(segment, offset + AuditLog.DOMAIN));
+        entry.setMxHost(getText(segment, offset + AuditLog.MX_HOST));
+        int dataLength = segment.get(offset + AuditLog.ASSOCIATION_LENGTH) & 0xFF;
+        if (dataLength > 0) {
+            entry.setMatchedAssociationData(getBytes(segment, offset + AuditLog.ASSOCIATION_DATA, dataLength));
+        }
+        int count = segment.get(offset + AuditLog.FINGERPRINT_COUNT) & 0xFF;
+        for (int i = 0; i < count; i++) {
+            entry.getChainFingerprints().add(getBytes(segment, offset + AuditLog.FINGERPRINTS + i * AuditLog.FINGERPRINT_SIZE,
+                    AuditLog.FINGERPRINT_SIZE));
+        }
+        return entry;
+    }
+
+    static String getText(ByteBuffer segment, int offset) {
+
+        int length = segment.get(offset) & 0xFF;
+        return (length == 0 ? null : new String(getBytes(segment, offset + 1, length), StandardCharsets.UTF_8));
+    }
+
+    static byte[] getBytes(ByteBuffer segment, int offset, int length) {
+
+        var bytes = new byte[length];
+        segment.duplicate().position(offset).get(bytes);
+        return bytes;
+    }
+
+    static List<Path> listSegments(Path directory) throws IOException {
+
+        if (!Files.isDirectory(directory)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(f -> segmentSequence(f) > 0L).sorted().collect(Collectors.toList());
+        }
+    }
+
+    static String segmentName(long sequence) {
+        return String.format("%s%016d%s", AuditLog.SEGMENT_PREFIX, sequence, AuditLog.SEGMENT_SUFFIX);
+    }
+
+    /**
+     * @return the sequence of the segment file, 0 if the file is not a segment file.
+     */
+    static long segmentSequence(Path file) {
+
+        var name = file.getFileName().toString();
+        if (!name.startsWith(AuditLog.SEGMENT_PREFIX) || !name.endsWith(AuditLog.SEGMENT_SUFFIX)) {
+            return 0L;
+        }
+        try {
+            return Long.parseLong(name.substring(AuditLog.SEGMENT_PREFIX.length(), name.length() - AuditLog.SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+}
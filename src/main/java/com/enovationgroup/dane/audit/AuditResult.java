@@ -0,0 +1,30 @@
+package com.enovationgroup.dane.audit;
+
+import lombok.Data;
+
+/**
+ * Outcome of the DANE validation of one captured certificate chain against the captured TLSA records.
+ */
+@Data
+public class AuditResult {
+
+    public enum Outcome {
+        /** Chain matches a TLSA record. */
+        VALID,
+        /** Chain does not match any (supported) TLSA record. */
+        INVALID,
+        /** Chain or records could not be read. */
+        ERROR
+    }
+
+    /** Path of the directory with the chain and records, relative to the audit root. */
+    private String name;
+    /** Email-server from the TLSA records, if available. */
+    private String mxHost;
+    private Outcome outcome;
+    private String message;
+    private int chainLength;
+    private int recordCount;
+    private long durationMicros;
+
+}
@@ -0,0 +1,46 @@
+package com.enovationgroup.dane.audit;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Getter;
+
+/**
+ * Counts of audit outcomes, updated concurrently by the audit tasks.
+ */
+@Getter
+public class AuditSummary {
+
+    private final LongAdder valid = new LongAdder();
+    private final LongAdder invalid = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private long elapsedMillis;
+
+    void add(AuditResult result) {
+
+        switch (result.getOutcome()) {
+        case VALID:
+            valid.increment();
+            break;
+        case INVALID:
+            invalid.increment();
+            break;
+        default:
+            errors.increment();
+        }
+    }
+
+    void setElapsedMillis(long elapsedMillis) {
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public long getTotal() {
+        return valid.sum() + invalid.sum() + errors.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Audited %d chains in %d ms: %d valid, %d invalid, %d errors.",
+                getTotal(), elapsedMillis, valid.sum(), invalid.sum(), errors.sum());
+    }
+
+}
@@ -0,0 +1,262 @@
+package com.enovationgroup.dane.audit;
+
+import com.enovationgroup.dane.dns.DaneRecord;
+import com.enovationgroup.dane.smtp.TrustManagerDane;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Offline DANE validation of captured certificate chains against captured TLSA records.
+ * <br>The input is a directory (or zip-file) with one sub-directory per email-server, in the same format as
+ * the test resources (see <tt>StoreDaneForTest</tt>):
+ * <ul>
+ * <li><tt>*.crt</tt> / <tt>*.pem</tt> files with PEM certificates, the chain is ordered by file name
+ * (server certificate first, e.g. <tt>0-server.crt</tt>, <tt>1-intermediate.crt</tt>)</li>
+ * <li><tt>*.json</tt> files with a TLSA record (or an array of TLSA records) in {@link DaneRecord} JSON format</li>
+ * </ul>
+ * Chains are validated in parallel on a fork-join pool with {@link TrustManagerDane},
+ * each result is written as a JSON line to the report as soon as it is available.
+ * <br>Requires the optional <tt>jackson-databind</tt> dependency.
+ */
+@Slf4j
+public class DaneAudit {
+
+    /** Maximum number of chains validated in one fork-join leaf task. */
+    static final int BATCH_SIZE = 16;
+
+    private static final ThreadLocal<CertificateFactory> certFactory = ThreadLocal.withInitial(DaneAudit::newCertFactory);
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Getter @Setter
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    public static void main(String[] args) throws IOException {
+
+        if (args == null || args.length < 1) {
+            System.out.println("Provide arguments: directory or zip-file to audit, optional report file (default standard out).");
+            return;
+        }
+        Writer out = (args.length > 1 ?
+                Files.newBufferedWriter(Paths.get(args[1]), StandardCharsets.UTF_8) :
+                    new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+        try {
+            var summary = new DaneAudit().run(Paths.get(args[0]), out);
+            log.info(summary.toString());
+        } finally {
+            out.flush();
+            if (args.length > 1) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * @param input directory or zip-file
+     * @param report receives a JSON line per {@link AuditResult}
+     */
+    public AuditSummary run(Path input, Writer report) throws IOException {
+
+        if (Files.isRegularFile(input) && input.getFileName().toString().toLowerCase(Locale.US).endsWith(".zip")) {
+            try (var zipFs = FileSystems.newFileSystem(input, (ClassLoader) null)) {
+                return runDirectory(zipFs.getPath("/"), report);
+            }
+        }
+        return runDirectory(input, report);
+    }
+
+    AuditSummary runDirectory(Path root, Writer report) throws IOException {
+
+        long start = System.nanoTime();
+        List<Path> chainDirs;
+        try (Stream<Path> paths = Files.walk(root)) {
+            chainDirs = paths.filter(Files::isDirectory).filter(this::containsCertificates).collect(Collectors.toList());
+        }
+        log.debug("Auditing {} certificate chains from {} with parallelism {}.", chainDirs.size(), root, parallelism);
+        var summary = new AuditSummary();
+        var pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new AuditTask(root, chainDirs, 0, chainDirs.size(), report, summary));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+        report.flush();
+        summary.setElapsedMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return summary;
+    }
+
+    public AuditResult audit(Path root, Path dir) {
+
+        long start = System.nanoTime();
+        var result = new AuditResult();
+        result.setName(root.relativize(dir).toString());
+        try {
+            var chain = loadChain(dir);
+            var records = loadRecords(dir);
+            result.setChainLength(chain.length);
+            result.setRecordCount(records.size());
+            records.stream().map(DaneRecord::getDomain).filter(d -> d != null).findFirst().ifPresent(result::setMxHost);
+            if (records.isEmpty()) {
+                result.setOutcome(AuditResult.Outcome.ERROR);
+                result.setMessage("No TLSA records found.");
+            } else {
+                validate(chain, records, result);
+            }
+        } catch (Exception e) {
+            result.setOutcome(AuditResult.Outcome.ERROR);
+            result.setMessage(e.toString());
+        }
+        result.setDurationMicros(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        return result;
+    }
+
+    void validate(X509Certificate[] chain, List<DaneRecord> records, AuditResult result) {
+
+        try {
+            new TrustManagerDane(records).checkServerTrusted(chain, "RSA");
+            result.setOutcome(AuditResult.Outcome.VALID);
+        } catch (CertificateException e) {
+            result.setOutcome(AuditResult.Outcome.INVALID);
+            result.setMessage(e.getMessage());
+        }
+    }
+
+    boolean containsCertificates(Path dir) {
+
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.anyMatch(DaneAudit::isCertificateFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    X509Certificate[] loadChain(Path dir) throws IOException, CertificateException {
+
+        var chain = new ArrayList<X509Certificate>();
+        for (Path file : listSorted(dir)) {
+            if (isCertificateFile(file)) {
+                try (var in = Files.newInputStream(file)) {
+                    for (var cert : certFactory.get().generateCertificates(in)) {
+                        chain.add((X509Certificate) cert);
+                    }
+                }
+            }
+        }
+        return chain.toArray(new X509Certificate[0]);
+    }
+
+    List<DaneRecord> loadRecords(Path dir) throws IOException {
+
+        var records = new ArrayList<DaneRecord>();
+        for (Path file : listSorted(dir)) {
+            if (file.getFileName().toString().toLowerCase(Locale.US).endsWith(".json")) {
+                var json = mapper.readTree(Files.readAllBytes(file));
+                if (json.isArray()) {
+                    for (var node : json) {
+                        records.add(mapper.treeToValue(node, DaneRecord.class));
+                    }
+                } else {
+                    records.add(mapper.treeToValue(json, DaneRecord.class));
+                }
+            }
+        }
+        return records;
+    }
+
+    static List<Path> listSorted(Path dir) throws IOException {
+
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+    }
+
+    static boolean isCertificateFile(Path file) {
+
+        var name = file.getFileName().toString().toLowerCase(Locale.US);
+        return name.endsWith(".crt") || name.endsWith(".pem");
+    }
+
+    @SneakyThrows
+    static CertificateFactory newCertFactory() {
+        return CertificateFactory.getInstance("X.509");
+    }
+
+    void write(Writer report, AuditResult result) {
+
+        try {
+            // Serialize outside the lock, only the write is serialized.
+            var line = mapper.writeValueAsString(result) + "\n";
+            synchronized (report) {
+                report.write(line);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    class AuditTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        final Path root;
+        final List<Path> dirs;
+        final int from;
+        final int to;
+        final Writer report;
+        final AuditSummary summary;
+
+        AuditTask(Path root, List<Path> dirs, int from, int to, Writer report, AuditSummary summary) {
+            this.root = root;
+            this.dirs = dirs;
+            this.from = from;
+            this.to = to;
+            this.report = report;
+            this.summary = summary;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (to - from <= BATCH_SIZE) {
+                for (int i = from; i < to; i++) {
+                    var result = audit(root, dirs.get(i));
+                    summary.add(result);
+                    write(report, result);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new AuditTask(root, dirs, from, middle, report, summary),
+                    new AuditTask(root, dirs, middle, to, report, summary));
+        }
+    }
+
+}
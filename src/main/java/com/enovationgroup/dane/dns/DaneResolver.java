@@ -8,11 +8,15 @@ import org.xbill.DNS.Section;
 import org.xbill.DNS.TLSARecord;
 import org.xbill.DNS.Type;
 
+import com.enovationgroup.dane.jfr.TlsaLookupEvent;
+
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -35,11 +39,23 @@ public class DaneResolver {
     }
 
     public DaneResolver(DnsResolver resolver, boolean resolveMxSecure) {
+        this(resolver, resolveMxSecure, MxOrdering.PRIORITY);
+    }
+
+    public DaneResolver(DnsResolver resolver, boolean resolveMxSecure, MxOrdering mxOrdering) {
         this.resolver = resolver;
-        this.mxResolver = new MxResolver(resolver);
+        this.mxResolver = new MxResolver(resolver, mxOrdering);
         this.resolveMxSecure = resolveMxSecure;
     }
 
+    public MxResolver getMxResolver() {
+        return mxResolver;
+    }
+
+    public boolean isResolveMxSecure() {
+        return resolveMxSecure;
+    }
+
     public LinkedHashMap<String, Collection<DaneRecord>> resolveDaneRecords(String mxDomain) throws IOException {
 
         var emailServers =  mxResolver.resolveMxDomains(mxDomain, resolveMxSecure);
@@ -64,8 +80,89 @@ public class DaneResolver {
         return daneEmailServerRecords;
     }
 
+    /**
+     * Resolves DANE records for many domains, the TLSA records for an email-server are resolved only once
+     * for all domains using the email-server.
+     * <br>The records for an email-server are shared by all domains (the same collection instance, unmodifiable)
+     * and have no {@link DaneRecord#getMxDomain()}: set the recipient domain with
+     * {@link com.enovationgroup.dane.smtp.TransportOptions#setDomain(String)} when connecting.
+     * <br>Per domain, the result is the same as {@link #resolveDaneRecords(String)}: email-servers in MX order,
+     * the email-servers after an email-server with a failed TLSA lookup are not included.
+     * A domain with a failed MX lookup has an empty result.
+     * @return per domain (in order of the given domains) the email-servers with DANE records.
+     */
+    public LinkedHashMap<String, LinkedHashMap<String, Collection<DaneRecord>>> resolveDaneRecords(Collection<String> mxDomains) {
+
+        var domainServers = new LinkedHashMap<String, List<String>>();
+        for (String mxDomain : mxDomains) {
+            if (domainServers.containsKey(mxDomain)) {
+                continue;
+            }
+            try {
+                domainServers.put(mxDomain, mxResolver.resolveMxDomains(mxDomain, resolveMxSecure));
+            } catch (IOException e) {
+                log.info("MX records lookup for domain {} failed: {}", mxDomain, e.toString());
+                domainServers.put(mxDomain, Collections.emptyList());
+            }
+        }
+        // Resolve each email-server once, null value for a failed lookup.
+        var serverRecords = new HashMap<String, Collection<DaneRecord>>();
+        for (var emailServers : domainServers.values()) {
+            for (String emailServer : emailServers) {
+                if (serverRecords.containsKey(emailServer)) {
+                    continue;
+                }
+                Collection<DaneRecord> daneRecords = null;
+                try {
+                    daneRecords = Collections.unmodifiableCollection(resolveDaneRecord(null, emailServer));
+                } catch (IOException e) {
+                    log.info("Secure DANE records lookup for server {} failed: {}", emailServer, e.toString());
+                }
+                serverRecords.put(emailServer, daneRecords);
+            }
+        }
+        log.debug("Resolved DANE records for {} email-servers used by {} domains.", serverRecords.size(), domainServers.size());
+        var result = new LinkedHashMap<String, LinkedHashMap<String, Collection<DaneRecord>>>();
+        domainServers.forEach((mxDomain, emailServers) -> {
+            var daneEmailServerRecords = new LinkedHashMap<String, Collection<DaneRecord>>();
+            for (String emailServer : emailServers) {
+                var daneRecords = serverRecords.get(emailServer);
+                if (daneRecords == null) {
+                    // Same as resolveDaneRecords: stop at the first failed lookup.
+                    break;
+                }
+                if (!daneRecords.isEmpty()) {
+                    daneEmailServerRecords.put(emailServer, daneRecords);
+                }
+            }
+            result.put(mxDomain, daneEmailServerRecords);
+        });
+        return result;
+    }
+
     public Collection<DaneRecord> resolveDaneRecord(String mxDomain, String emailServer) throws IOException {
-        return toDaneRecords(mxDomain, emailServer, resolveTlsaRecords(emailServer));
+
+        var event = new TlsaLookupEvent();
+        event.begin();
+        try {
+            var records = (resolver.isWireParsing() ?
+                    resolver.resolveWire(emailServer, newTlsaQuery(emailServer), true,
+                            response -> DnsWireParser.parseTlsaRecords(response, mxDomain, emailServer)) :
+                                toDaneRecords(mxDomain, emailServer, resolveTlsaRecords(emailServer)));
+            if (event.isEnabled()) {
+                event.setRecordCount(records.size());
+            }
+            return records;
+        } catch (IOException | RuntimeException e) {
+            event.failed(e);
+            throw e;
+        } finally {
+            if (event.isEnabled()) {
+                event.setDomain(mxDomain);
+                event.setMxHost(emailServer);
+            }
+            event.complete();
+        }
     }
 
     public Collection<DaneRecord> toDaneRecords(String mxDomain, String emailServer, Message response) {
@@ -99,10 +196,14 @@ public class DaneResolver {
     }
 
     public Message resolveTlsaRecords(String emailServer) throws IOException {
+        return resolver.resolveSecure(emailServer, newTlsaQuery(emailServer));
+    }
+
+    Message newTlsaQuery(String emailServer) {
 
         log.debug("Resolving TLSA records for domain {}", emailServer);
         var queryRecord = Record.newRecord(Name.fromConstantString(toQualifiedMailDomain(emailServer)), Type.TLSA, DClass.IN);
-        return resolver.resolveSecure(emailServer, Message.newQuery(queryRecord));
+        return Message.newQuery(queryRecord);
     }
 
     public String toQualifiedMailDomain(String emailServer) {
@@ -3,19 +3,80 @@ package com.enovationgroup.dane.dns;
 import org.xbill.DNS.ExtendedFlags;
 import org.xbill.DNS.Flags;
 import org.xbill.DNS.Message;
+import org.xbill.DNS.OPTRecord;
 import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
 import org.xbill.DNS.SimpleResolver;
+import org.xbill.DNS.Type;
 
+import com.enovationgroup.dane.jfr.DnsQueryEvent;
+
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.function.Function;
 
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class DnsResolver {
 
+    public enum TransportMode {
+        /** UDP, with TCP for truncated responses. */
+        UDP,
+        /** TCP only. */
+        TCP,
+        /**
+         * UDP with a short timeout, with TCP for truncated responses and UDP timeouts.
+         * Queries that needed TCP use TCP directly for a while, see {@link DnsResolver#setTcpFallbackSeconds(int)}.
+         */
+        AUTO
+    }
+
+    private static final int MAX_MESSAGE_SIZE = 65_535;
+    /** EDNS UDP payload size that avoids IP fragmentation (DNS flag day 2020). */
+    static final int EDNS_PAYLOAD_SIZE = 1232;
+    /** Default timeout of the dnsjava resolver. */
+    static final int DEFAULT_TIMEOUT_SECONDS = 10;
+    static final String UDP = "udp";
+    static final String TCP = "tcp";
+    static final String UDP_TCP = "udp+tcp";
+    /** Receive buffer for {@link #resolveWire(String, Message, boolean, Function)}, reused per thread. */
+    private static final ThreadLocal<byte[]> wireBuffer = ThreadLocal.withInitial(() -> new byte[MAX_MESSAGE_SIZE]);
+    /** Transport used by the last query of the thread, for the {@link DnsQueryEvent}. */
+    private static final ThreadLocal<String> queryTransport = new ThreadLocal<>();
+
     private final SimpleResolver resolver;
     private final SimpleResolver resolverInsecure;
+    private final SimpleResolver resolverTcp;
+    private final SimpleResolver resolverInsecureTcp;
+    private final TcpFallback tcpFallback = new TcpFallback();
+    @Getter
+    private TransportMode transportMode = TransportMode.UDP;
+
+    /** Timeout for UDP queries in {@link TransportMode#AUTO} mode, before retrying with TCP. */
+    @Getter
+    private int udpTimeoutMillis = 2_000;
+
+    /**
+     * If true, {@link MxResolver} and {@link DaneResolver} parse DNS responses
+     * with the {@link DnsWireParser} instead of dnsjava {@link Message} objects.
+     */
+    @Getter @Setter
+    private boolean wireParsing;
+
+    /** Timeout for {@link #resolveWire(String, Message, boolean, Function)}. */
+    @Getter @Setter
+    private int wireTimeoutMillis = 10_000;
 
     public DnsResolver() {
         this(null, 0);
@@ -25,6 +86,10 @@ public class DnsResolver {
         try {
             this.resolver = createResolver(dnsHost, dnsPort, true);
             this.resolverInsecure = createResolver(dnsHost, dnsPort, false);
+            this.resolverTcp = createResolver(dnsHost, dnsPort, true);
+            this.resolverTcp.setTCP(true);
+            this.resolverInsecureTcp = createResolver(dnsHost, dnsPort, false);
+            this.resolverInsecureTcp.setTCP(true);
         } catch (Exception e) {
             var msg = "Unable to create DNS resolver using server " + dnsHost + ":" + dnsPort;
             log.error(msg, e);
@@ -33,8 +98,43 @@ public class DnsResolver {
     }
 
     public void setTCP(boolean tcpOnly) {
-        getResolver(true).setTCP(tcpOnly);
-        getResolver(false).setTCP(tcpOnly);
+        setTransportMode(tcpOnly ? TransportMode.TCP : TransportMode.UDP);
+    }
+
+    public void setTransportMode(TransportMode transportMode) {
+
+        this.transportMode = transportMode;
+        for (var sr : new SimpleResolver[] { getResolver(true), getResolver(false) }) {
+            sr.setTCP(transportMode == TransportMode.TCP);
+            // In auto mode truncated responses are handled by sendMessage.
+            sr.setIgnoreTruncation(transportMode == TransportMode.AUTO);
+            if (transportMode == TransportMode.AUTO) {
+                sr.setTimeout(udpTimeoutMillis / 1_000, udpTimeoutMillis % 1_000);
+            } else {
+                sr.setTimeout(DEFAULT_TIMEOUT_SECONDS);
+            }
+        }
+    }
+
+    public void setUdpTimeoutMillis(int udpTimeoutMillis) {
+
+        this.udpTimeoutMillis = udpTimeoutMillis;
+        setTransportMode(transportMode);
+    }
+
+    /**
+     * How long a query (or upstream) that needed TCP uses TCP directly in {@link TransportMode#AUTO} mode.
+     */
+    public void setTcpFallbackSeconds(int seconds) {
+        tcpFallback.setRememberSeconds(seconds);
+    }
+
+    public int getTcpFallbackSeconds() {
+        return tcpFallback.getRememberSeconds();
+    }
+
+    TcpFallback getTcpFallback() {
+        return tcpFallback;
     }
 
     protected SimpleResolver createResolver(String dnsHost, int dnsPort, boolean secure) throws UnknownHostException {
@@ -62,9 +162,7 @@ public class DnsResolver {
          * ;; flags: qr rd ra ad; ...
          * will have "ad" for "authenticated data" when DNSSEC is used and answer is "secure".
          */
-        if (secure) {
-            sr.setEDNS(0, 0, ExtendedFlags.DO, null);
-        }
+        sr.setEDNS(0, EDNS_PAYLOAD_SIZE, (secure ? ExtendedFlags.DO : 0), null);
         return sr;
     }
 
@@ -72,6 +170,10 @@ public class DnsResolver {
         return (secure ? resolver : resolverInsecure);
     }
 
+    protected SimpleResolver getTcpResolver(boolean secure) {
+        return (secure ? resolverTcp : resolverInsecureTcp);
+    }
+
     public String toQualifiedDomain(String domain) {
         return (domain.endsWith(".") ? domain : domain + ".");
     }
@@ -86,7 +188,46 @@ public class DnsResolver {
 
     protected Message resolve(String domain, Message query, boolean secure) throws IOException {
 
-        var response = getResolver(secure).send(query);
+        var event = new DnsQueryEvent();
+        event.begin();
+        queryTransport.remove();
+        try {
+            var response = send(domain, query, secure);
+            if (event.isEnabled()) {
+                event.setAnswerCount(response.getHeader().getCount(Section.ANSWER));
+            }
+            return response;
+        } catch (IOException | RuntimeException e) {
+            event.failed(e);
+            throw e;
+        } finally {
+            if (event.isEnabled()) {
+                var transport = queryTransport.get();
+                setQueryEvent(event, query, secure, (transport == null ? UDP : transport));
+            }
+            event.complete();
+        }
+    }
+
+    protected Message send(String domain, Message query, boolean secure) throws IOException {
+
+        var response = sendQuery(domain, query, secure);
+        if (secure && !response.getHeader().getFlag(Flags.AD)) {
+            /*
+             * This will probably never happen since unbound should report Rcode.SERVFAIL
+             * when a requested secure lookup fails.
+             */
+            throw new IOException("Secure DNS record lookup failed for domain " + domain);
+        }
+        return response;
+    }
+
+    /**
+     * Sends the query, fails for any return code other than NOERROR.
+     */
+    protected Message sendQuery(String domain, Message query, boolean secure) throws IOException {
+
+        var response = sendMessage(domain, query, secure);
         if (response.getRcode() != Rcode.NOERROR) {
             /*
              * Rcode.SERVFAIL can indicate a failure to connect from our side to the DNS server,
@@ -97,14 +238,159 @@ public class DnsResolver {
              */
             throw new IOException("Invalid return code " + Rcode.string(response.getRcode()) + " for DNS record lookup of domain " + domain);
         }
-        if (secure && !response.getHeader().getFlag(Flags.AD)) {
-            /*
-             * This will probably never happen since unbound should report Rcode.SERVFAIL
-             * when a requested secure lookup fails.
-             */
+        return response;
+    }
+
+    Message sendMessage(String domain, Message query, boolean secure) throws IOException {
+
+        if (transportMode != TransportMode.AUTO) {
+            queryTransport.set(transportMode == TransportMode.TCP ? TCP : UDP);
+            return getResolver(secure).send(query);
+        }
+        var upstream = getResolver(secure).getAddress();
+        var question = query.getQuestion();
+        if (tcpFallback.isTcpRequired(upstream, question)) {
+            queryTransport.set(TCP);
+            return getTcpResolver(secure).send(query);
+        }
+        try {
+            var response = getResolver(secure).send(query);
+            if (!response.getHeader().getFlag(Flags.TC)) {
+                tcpFallback.udpAnswered(upstream);
+                queryTransport.set(UDP);
+                return response;
+            }
+            log.debug("Truncated UDP response for domain {}, retrying with TCP.", domain);
+            tcpFallback.truncated(upstream, question);
+        } catch (SocketTimeoutException e) {
+            log.debug("UDP timeout for domain {}, retrying with TCP.", domain);
+            tcpFallback.udpTimeout(upstream, question);
+        }
+        queryTransport.set(UDP_TCP);
+        return getTcpResolver(secure).send(query);
+    }
+
+    /**
+     * Sends the query and applies the parser to the response in wire format,
+     * without creating a dnsjava {@link Message} for the response.
+     * <br>The buffer given to the parser is only valid during the parser call.
+     */
+    protected <T> T resolveWire(String domain, Message query, boolean secure, Function<ByteBuffer, T> parser) throws IOException {
+
+        var event = new DnsQueryEvent();
+        event.begin();
+        try {
+            return resolveWire(domain, query, secure, parser, event);
+        } catch (IOException | RuntimeException e) {
+            event.failed(e);
+            throw e;
+        } finally {
+            if (event.isEnabled()) {
+                setQueryEvent(event, query, secure, event.getTransport());
+            }
+            event.complete();
+        }
+    }
+
+    <T> T resolveWire(String domain, Message query, boolean secure, Function<ByteBuffer, T> parser, DnsQueryEvent event) throws IOException {
+
+        query.addRecord(new OPTRecord(EDNS_PAYLOAD_SIZE, 0, 0, (secure ? ExtendedFlags.DO : 0)), Section.ADDITIONAL);
+        var queryBytes = query.toWire(MAX_MESSAGE_SIZE);
+        var address = getResolver(secure).getAddress();
+        var response = sendWire(domain, query.getQuestion(), address, queryBytes, event);
+        if (DnsWireParser.id(response) != query.getHeader().getID()) {
+            throw new IOException("Invalid message id in DNS response for domain " + domain);
+        }
+        int rcode = DnsWireParser.rcode(response);
+        if (rcode != Rcode.NOERROR) {
+            // See resolve method for details.
+            throw new IOException("Invalid return code " + Rcode.string(rcode) + " for DNS record lookup of domain " + domain);
+        }
+        if (secure && !DnsWireParser.isAuthenticated(response)) {
             throw new IOException("Secure DNS record lookup failed for domain " + domain);
         }
-        return response;
+        if (event.isEnabled()) {
+            event.setAnswerCount(DnsWireParser.answerCount(response));
+        }
+        try {
+            return parser.apply(response);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Invalid DNS response for domain " + domain + ": " + e.getMessage(), e);
+        }
+    }
+
+    ByteBuffer sendWire(String domain, Record question, InetSocketAddress address, byte[] queryBytes, DnsQueryEvent event) throws IOException {
+
+        boolean auto = (transportMode == TransportMode.AUTO);
+        if (transportMode == TransportMode.TCP || (auto && tcpFallback.isTcpRequired(address, question))) {
+            event.setTransport(TCP);
+            return sendTcp(address, queryBytes);
+        }
+        event.setTransport(UDP);
+        try {
+            var response = sendUdp(address, queryBytes, (auto ? udpTimeoutMillis : wireTimeoutMillis));
+            if (!DnsWireParser.isTruncated(response)) {
+                if (auto) {
+                    tcpFallback.udpAnswered(address);
+                }
+                return response;
+            }
+            log.debug("Truncated UDP response for domain {}, retrying with TCP.", domain);
+            if (auto) {
+                tcpFallback.truncated(address, question);
+            }
+        } catch (SocketTimeoutException e) {
+            if (!auto) {
+                throw e;
+            }
+            log.debug("UDP timeout for domain {}, retrying with TCP.", domain);
+            tcpFallback.udpTimeout(address, question);
+        }
+        event.setTransport(UDP_TCP);
+        return sendTcp(address, queryBytes);
+    }
+
+    void setQueryEvent(DnsQueryEvent event, Message query, boolean secure, String transport) {
+
+        var question = query.getQuestion();
+        if (question != null) {
+            event.setName(question.getName().toString());
+            event.setType(Type.string(question.getType()));
+        }
+        event.setUpstream(String.valueOf(getResolver(secure).getAddress()));
+        event.setSecure(secure);
+        event.setTransport(transport);
+    }
+
+    ByteBuffer sendUdp(InetSocketAddress address, byte[] query, int timeoutMillis) throws IOException {
+
+        var buffer = wireBuffer.get();
+        try (var socket = new DatagramSocket()) {
+            socket.setSoTimeout(timeoutMillis);
+            socket.connect(address);
+            socket.send(new DatagramPacket(query, query.length));
+            var packet = new DatagramPacket(buffer, buffer.length);
+            socket.receive(packet);
+            return ByteBuffer.wrap(buffer, 0, packet.getLength()).slice();
+        }
+    }
+
+    ByteBuffer sendTcp(InetSocketAddress address, byte[] query) throws IOException {
+
+        var buffer = wireBuffer.get();
+        try (var socket = new Socket()) {
+            socket.setSoTimeout(wireTimeoutMillis);
+            socket.connect(address, wireTimeoutMillis);
+            var framed = new byte[query.length + 2];
+            framed[0] = (byte) (query.length >>> 8);
+            framed[1] = (byte) query.length;
+            System.arraycopy(query, 0, framed, 2, query.length);
+            socket.getOutputStream().write(framed);
+            var in = new DataInputStream(socket.getInputStream());
+            int length = in.readUnsignedShort();
+            in.readFully(buffer, 0, length);
+            return ByteBuffer.wrap(buffer, 0, length).slice();
+        }
     }
 
 }
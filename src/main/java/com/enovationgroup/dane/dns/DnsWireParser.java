@@ -0,0 +1,228 @@
+package com.enovationgroup.dane.dns;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Reads MX targets and TLSA records directly from a DNS response in wire format (RFC 1035 section 4),
+ * without building a dnsjava {@link org.xbill.DNS.Message} object graph.
+ * <br>Results are the same as {@link MxResolver#toMxHosts(org.xbill.DNS.Message)}
+ * and {@link DaneResolver#toDaneRecords(String, String, org.xbill.DNS.Message)}.
+ * <br>The position and limit of the given buffers are not changed, all reads use absolute offsets.
+ */
+@Slf4j
+public class DnsWireParser {
+
+    static final int HEADER_LENGTH = 12;
+    static final int TYPE_MX = 15;
+    static final int TYPE_TLSA = 52;
+    static final int CLASS_IN = 1;
+    static final int FLAG_TC = 0x0200;
+    static final int FLAG_AD = 0x0020;
+    /** Maximum compression pointers to follow for one name, protects against pointer loops. */
+    static final int MAX_POINTERS = 64;
+
+    private DnsWireParser() {}
+
+    public static int id(ByteBuffer msg) {
+        return u16(msg, msg.position());
+    }
+
+    public static int rcode(ByteBuffer msg) {
+        return u16(msg, msg.position() + 2) & 0x0F;
+    }
+
+    public static int answerCount(ByteBuffer msg) {
+        return u16(msg, msg.position() + 6);
+    }
+
+    public static boolean isTruncated(ByteBuffer msg) {
+        return (u16(msg, msg.position() + 2) & FLAG_TC) != 0;
+    }
+
+    public static boolean isAuthenticated(ByteBuffer msg) {
+        return (u16(msg, msg.position() + 2) & FLAG_AD) != 0;
+    }
+
+    /**
+     * MX targets from the answer section in lowercase, sorted by priority.
+     */
+    public static List<MxHost> parseMxHosts(ByteBuffer msg) {
+
+        var hosts = new ArrayList<MxHost>();
+        forEachAnswer(msg, TYPE_MX, (offset, length) -> {
+            int priority = u16(msg, offset);
+            var host = readName(msg, offset + 2);
+            if (!host.isEmpty()) {
+                hosts.add(new MxHost(host, priority));
+            }
+        });
+        // List.sort is stable, same order as the stream sorted in MxResolver.
+        hosts.sort(Comparator.comparingInt(MxHost::getPriority));
+        return hosts;
+    }
+
+    /**
+     * TLSA records from the answer section, records with unknown values are skipped.
+     */
+    public static Collection<DaneRecord> parseTlsaRecords(ByteBuffer msg, String mxDomain, String emailServer) {
+
+        var records = new HashSet<DaneRecord>();
+        forEachAnswer(msg, TYPE_TLSA, (offset, length) -> {
+            if (length < 3) {
+                log.warn("Unexpected invalid length {} of TLSA record for {}.", length, emailServer);
+                return;
+            }
+            var usage = DaneRecord.CertificateUsage.find(u8(msg, offset));
+            var selector = DaneRecord.Selector.find(u8(msg, offset + 1));
+            var matchingType = DaneRecord.MatchingType.find(u8(msg, offset + 2));
+            if (usage.isEmpty() || selector.isEmpty() || matchingType.isEmpty()) {
+                log.warn("Unexpected invalid value in TLSA record for {}.", emailServer);
+                return;
+            }
+            var data = new byte[length - 3];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = msg.get(offset + 3 + i);
+            }
+            var record = new DaneRecord();
+            record.setMxDomain(mxDomain);
+            record.setDomain(emailServer);
+            record.setCertificateUsage(usage.get());
+            record.setSelector(selector.get());
+            record.setMatchingType(matchingType.get());
+            record.setCertificateAssociationData(data);
+            records.add(record);
+        });
+        return (records.isEmpty() ? Collections.emptySet() : records);
+    }
+
+    @FunctionalInterface
+    interface RdataVisitor {
+        /**
+         * @param offset absolute offset of the rdata in the buffer.
+         */
+        void visit(int offset, int length);
+    }
+
+    /**
+     * Calls the visitor for each answer record of the given type and class IN.
+     */
+    static void forEachAnswer(ByteBuffer msg, int type, RdataVisitor visitor) {
+
+        int start = msg.position();
+        if (msg.limit() - start < HEADER_LENGTH) {
+            throw new IllegalArgumentException("DNS message too short: " + (msg.limit() - start) + " bytes.");
+        }
+        int questions = u16(msg, start + 4);
+        int answers = u16(msg, start + 6);
+        int offset = start + HEADER_LENGTH;
+        for (int i = 0; i < questions; i++) {
+            offset = skipName(msg, offset) + 4;
+        }
+        for (int i = 0; i < answers; i++) {
+            offset = skipName(msg, offset);
+            int rrType = u16(msg, offset);
+            int rrClass = u16(msg, offset + 2);
+            int rdLength = u16(msg, offset + 8);
+            int rdata = offset + 10;
+            if (rdata + rdLength > msg.limit()) {
+                throw new IllegalArgumentException("DNS record data exceeds message length.");
+            }
+            if (rrType == type && rrClass == CLASS_IN) {
+                visitor.visit(rdata, rdLength);
+            }
+            offset = rdata + rdLength;
+        }
+    }
+
+    /**
+     * @return offset after the (possibly compressed) name at the given offset.
+     */
+    static int skipName(ByteBuffer msg, int offset) {
+
+        while (true) {
+            int len = u8(msg, offset);
+            if (len == 0) {
+                return offset + 1;
+            }
+            if ((len & 0xC0) == 0xC0) {
+                return offset + 2;
+            }
+            if ((len & 0xC0) != 0) {
+                throw new IllegalArgumentException("Invalid DNS label type at offset " + offset);
+            }
+            offset += len + 1;
+        }
+    }
+
+    /**
+     * Reads a (possibly compressed) name in lowercase, without the final dot,
+     * with the same escaping as {@link org.xbill.DNS.Name#toString(boolean)}. The root name is returned as ".".
+     */
+    static String readName(ByteBuffer msg, int offset) {
+
+        var sb = new StringBuilder(64);
+        int start = msg.position();
+        int pointers = 0;
+        while (true) {
+            int len = u8(msg, offset);
+            if (len == 0) {
+                break;
+            }
+            if ((len & 0xC0) == 0xC0) {
+                if (++pointers > MAX_POINTERS) {
+                    throw new IllegalArgumentException("Too many DNS name compression pointers.");
+                }
+                offset = start + (((len & 0x3F) << 8) | u8(msg, offset + 1));
+                continue;
+            }
+            if ((len & 0xC0) != 0) {
+                throw new IllegalArgumentException("Invalid DNS label type at offset " + offset);
+            }
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            for (int i = 1; i <= len; i++) {
+                appendLabelByte(sb, u8(msg, offset + i));
+            }
+            offset += len + 1;
+        }
+        return (sb.length() == 0 ? "." : sb.toString());
+    }
+
+    static void appendLabelByte(StringBuilder sb, int b) {
+
+        if (b <= 0x20 || b >= 0x7F) {
+            sb.append('\\');
+            if (b < 100) {
+                sb.append('0');
+            }
+            if (b < 10) {
+                sb.append('0');
+            }
+            sb.append(b);
+        } else if (b == '"' || b == '(' || b == ')' || b == '.' || b == ';' || b == '\\' || b == '@' || b == '$') {
+            sb.append('\\').append((char) b);
+        } else if (b >= 'A' && b <= 'Z') {
+            sb.append((char) (b + ('a' - 'A')));
+        } else {
+            sb.append((char) b);
+        }
+    }
+
+    static int u8(ByteBuffer msg, int offset) {
+        return msg.get(offset) & 0xFF;
+    }
+
+    static int u16(ByteBuffer msg, int offset) {
+        return msg.getShort(offset) & 0xFFFF;
+    }
+
+}
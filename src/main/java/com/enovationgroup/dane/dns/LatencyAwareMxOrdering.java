@@ -0,0 +1,202 @@
+package com.enovationgroup.dane.dns;
+
+import com.enovationgroup.dane.MailUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Orders email-servers with equal MX priority by a weighted shuffle,
+ * where the weight of a host is its recent success rate divided by its connect (plus handshake) latency,
+ * both tracked as exponentially weighted moving averages (EWMA).
+ * <br>Traffic is spread over equal-priority hosts, with a preference for the fastest healthy host.
+ * Hosts without results get the best weight in their priority class, so that they are tried.
+ * Hosts without a successful result have an unknown latency, their weight uses the worst latency seen.
+ * <br>Hosts without results for {@link #getIdleMillis()} are removed.
+ */
+public class LatencyAwareMxOrdering implements MxOrdering {
+
+    private static final LatencyAwareMxOrdering SHARED = new LatencyAwareMxOrdering();
+
+    /** Weight of a new result in the moving averages. */
+    @Getter @Setter
+    private double alpha = 0.2;
+    /** Minimum success rate used for weights, so failed hosts still get an occasional chance. */
+    @Getter @Setter
+    private double minSuccessRate = 0.05;
+    /** Hosts without results for this time are removed. */
+    @Getter @Setter
+    private long idleMillis = 3_600_000L;
+
+    private final ConcurrentHashMap<String, HostStats> hosts = new ConcurrentHashMap<>();
+    private final Supplier<Random> random;
+    /** Worst latency of all hosts, used for hosts with an unknown latency. */
+    private final DoubleAccumulator worstLatency = new DoubleAccumulator(Math::max, 0.0);
+    private final LongSupplier clock;
+    private final AtomicLong nextSweep = new AtomicLong();
+
+    public LatencyAwareMxOrdering() {
+        this(ThreadLocalRandom::current);
+    }
+
+    LatencyAwareMxOrdering(Supplier<Random> random) {
+        this(random, System::currentTimeMillis);
+    }
+
+    LatencyAwareMxOrdering(Supplier<Random> random, LongSupplier clock) {
+        this.random = random;
+        this.clock = clock;
+    }
+
+    /**
+     * Ordering shared by all users in this JVM.
+     */
+    public static LatencyAwareMxOrdering shared() {
+        return SHARED;
+    }
+
+    /**
+     * @param millis connect plus STARTTLS handshake time, ignored when not successful.
+     */
+    public void recordResult(String mxHost, long millis, boolean success) {
+
+        long now = clock.getAsLong();
+        evictIdle(now);
+        var stats = hosts.computeIfAbsent(MailUtil.lowerCase(mxHost), k -> new HostStats());
+        synchronized (stats) {
+            stats.lastUsed = now;
+            if (success) {
+                if (stats.latency == 0.0) {
+                    stats.latency = Math.max(1.0, millis);
+                } else {
+                    stats.latency += alpha * (Math.max(1.0, millis) - stats.latency);
+                }
+                worstLatency.accumulate(stats.latency);
+            }
+            if (stats.samples == 0) {
+                stats.successRate = (success ? 1.0 : 0.0);
+            } else {
+                stats.successRate += alpha * ((success ? 1.0 : 0.0) - stats.successRate);
+            }
+            stats.samples++;
+        }
+    }
+
+    /**
+     * @return the weight used for ordering, or -1 if there are no results for the host.
+     */
+    public double weight(String mxHost) {
+
+        var stats = hosts.get(MailUtil.lowerCase(mxHost));
+        if (stats == null) {
+            return -1.0;
+        }
+        synchronized (stats) {
+            if (stats.samples == 0) {
+                return -1.0;
+            }
+            double latency = (stats.latency > 0.0 ? stats.latency : Math.max(1.0, worstLatency.get()));
+            return Math.max(minSuccessRate, stats.successRate) / latency;
+        }
+    }
+
+    /**
+     * Amount of hosts with results.
+     */
+    public int size() {
+        return hosts.size();
+    }
+
+    /**
+     * Removes the hosts without results for {@link #getIdleMillis()}, at most once per idle period.
+     * A result recorded concurrently for a removed host is lost.
+     */
+    void evictIdle(long now) {
+
+        long sweepAt = nextSweep.get();
+        if (now < sweepAt || !nextSweep.compareAndSet(sweepAt, now + idleMillis)) {
+            return;
+        }
+        hosts.forEach((name, stats) -> {
+            synchronized (stats) {
+                if (now - stats.lastUsed >= idleMillis) {
+                    hosts.remove(name, stats);
+                }
+            }
+        });
+    }
+
+    @Override
+    public List<MxHost> order(List<MxHost> hosts) {
+
+        if (hosts.size() < 2) {
+            return hosts;
+        }
+        var ordered = new ArrayList<MxHost>(hosts.size());
+        int start = 0;
+        while (start < hosts.size()) {
+            int end = start + 1;
+            while (end < hosts.size() && hosts.get(end).getPriority() == hosts.get(start).getPriority()) {
+                end++;
+            }
+            ordered.addAll(shuffle(hosts.subList(start, end)));
+            start = end;
+        }
+        return ordered;
+    }
+
+    /**
+     * Weighted random order: each position is drawn from the remaining hosts with a chance proportional to the weight.
+     */
+    List<MxHost> shuffle(List<MxHost> equalPriority) {
+
+        if (equalPriority.size() < 2) {
+            return equalPriority;
+        }
+        var remaining = new ArrayList<>(equalPriority);
+        var weights = new ArrayList<Double>(remaining.size());
+        double best = 0.0;
+        for (var h : remaining) {
+            double w = weight(h.getHost());
+            weights.add(w);
+            best = Math.max(best, w);
+        }
+        for (int i = 0; i < weights.size(); i++) {
+            if (weights.get(i) < 0.0) {
+                weights.set(i, (best > 0.0 ? best : 1.0));
+            }
+        }
+        var rnd = random.get();
+        var shuffled = new ArrayList<MxHost>(remaining.size());
+        while (!remaining.isEmpty()) {
+            double total = weights.stream().mapToDouble(Double::doubleValue).sum();
+            double pick = rnd.nextDouble() * total;
+            int index = 0;
+            while (index < remaining.size() - 1 && (pick -= weights.get(index)) >= 0.0) {
+                index++;
+            }
+            shuffled.add(remaining.remove(index));
+            weights.remove(index);
+        }
+        return shuffled;
+    }
+
+    static class HostStats {
+        int samples;
+        long lastUsed;
+        /** 0 until the first successful result. */
+        double latency;
+        double successRate;
+    }
+
+}
@@ -0,0 +1,18 @@
+package com.enovationgroup.dane.dns;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Target of an MX record: the email-server host (lowercase, without trailing dot) and its priority.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MxHost {
+
+    private String host;
+    private int priority;
+
+}
@@ -0,0 +1,21 @@
+package com.enovationgroup.dane.dns;
+
+import java.util.List;
+
+/**
+ * Determines the order in which email-servers are tried.
+ * Implementations must keep the MX priority order (RFC 5321 section 5.1),
+ * only hosts with equal priority can be re-ordered.
+ */
+@FunctionalInterface
+public interface MxOrdering {
+
+    /** Keeps the order of the MX records (sorted by priority). */
+    MxOrdering PRIORITY = hosts -> hosts;
+
+    /**
+     * @param hosts sorted by priority, lowest (preferred) first.
+     */
+    List<MxHost> order(List<MxHost> hosts);
+
+}
@@ -10,13 +10,13 @@ import org.xbill.DNS.Section;
 import org.xbill.DNS.Type;
 
 import com.enovationgroup.dane.MailUtil;
+import com.enovationgroup.dane.jfr.MxLookupEvent;
 
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.Objects;
 import java.util.stream.Collectors;
 
 import lombok.extern.slf4j.Slf4j;
@@ -25,9 +25,15 @@ import lombok.extern.slf4j.Slf4j;
 public class MxResolver {
 
     private final DnsResolver resolver;
+    private final MxOrdering ordering;
 
     public MxResolver(DnsResolver resolver) {
+        this(resolver, MxOrdering.PRIORITY);
+    }
+
+    public MxResolver(DnsResolver resolver, MxOrdering ordering) {
         this.resolver = resolver;
+        this.ordering = ordering;
     }
 
     /**
@@ -38,12 +44,58 @@ public class MxResolver {
     }
 
     /**
-     * Return list of target MX domains in lowercase sorted by priority.
+     * Return list of target MX domains in lowercase sorted by priority,
+     * hosts with equal priority are ordered by the {@link MxOrdering}.
      * @param secure If false, use insecure DNS lookup.
      */
     public List<String> resolveMxDomains(String domain, boolean secure) throws IOException {
 
-        var records = resolveMxRecords(domain, secure).getSectionArray(Section.ANSWER);
+        return ordering.order(resolveMxHosts(domain, secure)).stream()
+            .map(MxHost::getHost)
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * The MX domains in the response, in the order of {@link #resolveMxDomains(String, boolean)}.
+     */
+    public List<String> toMxDomains(Message response) {
+
+        return ordering.order(toMxHosts(response)).stream()
+            .map(MxHost::getHost)
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Return list of target MX hosts in lowercase sorted by priority.
+     * @param secure If false, use insecure DNS lookup.
+     */
+    public List<MxHost> resolveMxHosts(String domain, boolean secure) throws IOException {
+
+        var event = new MxLookupEvent();
+        event.begin();
+        try {
+            var hosts = (resolver.isWireParsing() ?
+                    resolver.resolveWire(domain, newMxQuery(domain), secure, DnsWireParser::parseMxHosts) :
+                        toMxHosts(resolveMxRecords(domain, secure)));
+            if (event.isEnabled()) {
+                event.setMxCount(hosts.size());
+            }
+            return hosts;
+        } catch (IOException | RuntimeException e) {
+            event.failed(e);
+            throw e;
+        } finally {
+            if (event.isEnabled()) {
+                event.setDomain(domain);
+                event.setSecure(secure);
+            }
+            event.complete();
+        }
+    }
+
+    public List<MxHost> toMxHosts(Message response) {
+
+        var records = response.getSectionArray(Section.ANSWER);
         if (records == null || records.length == 0) {
             return Collections.emptyList();
         }
@@ -51,22 +103,24 @@ public class MxResolver {
             .filter(r -> r instanceof MXRecord)
             .map(r -> (MXRecord) r)
             .sorted(Comparator.comparing(MXRecord::getPriority))
-            .map(MXRecord::getTarget)
-            .filter(Objects::nonNull)
-            .map(r -> r.toString(true))
-            .map(StringUtils::strip)
-            .filter(StringUtils::isNotEmpty)
-            .map(MailUtil::lowerCase)
+            .filter(r -> r.getTarget() != null)
+            .map(r -> new MxHost(MailUtil.lowerCase(StringUtils.strip(r.getTarget().toString(true))), r.getPriority()))
+            .filter(h -> StringUtils.isNotEmpty(h.getHost()))
             .collect(Collectors.toList());
     }
 
     public Message resolveMxRecords(String domain, boolean secure) throws IOException {
 
+        return (secure ?
+                resolver.resolveSecure(domain, newMxQuery(domain)) :
+                    resolver.resolveInsecure(domain, newMxQuery(domain)));
+    }
+
+    Message newMxQuery(String domain) {
+
         log.debug("Resolving MX records for domain {}", domain);
         var queryRecord = Record.newRecord(Name.fromConstantString(resolver.toQualifiedDomain(domain)), Type.MX, DClass.IN);
-        return (secure ?
-                resolver.resolveSecure(domain, Message.newQuery(queryRecord)) :
-                    resolver.resolveInsecure(domain, Message.newQuery(queryRecord)));
+        return Message.newQuery(queryRecord);
     }
 
 }
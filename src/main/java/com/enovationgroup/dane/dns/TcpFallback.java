@@ -0,0 +1,116 @@
+package com.enovationgroup.dane.dns;
+
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Remembers which queries need TCP in {@link DnsResolver.TransportMode#AUTO} mode.
+ * <br>A query (upstream, name and type) needs TCP after a truncated UDP response or a UDP timeout
+ * (large responses that are fragmented are often dropped by firewalls).
+ * All queries to an upstream need TCP after {@link #UPSTREAM_TIMEOUTS} consecutive UDP timeouts,
+ * e.g. when UDP to the upstream is blocked.
+ */
+@Slf4j
+class TcpFallback {
+
+    static final int UPSTREAM_TIMEOUTS = 3;
+
+    private final Map<String, Long> queries = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, Upstream> upstreams = new ConcurrentHashMap<>();
+    private volatile long rememberNanos = TimeUnit.HOURS.toNanos(1L);
+    private volatile int maxQueries = 10_000;
+
+    void setRememberSeconds(int seconds) {
+        rememberNanos = TimeUnit.SECONDS.toNanos(seconds);
+    }
+
+    int getRememberSeconds() {
+        return (int) TimeUnit.NANOSECONDS.toSeconds(rememberNanos);
+    }
+
+    void setMaxQueries(int maxQueries) {
+        this.maxQueries = maxQueries;
+    }
+
+    boolean isTcpRequired(InetSocketAddress upstream, Record question) {
+
+        long now = System.nanoTime();
+        var state = upstreams.get(upstream);
+        if (state != null && now - state.tcpUntil < 0L) {
+            return true;
+        }
+        var expires = queries.get(key(upstream, question));
+        if (expires == null) {
+            return false;
+        }
+        if (now - expires >= 0L) {
+            queries.remove(key(upstream, question), expires);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Number of queries that currently need TCP, including expired queries that were not yet removed.
+     */
+    int size() {
+        return queries.size();
+    }
+
+    void truncated(InetSocketAddress upstream, Record question) {
+        remember(upstream, question);
+    }
+
+    void udpTimeout(InetSocketAddress upstream, Record question) {
+
+        remember(upstream, question);
+        var state = upstreams.computeIfAbsent(upstream, k -> new Upstream());
+        synchronized (state) {
+            if (++state.timeouts >= UPSTREAM_TIMEOUTS) {
+                log.info("{} consecutive UDP timeouts for DNS server {}, using TCP for all queries.", state.timeouts, upstream);
+                state.tcpUntil = System.nanoTime() + rememberNanos;
+                state.timeouts = 0;
+            }
+        }
+    }
+
+    void udpAnswered(InetSocketAddress upstream) {
+
+        var state = upstreams.get(upstream);
+        if (state != null) {
+            synchronized (state) {
+                state.timeouts = 0;
+            }
+        }
+    }
+
+    void remember(InetSocketAddress upstream, Record question) {
+
+        long now = System.nanoTime();
+        if (queries.size() >= maxQueries) {
+            queries.values().removeIf(expires -> now - expires >= 0L);
+            if (queries.size() >= maxQueries) {
+                queries.clear();
+            }
+        }
+        queries.put(key(upstream, question), now + rememberNanos);
+    }
+
+    static String key(InetSocketAddress upstream, Record question) {
+        return upstream + " " + question.getName().toString().toLowerCase() + " " + Type.string(question.getType());
+    }
+
+    static class Upstream {
+
+        int timeouts;
+        volatile long tcpUntil = System.nanoTime();
+    }
+
+}
@@ -0,0 +1,483 @@
+package com.enovationgroup.dane.dns;
+
+import org.xbill.DNS.CNAMERecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.DNAMERecord;
+import org.xbill.DNS.DNSKEYRecord;
+import org.xbill.DNS.DNSSEC;
+import org.xbill.DNS.DSRecord;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.NSEC3Record;
+import org.xbill.DNS.NSECRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.NameTooLongException;
+import org.xbill.DNS.RRSIGRecord;
+import org.xbill.DNS.RRset;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+import org.xbill.DNS.utils.base16;
+import org.xbill.DNS.utils.base32;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link DnsResolver} that validates DNSSEC signatures in-process,
+ * instead of relying on the AD flag set by a validating upstream resolver (e.g. unbound).
+ * <br>Secure queries are sent with the DO and CD flags, the upstream resolver only needs to return the DNSSEC records.
+ * Each answer RRset must have a valid RRSIG made with a DNSKEY of the signing zone.
+ * The DNSKEYs of a zone are validated with the DS records from the parent zone, up to the trust anchor (the root key by default).
+ * <br>Validated DNSKEYs are cached per zone for at most the TTL of the DNSKEY and DS records (and {@link #getMaxCacheSeconds()}),
+ * and never beyond the signature expiration. Repeat lookups under a known zone only need the answer RRset.
+ * <br>Only answer RRsets for the queried name and type (following validated CNAME and DNAME records) are accepted,
+ * other records are removed from the answer.
+ * An empty answer must be proven by a signed NSEC or NSEC3 record for the queried name and type.
+ * A wildcard answer must be accompanied by a signed NSEC or NSEC3 record proving that the queried name does not exist.
+ * <br>Insecure lookups are not validated.
+ */
+@Slf4j
+public class ValidatingDnsResolver extends DnsResolver {
+
+    /** Root zone KSK-2017, see https://data.iana.org/root-anchors/root-anchors.xml */
+    public static final DSRecord ROOT_ANCHOR = new DSRecord(Name.root, DClass.IN, 0L, 20326, DNSSEC.Algorithm.RSASHA256, DSRecord.Digest.SHA256,
+            base16.fromString("E06D44B80B8F1D39A95C0B0D7C65D08458E880409BBC683457104237C7F8EC8D"));
+
+    /** Maximum length of a chain of zones, protects against loops. */
+    static final int MAX_DEPTH = 32;
+
+    private static final base32 BASE32HEX = new base32(base32.Alphabet.BASE32HEX, false, false);
+
+    private final List<DSRecord> trustAnchors;
+    private final ConcurrentHashMap<Name, ZoneKeys> zoneKeys = new ConcurrentHashMap<>();
+    private final LongSupplier clock;
+
+    /** Upper bound for caching validated DNSKEYs of a zone. */
+    @Getter @Setter
+    private long maxCacheSeconds = 3_600L;
+
+    public ValidatingDnsResolver(String dnsHost, int dnsPort) {
+        this(dnsHost, dnsPort, List.of(ROOT_ANCHOR));
+    }
+
+    public ValidatingDnsResolver(String dnsHost, int dnsPort, List<DSRecord> trustAnchors) {
+        this(dnsHost, dnsPort, trustAnchors, System::currentTimeMillis);
+    }
+
+    ValidatingDnsResolver(String dnsHost, int dnsPort, List<DSRecord> trustAnchors, LongSupplier clock) {
+        super(dnsHost, dnsPort);
+        this.trustAnchors = trustAnchors;
+        this.clock = clock;
+    }
+
+    @Override
+    protected Message send(String domain, Message query, boolean secure) throws IOException {
+
+        if (!secure) {
+            return super.send(domain, query, false);
+        }
+        query.getHeader().setFlag(Flags.CD);
+        var response = sendQuery(domain, query, true);
+        validate(domain, query.getQuestion(), response);
+        return response;
+    }
+
+    /**
+     * Secure lookups are validated via {@link #send(String, Message, boolean)},
+     * the parser is applied to the validated response.
+     */
+    @Override
+    protected <T> T resolveWire(String domain, Message query, boolean secure, Function<ByteBuffer, T> parser) throws IOException {
+
+        if (!secure) {
+            return super.resolveWire(domain, query, false, parser);
+        }
+        var response = resolve(domain, query, true);
+        try {
+            return parser.apply(ByteBuffer.wrap(response.toWire()));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Invalid DNS response for domain " + domain + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Removes all cached DNSKEYs.
+     */
+    public void clearCache() {
+        zoneKeys.clear();
+    }
+
+    /**
+     * Zones with cached (validated and not expired) DNSKEYs.
+     */
+    public List<Name> getCachedZones() {
+
+        long now = clock.getAsLong();
+        var zones = new ArrayList<Name>();
+        zoneKeys.forEach((zone, keys) -> {
+            if (keys.expiresAt > now) {
+                zones.add(zone);
+            }
+        });
+        return zones;
+    }
+
+    /**
+     * Validates the answer for the question and removes all other records from the answer section.
+     * Only RRsets owned by the queried name (or the target of a validated CNAME or DNAME chain)
+     * with the queried type (or CNAME/DNAME) are accepted, a validly signed RRset for another name is not an answer.
+     */
+    void validate(String domain, Record question, Message response) throws IOException {
+
+        var rrsets = response.getSectionRRsets(Section.ANSWER);
+        var accepted = new ArrayList<RRset>();
+        var name = question.getName();
+        int qtype = question.getType();
+        for (int depth = 0; ; depth++) {
+            if (depth > MAX_DEPTH) {
+                throw new IOException("CNAME chain too long for " + question.getName() + ", lookup for domain " + domain);
+            }
+            var answer = find(rrsets, name, qtype);
+            if (answer != null) {
+                verifyAnswer(domain, answer, name, response);
+                accepted.add(answer);
+                break;
+            }
+            var cname = find(rrsets, name, Type.CNAME);
+            if (cname != null) {
+                verifyAnswer(domain, cname, name, response);
+                accepted.add(cname);
+                name = ((CNAMERecord) cname.first()).getTarget();
+                continue;
+            }
+            var dname = findDname(rrsets, name);
+            if (dname == null) {
+                // No (more) data for the name.
+                validateNoData(domain, name, qtype, response);
+                break;
+            }
+            verifyAnswer(domain, dname, dname.getName(), response);
+            accepted.add(dname);
+            try {
+                name = name.fromDNAME((DNAMERecord) dname.first());
+            } catch (NameTooLongException e) {
+                throw new IOException("Invalid DNAME target for " + name + ", lookup for domain " + domain, e);
+            }
+        }
+        response.removeAllRecords(Section.ANSWER);
+        for (var rrset : accepted) {
+            rrset.rrs().forEachRemaining(r -> response.addRecord((Record) r, Section.ANSWER));
+            rrset.sigs().forEachRemaining(r -> response.addRecord((Record) r, Section.ANSWER));
+        }
+    }
+
+    static RRset find(RRset[] rrsets, Name name, int type) {
+
+        for (var rrset : rrsets) {
+            if (rrset.getType() == type && rrset.getName().equals(name)) {
+                return rrset;
+            }
+        }
+        return null;
+    }
+
+    static RRset findDname(RRset[] rrsets, Name name) {
+
+        for (var rrset : rrsets) {
+            if (rrset.getType() == Type.DNAME && !rrset.getName().equals(name) && name.subdomain(rrset.getName())) {
+                return rrset;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Verifies the answer RRset, a wildcard expansion must be proven by an NSEC or NSEC3 record
+     * showing that the queried name does not exist.
+     */
+    void verifyAnswer(String domain, RRset rrset, Name qname, Message response) throws IOException {
+
+        var sig = verify(domain, rrset, 0);
+        if (!isWildcardExpansion(rrset, sig)) {
+            return;
+        }
+        // The name just below the closest encloser must not exist.
+        var nextCloser = new Name(qname, qname.labels() - 1 - (sig.getLabels() + 1));
+        for (RRset proof : response.getSectionRRsets(Section.AUTHORITY)) {
+            if (proof.getType() == Type.NSEC && covers((NSECRecord) proof.first(), nextCloser)
+                    || proof.getType() == Type.NSEC3 && covers((NSEC3Record) proof.first(), nextCloser)) {
+                var proofSig = verify(domain, proof, 0);
+                if (!isWildcardExpansion(proof, proofSig)) {
+                    return;
+                }
+            }
+        }
+        throw new IOException("Wildcard answer without DNSSEC proof for " + qname + " " + Type.string(rrset.getType()) + ", lookup for domain " + domain);
+    }
+
+    /**
+     * The signature covers fewer labels than the owner name (not counting the root label and a leading wildcard label).
+     */
+    static boolean isWildcardExpansion(RRset rrset, RRSIGRecord sig) {
+
+        var owner = rrset.getName();
+        int labels = owner.labels() - 1 - (owner.isWild() ? 1 : 0);
+        return sig.getLabels() < labels;
+    }
+
+    /**
+     * The NSEC record proves that no name exists between its owner and next name (canonical order).
+     */
+    static boolean covers(NSECRecord nsec, Name name) {
+
+        var owner = nsec.getName();
+        var next = nsec.getNext();
+        if (owner.compareTo(next) < 0) {
+            return owner.compareTo(name) < 0 && name.compareTo(next) < 0;
+        }
+        // Last NSEC record of the zone.
+        return owner.compareTo(name) < 0 && name.subdomain(next);
+    }
+
+    /**
+     * The NSEC3 record proves that no name exists with a hash between its owner hash and next hash
+     * (base32hex preserves the order of the hashes).
+     */
+    static boolean covers(NSEC3Record nsec3, Name name) throws IOException {
+
+        var owner = nsec3.getName();
+        if (owner.labels() < 2 || !name.subdomain(new Name(owner, 1))) {
+            return false;
+        }
+        String hash;
+        try {
+            hash = BASE32HEX.toString(nsec3.hashName(name));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unsupported NSEC3 hash algorithm " + nsec3.getHashAlgorithm(), e);
+        }
+        var ownerHash = owner.getLabelString(0).toUpperCase(Locale.ROOT);
+        var next = BASE32HEX.toString(nsec3.getNext()).toUpperCase(Locale.ROOT);
+        hash = hash.toUpperCase(Locale.ROOT);
+        if (ownerHash.compareTo(next) < 0) {
+            return ownerHash.compareTo(hash) < 0 && hash.compareTo(next) < 0;
+        }
+        // Last NSEC3 record of the zone.
+        return ownerHash.compareTo(hash) < 0 || hash.compareTo(next) < 0;
+    }
+
+    /**
+     * An empty answer must be proven by an NSEC or NSEC3 record for the name, without the queried type.
+     * <br>An NSEC or NSEC3 record of the parent zone at a delegation (NS but no SOA type) only proves
+     * the absence of DS records, the child zone can have any other type (RFC 4035 section 5.4, RFC 5155 section 8.9).
+     */
+    void validateNoData(String domain, Name qname, int qtype, Message response) throws IOException {
+
+        for (RRset rrset : response.getSectionRRsets(Section.AUTHORITY)) {
+            if (rrset.getType() == Type.NSEC && rrset.getName().equals(qname)) {
+                var nsec = (NSECRecord) rrset.first();
+                if (!nsec.hasType(qtype) && !nsec.hasType(Type.CNAME) && !isDelegation(nsec.hasType(Type.NS), nsec.hasType(Type.SOA), qtype)
+                        && !isWildcardExpansion(rrset, verify(domain, rrset, 0))) {
+                    return;
+                }
+            } else if (rrset.getType() == Type.NSEC3 && rrset.getName().labels() > 1) {
+                var nsec3 = (NSEC3Record) rrset.first();
+                var zone = new Name(rrset.getName(), 1);
+                if (qname.subdomain(zone) && matchesHash(nsec3, rrset.getName(), qname)
+                        && !nsec3.hasType(qtype) && !nsec3.hasType(Type.CNAME) && !isDelegation(nsec3.hasType(Type.NS), nsec3.hasType(Type.SOA), qtype)
+                        && !isWildcardExpansion(rrset, verify(domain, rrset, 0))) {
+                    return;
+                }
+            }
+        }
+        throw new IOException("Empty answer without DNSSEC proof for " + qname + " " + Type.string(qtype) + ", lookup for domain " + domain);
+    }
+
+    /**
+     * True for an NSEC(3) record of the parent zone at a delegation, which cannot prove the absence of the type.
+     */
+    static boolean isDelegation(boolean hasNs, boolean hasSoa, int qtype) {
+        return hasNs && !hasSoa && qtype != Type.DS;
+    }
+
+    static boolean matchesHash(NSEC3Record nsec3, Name owner, Name qname) throws IOException {
+
+        try {
+            return BASE32HEX.toString(nsec3.hashName(qname)).equalsIgnoreCase(owner.getLabelString(0));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unsupported NSEC3 hash algorithm " + nsec3.getHashAlgorithm(), e);
+        }
+    }
+
+    /**
+     * Verifies the RRset with the DNSKEYs of the signing zone.
+     * @return the signature that verified the RRset.
+     */
+    RRSIGRecord verify(String domain, RRset rrset, int depth) throws IOException {
+
+        if (depth > MAX_DEPTH) {
+            throw new IOException("DNSSEC chain too long for " + rrset.getName() + ", lookup for domain " + domain);
+        }
+        var sigs = signatures(rrset);
+        if (sigs.isEmpty()) {
+            throw new IOException("No DNSSEC signature for " + rrset.getName() + " " + Type.string(rrset.getType()) + ", lookup for domain " + domain);
+        }
+        IOException failure = null;
+        for (var sig : sigs) {
+            if (!rrset.getName().subdomain(sig.getSigner())) {
+                continue;
+            }
+            try {
+                var keys = zoneKeys(domain, sig.getSigner(), depth + 1);
+                var verified = verifyWithKeys(domain, rrset, List.of(sig), keys);
+                if (verified != null) {
+                    return verified;
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        throw new IOException("DNSSEC validation failed for " + rrset.getName() + " " + Type.string(rrset.getType()) + ", lookup for domain " + domain);
+    }
+
+    /**
+     * @return the signature verified by one of the keys, or null.
+     */
+    RRSIGRecord verifyWithKeys(String domain, RRset rrset, List<RRSIGRecord> sigs, List<DNSKEYRecord> keys) {
+
+        var now = new Date(clock.getAsLong());
+        for (var sig : sigs) {
+            for (var key : keys) {
+                if (key.getFootprint() != sig.getFootprint() || key.getAlgorithm() != sig.getAlgorithm()) {
+                    continue;
+                }
+                try {
+                    DNSSEC.verify(rrset, sig, key, now);
+                    return sig;
+                } catch (DNSSEC.DNSSECException e) {
+                    log.debug("Signature for {} {} not verified with key {} of {}: {}",
+                            rrset.getName(), Type.string(rrset.getType()), key.getFootprint(), key.getName(), e.toString());
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Validated DNSKEYs for the zone, from cache or validated via the DS records in the parent zone (or a trust anchor).
+     */
+    List<DNSKEYRecord> zoneKeys(String domain, Name zone, int depth) throws IOException {
+
+        long now = clock.getAsLong();
+        var cached = zoneKeys.get(zone);
+        if (cached != null && cached.expiresAt > now) {
+            return cached.keys;
+        }
+        var keySet = queryRRset(domain, zone, Type.DNSKEY);
+        var keys = new ArrayList<DNSKEYRecord>();
+        keySet.rrs().forEachRemaining(r -> {
+            // Only zone keys can sign zone data (RFC 4034 section 2.1.1).
+            if ((((DNSKEYRecord) r).getFlags() & DNSKEYRecord.Flags.ZONE_KEY) != 0) {
+                keys.add((DNSKEYRecord) r);
+            }
+        });
+        long ttl = Math.min(keySet.getTTL(), maxCacheSeconds);
+        long expiresAt = Long.MAX_VALUE;
+
+        var dsRecords = new ArrayList<DSRecord>();
+        trustAnchors.stream().filter(ds -> ds.getName().equals(zone)).forEach(dsRecords::add);
+        if (dsRecords.isEmpty()) {
+            if (zone.equals(Name.root)) {
+                throw new IOException("No trust anchor for the root zone, lookup for domain " + domain);
+            }
+            var dsSet = queryRRset(domain, zone, Type.DS);
+            var dsSig = verify(domain, dsSet, depth);
+            if (isWildcardExpansion(dsSet, dsSig)) {
+                throw new IOException("Wildcard DS records for zone " + zone + ", lookup for domain " + domain);
+            }
+            dsSet.rrs().forEachRemaining(r -> dsRecords.add((DSRecord) r));
+            ttl = Math.min(ttl, dsSet.getTTL());
+            expiresAt = dsSig.getExpire().getTime();
+        }
+        var entryKeys = new ArrayList<DNSKEYRecord>();
+        for (var key : keys) {
+            if (dsRecords.stream().anyMatch(ds -> matches(ds, key))) {
+                entryKeys.add(key);
+            }
+        }
+        if (entryKeys.isEmpty()) {
+            throw new IOException("No DNSKEY matches the DS records for zone " + zone + ", lookup for domain " + domain);
+        }
+        var keySig = verifyWithKeys(domain, keySet, signatures(keySet), entryKeys);
+        if (keySig == null || isWildcardExpansion(keySet, keySig)) {
+            throw new IOException("DNSSEC validation failed for DNSKEY records of zone " + zone + ", lookup for domain " + domain);
+        }
+        expiresAt = Math.min(expiresAt, keySig.getExpire().getTime());
+        expiresAt = Math.min(expiresAt, now + ttl * 1_000L);
+        log.debug("Validated {} DNSKEY record(s) for zone {}, cached for {} seconds.", keys.size(), zone, (expiresAt - now) / 1_000L);
+        zoneKeys.put(zone, new ZoneKeys(keys, expiresAt));
+        return keys;
+    }
+
+    static boolean matches(DSRecord ds, DNSKEYRecord key) {
+
+        if (ds.getFootprint() != key.getFootprint() || ds.getAlgorithm() != key.getAlgorithm()) {
+            return false;
+        }
+        try {
+            var digest = new DSRecord(key.getName(), key.getDClass(), 0L, ds.getDigestID(), key).getDigest();
+            return Arrays.equals(digest, ds.getDigest());
+        } catch (IllegalArgumentException e) {
+            // unsupported digest type
+            return false;
+        }
+    }
+
+    RRset queryRRset(String domain, Name name, int type) throws IOException {
+
+        var query = Message.newQuery(Record.newRecord(name, type, DClass.IN));
+        query.getHeader().setFlag(Flags.CD);
+        var response = sendQuery(domain, query, true);
+        for (RRset rrset : response.getSectionRRsets(Section.ANSWER)) {
+            if (rrset.getType() == type && rrset.getName().equals(name)) {
+                return rrset;
+            }
+        }
+        throw new IOException("No " + Type.string(type) + " records for " + name + ", insecure or broken DNSSEC chain for domain " + domain);
+    }
+
+    static List<RRSIGRecord> signatures(RRset rrset) {
+
+        var sigs = new ArrayList<RRSIGRecord>();
+        rrset.sigs().forEachRemaining(r -> sigs.add((RRSIGRecord) r));
+        return sigs;
+    }
+
+    static class ZoneKeys {
+
+        final List<DNSKEYRecord> keys;
+        final long expiresAt;
+
+        ZoneKeys(List<DNSKEYRecord> keys, long expiresAt) {
+            this.keys = keys;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+package com.enovationgroup.dane.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Base for the Java Flight Recorder events of this library.
+ * <br>Events are used as follows, fields should only be set when the event will be committed:
+ * <pre>
+ * var event = new MxLookupEvent();
+ * event.begin();
+ * ... lookup ...
+ * if (event.isEnabled()) {
+ *     event.setDomain(domain);
+ * }
+ * event.complete();
+ * </pre>
+ * When recording is off, only the (usually scalar replaced) event object is created.
+ */
+@Category({ "DANE" })
+@StackTrace(false)
+@Getter @Setter
+public abstract class DaneEvent extends Event {
+
+    public static final String OK = "ok";
+
+    // Fields of a super class are only recorded when not private.
+
+    @Label("Delivery Id")
+    protected String deliveryId;
+
+    @Label("Outcome")
+    protected String outcome;
+
+    /**
+     * Sets the outcome to the failure if there is one.
+     */
+    public void failed(Throwable t) {
+        outcome = (t == null ? null : t.toString());
+    }
+
+    /**
+     * Ends and commits the event if recording is on and the duration exceeds the threshold.
+     * The outcome defaults to {@link #OK}.
+     */
+    public void complete() {
+
+        end();
+        if (shouldCommit()) {
+            deliveryId = DeliveryTrace.current();
+            if (outcome == null) {
+                outcome = OK;
+            }
+            commit();
+        }
+    }
+
+}
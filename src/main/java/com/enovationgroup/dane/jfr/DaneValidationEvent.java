@@ -0,0 +1,32 @@
+package com.enovationgroup.dane.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import lombok.Getter;
+import lombok.Setter;
+
+@Name("com.enovationgroup.dane.DaneValidation")
+@Label("DANE Validation")
+@Description("Validation of the server certificate chain against the TLSA records.")
+@Category({ "DANE", "SMTP" })
+@Getter @Setter
+public class DaneValidationEvent extends DaneEvent {
+
+    @Label("Domain")
+    private String domain;
+
+    @Label("MX Host")
+    private String mxHost;
+
+    @Label("Chain Length")
+    private int chainLength;
+
+    @Label("TLSA Records")
+    private int recordCount;
+
+    @Label("Matched Usage")
+    private String matchedUsage;
+
+}
@@ -0,0 +1,67 @@
+package com.enovationgroup.dane.jfr;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivery id for the current thread, added to all {@link DaneEvent}s so that
+ * the MX lookup, TLSA lookup, DNS queries, connect and DANE validation of one delivery can be linked.
+ * <br>Usage:
+ * <pre>
+ * try (var trace = DeliveryTrace.begin()) {
+ *     ... resolve and connect ...
+ * }
+ * </pre>
+ * A delivery id is not passed to other threads, tasks running on an executor must begin their own trace.
+ */
+public class DeliveryTrace implements AutoCloseable {
+
+    private static final ThreadLocal<String> current = new ThreadLocal<>();
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private final String deliveryId;
+    private final String previous;
+
+    private DeliveryTrace(String deliveryId, String previous) {
+        this.deliveryId = deliveryId;
+        this.previous = previous;
+    }
+
+    /**
+     * Begins a trace with a new delivery id, unique within this JVM.
+     */
+    public static DeliveryTrace begin() {
+        return begin(Long.toString(sequence.incrementAndGet(), 36));
+    }
+
+    public static DeliveryTrace begin(String deliveryId) {
+
+        var trace = new DeliveryTrace(deliveryId, current.get());
+        current.set(deliveryId);
+        return trace;
+    }
+
+    /**
+     * The delivery id for the current thread or null.
+     */
+    public static String current() {
+        return current.get();
+    }
+
+    public String getDeliveryId() {
+        return deliveryId;
+    }
+
+    /**
+     * Restores the delivery id that was current when this trace began.
+     */
+    @Override
+    public void close() {
+
+        if (previous == null) {
+            current.remove();
+        } else {
+            current.set(previous);
+        }
+    }
+
+}
@@ -0,0 +1,35 @@
+package com.enovationgroup.dane.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import lombok.Getter;
+import lombok.Setter;
+
+@Name("com.enovationgroup.dane.DnsQuery")
+@Label("DNS Query")
+@Description("One DNS query sent to the upstream resolver.")
+@Category({ "DANE", "DNS" })
+@Getter @Setter
+public class DnsQueryEvent extends DaneEvent {
+
+    @Label("Name")
+    private String name;
+
+    @Label("Type")
+    private String type;
+
+    @Label("Upstream")
+    private String upstream;
+
+    @Label("Transport")
+    private String transport;
+
+    @Label("Secure")
+    private boolean secure;
+
+    @Label("Answers")
+    private int answerCount;
+
+}
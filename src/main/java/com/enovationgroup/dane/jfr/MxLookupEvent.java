@@ -0,0 +1,26 @@
+package com.enovationgroup.dane.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import lombok.Getter;
+import lombok.Setter;
+
+@Name("com.enovationgroup.dane.MxLookup")
+@Label("MX Lookup")
+@Description("MX records lookup for a recipient domain.")
+@Category({ "DANE", "DNS" })
+@Getter @Setter
+public class MxLookupEvent extends DaneEvent {
+
+    @Label("Domain")
+    private String domain;
+
+    @Label("Secure")
+    private boolean secure;
+
+    @Label("MX Hosts")
+    private int mxCount;
+
+}
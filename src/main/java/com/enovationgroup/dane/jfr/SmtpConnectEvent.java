@@ -0,0 +1,26 @@
+package com.enovationgroup.dane.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import lombok.Getter;
+import lombok.Setter;
+
+@Name("com.enovationgroup.dane.SmtpConnect")
+@Label("SMTP Connect")
+@Description("TCP connect, greeting, EHLO, STARTTLS (including DANE validation) and second EHLO.")
+@Category({ "DANE", "SMTP" })
+@Getter @Setter
+public class SmtpConnectEvent extends DaneEvent {
+
+    @Label("MX Host")
+    private String mxHost;
+
+    @Label("Port")
+    private int port;
+
+    @Label("Local Address")
+    private String localAddress;
+
+}
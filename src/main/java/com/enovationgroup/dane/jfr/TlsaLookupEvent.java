@@ -0,0 +1,26 @@
+package com.enovationgroup.dane.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import lombok.Getter;
+import lombok.Setter;
+
+@Name("com.enovationgroup.dane.TlsaLookup")
+@Label("TLSA Lookup")
+@Description("TLSA records lookup for an MX host.")
+@Category({ "DANE", "DNS" })
+@Getter @Setter
+public class TlsaLookupEvent extends DaneEvent {
+
+    @Label("Domain")
+    private String domain;
+
+    @Label("MX Host")
+    private String mxHost;
+
+    @Label("TLSA Records")
+    private int recordCount;
+
+}
@@ -0,0 +1,82 @@
+package com.enovationgroup.dane.sidecar;
+
+import com.enovationgroup.dane.dns.DaneRecord;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+/**
+ * Binary protocol between {@link RemoteDaneResolver} and {@link DaneLookupServer}.
+ * <br>Request: op (u8), request id (i32), domain (UTF), for {@link #OP_TLSA} also the email-server (UTF).
+ * <br>Response: request id (i32), status (u8), for {@link #STATUS_OK} the email-server count (u16) and per email-server
+ * the host (UTF), the record count (u16) and per record the usage, selector and matching type (u8 each)
+ * followed by the association data length (u16) and data. For {@link #STATUS_ERROR} the error message (UTF).
+ * <br>UTF is the {@link DataOutputStream#writeUTF(String)} format.
+ */
+public class DaneLookupProtocol {
+
+    /** Email-servers with DANE records for a domain, as {@link com.enovationgroup.dane.dns.DaneResolver#resolveDaneRecords(String)}. */
+    public static final int OP_DOMAIN = 1;
+    /** DANE records for one email-server, as {@link com.enovationgroup.dane.dns.DaneResolver#resolveDaneRecord(String, String)}. */
+    public static final int OP_TLSA = 2;
+
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_ERROR = 1;
+
+    private DaneLookupProtocol() {}
+
+    public static void writeRecords(DataOutputStream out, LinkedHashMap<String, Collection<DaneRecord>> servers) throws IOException {
+
+        out.writeShort(servers.size());
+        for (var server : servers.entrySet()) {
+            out.writeUTF(server.getKey());
+            out.writeShort(server.getValue().size());
+            for (var record : server.getValue()) {
+                out.writeByte(record.getCertificateUsage().value());
+                out.writeByte(record.getSelector().value());
+                out.writeByte(record.getMatchingType().value());
+                var data = record.getCertificateAssociationData();
+                out.writeShort(data == null ? 0 : data.length);
+                if (data != null) {
+                    out.write(data);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param mxDomain the recipient domain set in each record.
+     */
+    public static LinkedHashMap<String, Collection<DaneRecord>> readRecords(DataInputStream in, String mxDomain) throws IOException {
+
+        int serverCount = in.readUnsignedShort();
+        var servers = new LinkedHashMap<String, Collection<DaneRecord>>();
+        for (int i = 0; i < serverCount; i++) {
+            var host = in.readUTF();
+            int recordCount = in.readUnsignedShort();
+            var records = new HashSet<DaneRecord>();
+            for (int j = 0; j < recordCount; j++) {
+                var record = new DaneRecord();
+                record.setMxDomain(mxDomain);
+                record.setDomain(host);
+                record.setCertificateUsage(DaneRecord.CertificateUsage.find(in.readUnsignedByte())
+                        .orElseThrow(() -> new IOException("Invalid certificate usage in DANE lookup response.")));
+                record.setSelector(DaneRecord.Selector.find(in.readUnsignedByte())
+                        .orElseThrow(() -> new IOException("Invalid selector in DANE lookup response.")));
+                record.setMatchingType(DaneRecord.MatchingType.find(in.readUnsignedByte())
+                        .orElseThrow(() -> new IOException("Invalid matching type in DANE lookup response.")));
+                var data = new byte[in.readUnsignedShort()];
+                in.readFully(data);
+                record.setCertificateAssociationData(data);
+                records.add(record);
+            }
+            servers.put(host, records);
+        }
+        return servers;
+    }
+
+}
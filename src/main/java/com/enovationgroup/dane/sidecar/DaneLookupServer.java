@@ -0,0 +1,320 @@
+package com.enovationgroup.dane.sidecar;
+
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+
+import com.enovationgroup.dane.MailUtil;
+import com.enovationgroup.dane.dns.DaneRecord;
+import com.enovationgroup.dane.dns.DaneResolver;
+import com.enovationgroup.dane.dns.DnsResolver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Sidecar that owns a {@link DaneResolver} and its cache and serves DANE lookups to co-located MTAs
+ * (using {@link RemoteDaneResolver}) over the {@link DaneLookupProtocol} on a loopback port.
+ * All MTAs on a host then share one cache and one set of upstream DNS connections.
+ * <br>The server does the MX and TLSA lookups itself: a failed lookup (e.g. SERVFAIL or a bogus answer)
+ * for the domain or any of its email-servers is returned as an error, not as "no DANE records".
+ * <br>Successful lookups are cached for the lowest TTL of the DNS answers, at most {@link #getCacheSeconds()}.
+ * Concurrent lookups for the same name wait for the same (in-flight) lookup. Failed lookups are not cached.
+ */
+@Slf4j
+public class DaneLookupServer implements AutoCloseable {
+
+    private final DaneResolver resolver;
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    private final Map<String, CacheEntry> cache = new ConcurrentHashMap<>();
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    private final LongSupplier clock;
+
+    /** Upper bound for caching a lookup. */
+    @Getter @Setter
+    private int cacheSeconds = 300;
+    /** When the cache is full, expired entries are removed. If that is not enough, the cache is cleared. */
+    @Getter @Setter
+    private int maxCacheEntries = 100_000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        if (args == null || args.length < 3) {
+            System.out.println("Provide arguments: DNS host, DNS port, listen port (on the loopback address).");
+            return;
+        }
+        var resolver = new DaneResolver(new DnsResolver(args[0], Integer.parseInt(args[1])));
+        var server = new DaneLookupServer(resolver, Integer.parseInt(args[2]));
+        log.info("DANE lookup server listening on port {}.", server.getPort());
+        // Server threads are daemon threads.
+        Thread.currentThread().join();
+    }
+
+    /**
+     * Listens on a random port on the loopback address, see {@link #getPort()}.
+     */
+    public DaneLookupServer(DaneResolver resolver) throws IOException {
+        this(resolver, 0);
+    }
+
+    public DaneLookupServer(DaneResolver resolver, int port) throws IOException {
+        this(resolver, port, System::currentTimeMillis);
+    }
+
+    DaneLookupServer(DaneResolver resolver, int port, LongSupplier clock) throws IOException {
+
+        this.resolver = resolver;
+        this.clock = clock;
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        var threadCount = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(r -> {
+            var thread = new Thread(r, "dane-lookup-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.execute(this::acceptLoop);
+    }
+
+    public String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    public void clearCache() {
+        cache.clear();
+    }
+
+    void acceptLoop() {
+
+        while (!closed) {
+            try {
+                var socket = serverSocket.accept();
+                executor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    log.warn("Accepting DANE lookup connection failed: {}", e.toString());
+                }
+            }
+        }
+    }
+
+    void serve(Socket socket) {
+
+        connections.add(socket);
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (!closed) {
+                int op;
+                try {
+                    op = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                int id = in.readInt();
+                var name = in.readUTF();
+                if (op == DaneLookupProtocol.OP_TLSA) {
+                    name = in.readUTF();
+                } else if (op != DaneLookupProtocol.OP_DOMAIN) {
+                    throw new IOException("Unknown DANE lookup operation " + op);
+                }
+                out.writeInt(id);
+                try {
+                    var body = lookup(op, name);
+                    out.writeByte(DaneLookupProtocol.STATUS_OK);
+                    out.write(body);
+                } catch (IOException e) {
+                    out.writeByte(DaneLookupProtocol.STATUS_ERROR);
+                    out.writeUTF(String.valueOf(e.getMessage()));
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                log.debug("DANE lookup connection closed: {}", e.toString());
+            }
+        } finally {
+            connections.remove(socket);
+        }
+    }
+
+    /**
+     * @return the encoded response body for a successful lookup.
+     */
+    byte[] lookup(int op, String name) throws IOException {
+
+        var key = op + ":" + MailUtil.lowerCase(name);
+        long now = clock.getAsLong();
+        var created = new CacheEntry();
+        var entry = cache.compute(key, (k, v) -> (v == null || v.isExpired(now) ? created : v));
+        if (entry == created) {
+            evict(now);
+            try {
+                var lookup = (op == DaneLookupProtocol.OP_TLSA ? resolveTlsa(name) : resolveDomain(name));
+                entry.expires = now + Math.min(lookup.ttl, cacheSeconds) * 1_000L;
+                entry.future.complete(encode(lookup.servers));
+            } catch (IOException | RuntimeException e) {
+                cache.remove(key, entry);
+                entry.future.completeExceptionally(e);
+            }
+        } else {
+            log.trace("DANE lookup cache hit for {}.", key);
+        }
+        try {
+            return entry.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for DANE lookup of " + name, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("DANE lookup of " + name + " failed: " + e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * Like {@link DaneResolver#resolveDaneRecords(String)}, but a failed TLSA lookup fails the lookup for the domain.
+     */
+    Lookup resolveDomain(String mxDomain) throws IOException {
+
+        var mxResolver = resolver.getMxResolver();
+        var response = mxResolver.resolveMxRecords(mxDomain, resolver.isResolveMxSecure());
+        var lookup = new Lookup(minTtl(response));
+        for (String emailServer : mxResolver.toMxDomains(response)) {
+            var tlsa = resolver.resolveTlsaRecords(emailServer);
+            lookup.ttl = Math.min(lookup.ttl, minTtl(tlsa));
+            var daneRecords = resolver.toDaneRecords(mxDomain, emailServer, tlsa);
+            if (!daneRecords.isEmpty()) {
+                lookup.servers.put(emailServer, daneRecords);
+            }
+        }
+        return lookup;
+    }
+
+    Lookup resolveTlsa(String emailServer) throws IOException {
+
+        var tlsa = resolver.resolveTlsaRecords(emailServer);
+        var lookup = new Lookup(minTtl(tlsa));
+        lookup.servers.put(emailServer, resolver.toDaneRecords(null, emailServer, tlsa));
+        return lookup;
+    }
+
+    /**
+     * Lowest TTL of the answer and authority records (the SOA record limits caching of an empty answer).
+     */
+    long minTtl(Message response) {
+
+        long ttl = cacheSeconds;
+        for (int section : new int[] { Section.ANSWER, Section.AUTHORITY }) {
+            for (Record r : response.getSectionArray(section)) {
+                ttl = Math.min(ttl, r.getTTL());
+                if (r instanceof SOARecord) {
+                    ttl = Math.min(ttl, ((SOARecord) r).getMinimum());
+                }
+            }
+        }
+        return ttl;
+    }
+
+    void evict(long now) {
+
+        if (cache.size() <= maxCacheEntries) {
+            return;
+        }
+        cache.values().removeIf(e -> e.isExpired(now));
+        if (cache.size() > maxCacheEntries) {
+            log.info("DANE lookup cache is full ({} entries), clearing cache.", cache.size());
+            cache.clear();
+        }
+    }
+
+    static class Lookup {
+
+        final LinkedHashMap<String, Collection<DaneRecord>> servers = new LinkedHashMap<>();
+        long ttl;
+
+        Lookup(long ttl) {
+            this.ttl = ttl;
+        }
+    }
+
+    static byte[] encode(LinkedHashMap<String, Collection<DaneRecord>> servers) throws IOException {
+
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(bytes)) {
+            DaneLookupProtocol.writeRecords(out, servers);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public void close() {
+
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            log.debug("Closing DANE lookup server socket failed: {}", e.toString());
+        }
+        for (var socket : connections) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.debug("Closing DANE lookup connection failed: {}", e.toString());
+            }
+        }
+        executor.shutdownNow();
+    }
+
+    static class CacheEntry {
+
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        /** Set before the future completes. */
+        volatile long expires;
+
+        boolean isExpired(long now) {
+            return future.isDone() && now - expires >= 0L;
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+package com.enovationgroup.dane.sidecar;
+
+import com.enovationgroup.dane.dns.DaneRecord;
+import com.enovationgroup.dane.dns.DaneResolver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link DaneResolver} that delegates lookups to a {@link DaneLookupServer} on the same host.
+ * Connections to the server are kept open and re-used by all threads.
+ * <br>Only the methods for DANE records are supported, methods that return DNS messages
+ * (e.g. {@link #resolveTlsaRecords(String)}) cannot be used.
+ */
+@Slf4j
+public class RemoteDaneResolver extends DaneResolver implements AutoCloseable {
+
+    private final InetSocketAddress address;
+    private final BlockingQueue<Connection> idle;
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    @Getter @Setter
+    private int connectTimeoutMillis = 1_000;
+    @Getter @Setter
+    private int readTimeoutMillis = 30_000;
+
+    public RemoteDaneResolver(int port) {
+        this("127.0.0.1", port, 8);
+    }
+
+    /**
+     * @param maxIdleConnections maximum number of open connections that are not in use.
+     */
+    public RemoteDaneResolver(String host, int port, int maxIdleConnections) {
+
+        super(null);
+        this.address = new InetSocketAddress(host, port);
+        this.idle = new ArrayBlockingQueue<>(maxIdleConnections);
+    }
+
+    @Override
+    public LinkedHashMap<String, Collection<DaneRecord>> resolveDaneRecords(String mxDomain) throws IOException {
+        return request(DaneLookupProtocol.OP_DOMAIN, mxDomain, null);
+    }
+
+    @Override
+    public Collection<DaneRecord> resolveDaneRecord(String mxDomain, String emailServer) throws IOException {
+
+        var servers = request(DaneLookupProtocol.OP_TLSA, mxDomain, emailServer);
+        var records = servers.get(emailServer);
+        if (records == null) {
+            throw new IOException("DANE lookup server did not return records for " + emailServer);
+        }
+        return records;
+    }
+
+    /**
+     * Each domain is looked up by the server, which shares the TLSA lookups for an email-server between domains in its cache.
+     * Unlike {@link DaneResolver#resolveDaneRecords(Collection)}, records are not shared between domains.
+     */
+    @Override
+    public LinkedHashMap<String, LinkedHashMap<String, Collection<DaneRecord>>> resolveDaneRecords(Collection<String> mxDomains) {
+
+        var result = new LinkedHashMap<String, LinkedHashMap<String, Collection<DaneRecord>>>();
+        for (String mxDomain : mxDomains) {
+            if (result.containsKey(mxDomain)) {
+                continue;
+            }
+            try {
+                result.put(mxDomain, resolveDaneRecords(mxDomain));
+            } catch (IOException e) {
+                log.info("DANE records lookup for domain {} failed: {}", mxDomain, e.toString());
+                result.put(mxDomain, new LinkedHashMap<>());
+            }
+        }
+        return result;
+    }
+
+    LinkedHashMap<String, Collection<DaneRecord>> request(int op, String mxDomain, String emailServer) throws IOException {
+
+        var connection = idle.poll();
+        if (connection == null) {
+            connection = new Connection();
+        }
+        int id = nextId.incrementAndGet();
+        LinkedHashMap<String, Collection<DaneRecord>> servers = null;
+        String error = null;
+        try {
+            connection.out.writeByte(op);
+            connection.out.writeInt(id);
+            connection.out.writeUTF(mxDomain == null ? "" : mxDomain);
+            if (op == DaneLookupProtocol.OP_TLSA) {
+                connection.out.writeUTF(emailServer);
+            }
+            connection.out.flush();
+            int responseId = connection.in.readInt();
+            if (responseId != id) {
+                throw new IOException("DANE lookup response for request " + responseId + " instead of " + id);
+            }
+            if (connection.in.readUnsignedByte() == DaneLookupProtocol.STATUS_OK) {
+                servers = DaneLookupProtocol.readRecords(connection.in, mxDomain);
+            } else {
+                error = connection.in.readUTF();
+            }
+        } catch (IOException | RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+        if (!idle.offer(connection)) {
+            connection.close();
+        }
+        if (error != null) {
+            throw new IOException(error);
+        }
+        return servers;
+    }
+
+    @Override
+    public void close() {
+
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    class Connection {
+
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        Connection() throws IOException {
+
+            socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(readTimeoutMillis);
+                socket.connect(address, connectTimeoutMillis);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            } catch (IOException e) {
+                socket.close();
+                throw new IOException("Cannot connect to DANE lookup server at " + address + ": " + e.getMessage(), e);
+            }
+        }
+
+        void close() {
+
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.debug("Closing connection to DANE lookup server failed: {}", e.toString());
+            }
+        }
+    }
+
+}
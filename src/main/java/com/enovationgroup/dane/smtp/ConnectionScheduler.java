@@ -0,0 +1,380 @@
+package com.enovationgroup.dane.smtp;
+
+import com.enovationgroup.dane.MailUtil;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs outbound connection tasks while enforcing the per-MX and per-domain {@link DestinationLimits}.
+ * <br>Tasks are queued per MX host. A producer submitting a task for an MX host with a full queue is blocked
+ * until the queue has room again (backpressure). Tasks for a domain at its limits do not block
+ * the tasks for other domains queued for the same MX host.
+ * <br>When a task fails with a throttling reply (see {@link SmtpReplies#isThrottled(Throwable)}),
+ * the concurrency and rate limits for the MX host are halved. Each series of successful connections
+ * as large as the current concurrency limit raises the limits again.
+ */
+@Slf4j
+public class ConnectionScheduler implements AutoCloseable {
+
+    @FunctionalInterface
+    public interface ConnectionTask<T> {
+        T run() throws Exception;
+    }
+
+    private final DestinationLimits limits;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition queueNotFull = lock.newCondition();
+    private final Map<String, Limiter> mxLimiters = new HashMap<>();
+    private final Map<String, Limiter> domainLimiters = new HashMap<>();
+    private long wakeupAt = Long.MAX_VALUE;
+    private volatile boolean closed;
+
+    public ConnectionScheduler(DestinationLimits limits) {
+        this(limits, Executors.newCachedThreadPool());
+    }
+
+    public ConnectionScheduler(DestinationLimits limits, ExecutorService executor) {
+        this.limits = limits;
+        this.executor = executor;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, "connection-scheduler-timer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Queues the task, blocks while the queue for the MX host is full.
+     */
+    public <T> CompletableFuture<T> submit(String domain, String mxHost, ConnectionTask<T> task) throws InterruptedException {
+        return submit(domain, mxHost, task, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Queues the task, waits at most the given time while the queue for the MX host is full.
+     * @throws RejectedExecutionException when the queue is still full after waiting or the scheduler is closed.
+     */
+    public <T> CompletableFuture<T> submit(String domain, String mxHost, ConnectionTask<T> task, long timeout, TimeUnit unit) throws InterruptedException {
+
+        var job = new Job<T>(MailUtil.lowerCase(domain), MailUtil.lowerCase(mxHost), task);
+        long waitNanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            var mx = mxLimiter(job.mxHost);
+            while (mx.queue.size() >= limits.getQueueCapacityPerMx()) {
+                if (closed) {
+                    throw new RejectedExecutionException("Connection scheduler is closed.");
+                }
+                if (waitNanos <= 0L) {
+                    throw new RejectedExecutionException("Connection queue for " + job.mxHost + " is full.");
+                }
+                waitNanos = queueNotFull.awaitNanos(waitNanos);
+                // limiter can be removed while waiting
+                mx = mxLimiter(job.mxHost);
+            }
+            if (closed) {
+                throw new RejectedExecutionException("Connection scheduler is closed.");
+            }
+            mx.queue.add(job);
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+        return job.future;
+    }
+
+    public int getConnectionLimit(String mxHost) {
+        return withLimiter(mxHost, l -> l.connectionsLimit(), limits.getMaxConnectionsPerMx());
+    }
+
+    public double getConnectsPerSecondLimit(String mxHost) {
+        return withLimiter(mxHost, l -> l.rateLimit, limits.getMaxConnectsPerSecondPerMx());
+    }
+
+    public int getActive(String mxHost) {
+        return withLimiter(mxHost, l -> l.active, 0);
+    }
+
+    public int getQueued(String mxHost) {
+        return withLimiter(mxHost, l -> l.queue.size(), 0);
+    }
+
+    <R> R withLimiter(String mxHost, Function<Limiter, R> getter, R defaultValue) {
+
+        lock.lock();
+        try {
+            var l = mxLimiters.get(MailUtil.lowerCase(mxHost));
+            return (l == null ? defaultValue : getter.apply(l));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+
+        lock.lock();
+        try {
+            closed = true;
+            for (var mx : mxLimiters.values()) {
+                mx.queue.forEach(job -> job.future.completeExceptionally(new RejectedExecutionException("Connection scheduler is closed.")));
+                mx.queue.clear();
+            }
+            queueNotFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        timer.shutdownNow();
+        executor.shutdown();
+    }
+
+    Limiter mxLimiter(String mxHost) {
+        return mxLimiters.computeIfAbsent(mxHost, k -> new Limiter(
+                limits.getMaxConnectionsPerMx(), limits.getMaxConnectsPerSecondPerMx()));
+    }
+
+    Limiter domainLimiter(String domain) {
+        return domainLimiters.computeIfAbsent(domain, k -> new Limiter(
+                limits.getMaxConnectionsPerDomain(), limits.getMaxConnectsPerSecondPerDomain()));
+    }
+
+    /**
+     * Starts all queued tasks allowed by the current limits. Must be called with lock held.
+     * <br>Tasks for a domain at its limits are skipped: tasks for other domains can still use the MX host.
+     */
+    void dispatch() {
+
+        if (closed) {
+            return;
+        }
+        long now = System.nanoTime();
+        long nextWakeup = Long.MAX_VALUE;
+        var starts = new ArrayList<Runnable>();
+        for (var mx : new ArrayList<>(mxLimiters.values())) {
+            Set<String> blockedDomains = null;
+            var it = mx.queue.iterator();
+            // A running task will call dispatch when done.
+            while (it.hasNext() && mx.hasCapacity()) {
+                long mxWaitNanos = mx.waitNanos(now);
+                if (mxWaitNanos > 0L) {
+                    nextWakeup = Math.min(nextWakeup, now + mxWaitNanos);
+                    break;
+                }
+                var job = it.next();
+                if (blockedDomains != null && blockedDomains.contains(job.domain)) {
+                    continue;
+                }
+                var domain = domainLimiter(job.domain);
+                long domainWaitNanos = (domain.hasCapacity() ? domain.waitNanos(now) : 0L);
+                if (!domain.hasCapacity() || domainWaitNanos > 0L) {
+                    if (domainWaitNanos > 0L) {
+                        nextWakeup = Math.min(nextWakeup, now + domainWaitNanos);
+                    }
+                    // Keep the order of tasks per domain.
+                    if (blockedDomains == null) {
+                        blockedDomains = new HashSet<>();
+                    }
+                    blockedDomains.add(job.domain);
+                    continue;
+                }
+                it.remove();
+                mx.acquire();
+                domain.acquire();
+                starts.add(() -> start(job, mx, domain));
+            }
+        }
+        if (!starts.isEmpty()) {
+            queueNotFull.signalAll();
+        }
+        if (nextWakeup != Long.MAX_VALUE && nextWakeup < wakeupAt) {
+            wakeupAt = nextWakeup;
+            timer.schedule(this::wakeup, nextWakeup - now, TimeUnit.NANOSECONDS);
+        }
+        // Start after iterating the queues, a task can complete (and dispatch) in the calling thread.
+        starts.forEach(Runnable::run);
+    }
+
+    void wakeup() {
+
+        lock.lock();
+        try {
+            wakeupAt = Long.MAX_VALUE;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    <T> void start(Job<T> job, Limiter mx, Limiter domain) {
+
+        try {
+            executor.execute(() -> run(job, mx, domain));
+        } catch (RejectedExecutionException e) {
+            release(job, mx, domain, false);
+            job.future.completeExceptionally(e);
+        }
+    }
+
+    <T> void run(Job<T> job, Limiter mx, Limiter domain) {
+
+        T result = null;
+        Throwable failure = null;
+        try {
+            result = job.task.run();
+        } catch (Throwable t) {
+            failure = t;
+        }
+        boolean throttled = (failure != null && SmtpReplies.isThrottled(failure));
+        if (throttled) {
+            log.info("Connection to {} for domain {} throttled: {}", job.mxHost, job.domain, failure.toString());
+        }
+        lock.lock();
+        try {
+            release(job, mx, domain, throttled);
+            if (failure == null) {
+                mx.success(limits.getMaxConnectionsPerMx(), limits.getMaxConnectsPerSecondPerMx());
+            }
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+        if (failure == null) {
+            job.future.complete(result);
+        } else {
+            job.future.completeExceptionally(failure);
+        }
+    }
+
+    void release(Job<?> job, Limiter mx, Limiter domain, boolean throttled) {
+
+        mx.active--;
+        domain.active--;
+        if (throttled) {
+            mx.throttled(limits.getMinConnectionsPerMx(), limits.getMinConnectsPerSecondPerMx());
+            log.debug("Connection limits for {} lowered to {} connections, {} connects/s.", job.mxHost, mx.connectionsLimit(), mx.rateLimit);
+        }
+        if (mx.isIdle(limits.getMaxConnectionsPerMx(), limits.getMaxConnectsPerSecondPerMx())) {
+            mxLimiters.remove(job.mxHost);
+        }
+        if (domain.isIdle(limits.getMaxConnectionsPerDomain(), limits.getMaxConnectsPerSecondPerDomain())) {
+            domainLimiters.remove(job.domain);
+        }
+    }
+
+    static class Job<T> {
+
+        final String domain;
+        final String mxHost;
+        final ConnectionTask<T> task;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Job(String domain, String mxHost, ConnectionTask<T> task) {
+            this.domain = domain;
+            this.mxHost = mxHost;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Concurrency limit and token bucket for the connection rate. Not thread-safe.
+     */
+    static class Limiter {
+
+        final ArrayDeque<Job<?>> queue = new ArrayDeque<>();
+        int active;
+        double connectionsLimit;
+        /** Connects per second, 0 for unlimited. */
+        double rateLimit;
+        double tokens;
+        long lastRefill = System.nanoTime();
+        int successes;
+
+        Limiter(int connectionsLimit, double rateLimit) {
+            this.connectionsLimit = connectionsLimit;
+            this.rateLimit = rateLimit;
+            this.tokens = Math.max(1.0, rateLimit);
+        }
+
+        int connectionsLimit() {
+            return (int) Math.max(1.0, Math.floor(connectionsLimit));
+        }
+
+        boolean hasCapacity() {
+            return active < connectionsLimit();
+        }
+
+        long waitNanos(long now) {
+
+            if (rateLimit <= 0.0) {
+                return 0L;
+            }
+            tokens = Math.min(Math.max(1.0, rateLimit), tokens + (now - lastRefill) * rateLimit / 1_000_000_000.0);
+            lastRefill = now;
+            return (tokens >= 1.0 ? 0L : (long) Math.ceil((1.0 - tokens) / rateLimit * 1_000_000_000.0));
+        }
+
+        void acquire() {
+
+            active++;
+            if (rateLimit > 0.0) {
+                tokens -= 1.0;
+            }
+        }
+
+        /** Multiplicative decrease. */
+        void throttled(int minConnections, double minRate) {
+
+            connectionsLimit = Math.max(minConnections, connectionsLimit / 2.0);
+            if (rateLimit > 0.0) {
+                rateLimit = Math.max(minRate, rateLimit / 2.0);
+                tokens = Math.min(tokens, 0.0);
+            }
+            successes = 0;
+        }
+
+        /** Additive increase after a window of successful connections. */
+        void success(int maxConnections, double maxRate) {
+
+            if (++successes < connectionsLimit()) {
+                return;
+            }
+            successes = 0;
+            connectionsLimit = Math.min(maxConnections, connectionsLimit + 1.0);
+            if (rateLimit > 0.0) {
+                rateLimit = Math.min(maxRate, rateLimit + maxRate / 10.0);
+            }
+        }
+
+        /**
+         * True if a new limiter would behave the same, i.e. limits are at maximum and the token bucket is full.
+         */
+        boolean isIdle(int maxConnections, double maxRate) {
+
+            if (active > 0 || !queue.isEmpty() || connectionsLimit < maxConnections || rateLimit < maxRate) {
+                return false;
+            }
+            waitNanos(System.nanoTime());
+            return rateLimit <= 0.0 || tokens >= Math.max(1.0, rateLimit);
+        }
+    }
+
+}
@@ -0,0 +1,358 @@
+package com.enovationgroup.dane.smtp;
+
+import com.enovationgroup.dane.jfr.SmtpConnectEvent;
+import com.sun.mail.smtp.SMTPTransport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.URLName;
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * SMTP transport created by {@link TransportFactory}.
+ * <br>Emits a {@link SmtpConnectEvent} for each connect.
+ * <br>Ready-built messages (e.g. <tt>.eml</tt> files) can be sent as-is with {@link #sendRaw(String, Collection, Path)}.
+ */
+@Slf4j
+public class DaneSmtpTransport extends SMTPTransport {
+
+    static final String SSL_SOCKET_FACTORY = "mail.smtp.ssl.socketFactory";
+    static final String SOCKET_FACTORY = "mail.smtp.socketFactory";
+    static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    /** Size of the BDAT chunks used by {@link #sendRaw(String, Collection, ByteBuffer)}. */
+    @Getter @Setter
+    private int chunkSize = 1024 * 1024;
+
+    /** Private socket field of the JavaMail transport, to verify that BDAT chunks are written to the connected socket. */
+    private static final Field SERVER_SOCKET = serverSocketField();
+
+    private final TlsSocketFactory tlsSocketFactory;
+    private final ConnectTimer connectTimer;
+
+    public DaneSmtpTransport(Session session, URLName urlname) {
+
+        super(transportSession(session), urlname);
+        var props = this.session.getProperties();
+        var sslSocketFactory = props.get(SSL_SOCKET_FACTORY);
+        tlsSocketFactory = (sslSocketFactory instanceof TlsSocketFactory ? (TlsSocketFactory) sslSocketFactory : null);
+        var socketFactory = props.get(SOCKET_FACTORY);
+        connectTimer = (socketFactory instanceof ConnectTimer ? (ConnectTimer) socketFactory : null);
+    }
+
+    /**
+     * A session for one transport, with a TLS socket factory that keeps a reference to the TLS socket
+     * for sending raw message data and a socket factory that times the TCP connect.
+     * The properties of the given session are not changed,
+     * so that transports sharing a session do not see each other's sockets.
+     */
+    static Session transportSession(Session session) {
+
+        var props = new Properties();
+        props.putAll(session.getProperties());
+        var sslSocketFactory = props.get(SSL_SOCKET_FACTORY);
+        if (sslSocketFactory instanceof TlsSocketFactory) {
+            sslSocketFactory = ((TlsSocketFactory) sslSocketFactory).delegate;
+        }
+        if (sslSocketFactory instanceof SSLSocketFactory) {
+            props.put(SSL_SOCKET_FACTORY, new TlsSocketFactory((SSLSocketFactory) sslSocketFactory));
+        }
+        // A socket factory configured by the caller is used as-is.
+        if (props.get(SOCKET_FACTORY) == null && props.get(SOCKET_FACTORY + ".class") == null || props.get(SOCKET_FACTORY) instanceof ConnectTimer) {
+            props.put(SOCKET_FACTORY, new ConnectTimer());
+        }
+        var transportSession = Session.getInstance(props);
+        transportSession.setDebug(session.getDebug());
+        transportSession.setDebugOut(session.getDebugOut());
+        return transportSession;
+    }
+
+    @Override
+    protected synchronized boolean protocolConnect(String host, int port, String user, String password) throws MessagingException {
+
+        var event = new SmtpConnectEvent();
+        event.begin();
+        if (tlsSocketFactory != null) {
+            tlsSocketFactory.socket = null;
+        }
+        if (connectTimer != null) {
+            connectTimer.connectMillis = -1L;
+        }
+        try {
+            return super.protocolConnect(host, port, user, password);
+        } catch (MessagingException | RuntimeException e) {
+            event.failed(e);
+            throw e;
+        } finally {
+            if (event.isEnabled()) {
+                event.setMxHost(host);
+                // TransportFactory sets properties that are not strings.
+                var props = session.getProperties();
+                event.setPort(port > 0 ? port : Integer.parseInt(String.valueOf(props.getOrDefault("mail.smtp.port", "25"))));
+                var localAddress = props.get("mail.smtp.localaddress");
+                event.setLocalAddress(localAddress == null ? null : localAddress.toString());
+            }
+            event.complete();
+        }
+    }
+
+    /**
+     * Duration of the TCP connect (without greeting, EHLO and STARTTLS) of the last connect,
+     * -1 when the TCP connection was not established or not timed (a socket factory was configured).
+     */
+    public long getTcpConnectMillis() {
+        return (connectTimer == null ? -1L : connectTimer.connectMillis);
+    }
+
+    /**
+     * Sends the message file as-is via a read-only memory-mapping of the file, see {@link #sendRaw(String, Collection, ByteBuffer)}.
+     */
+    public synchronized List<String> sendRaw(String from, Collection<String> recipients, Path message) throws MessagingException, IOException {
+
+        try (var channel = FileChannel.open(message, StandardOpenOption.READ)) {
+            return sendRaw(from, recipients, channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size()));
+        }
+    }
+
+    /**
+     * Sends an RFC 5322 message (headers and body) without parsing it.
+     * The message data is sent from the buffer (from position to limit) in pieces, it is not copied as a whole.
+     * <br>When the server supports CHUNKING, the message is sent with BDAT commands in chunks of {@link #getChunkSize()} bytes,
+     * the message must then already use CRLF line endings. Otherwise the message is sent with DATA
+     * (line endings are converted to CRLF and lines starting with a dot are dot-stuffed).
+     * <br>Note that the data is always copied into the TLS engine for encryption (there is no zero-copy with TLS).
+     * @return the rejected recipients.
+     * @throws MessagingException when all recipients are rejected or the message is not accepted.
+     */
+    public synchronized List<String> sendRaw(String from, Collection<String> recipients, ByteBuffer message) throws MessagingException, IOException {
+
+        checkConnected();
+        issueCommand("MAIL FROM:<" + (from == null ? "" : from) + ">" + (supportsExtension("8BITMIME") ? " BODY=8BITMIME" : ""), 250);
+        var rejected = new ArrayList<String>();
+        for (String recipient : recipients) {
+            int code = simpleCommand("RCPT TO:<" + recipient + ">");
+            if (code != 250 && code != 251) {
+                log.debug("Recipient {} rejected: {}", recipient, getLastServerResponse());
+                rejected.add(recipient);
+            }
+        }
+        if (rejected.size() == recipients.size()) {
+            var response = getLastServerResponse();
+            simpleCommand("RSET");
+            throw new MessagingException("All recipients rejected, last response: " + response);
+        }
+        var data = message.duplicate();
+        var tlsSocket = (tlsSocketFactory == null ? null : tlsSocketFactory.socket);
+        if (supportsExtension("CHUNKING") && tlsSocket != null && !tlsSocket.isClosed() && tlsSocket == serverSocket()) {
+            sendBdat(data, tlsSocket.getOutputStream());
+        } else {
+            var out = data();
+            write(data, data.remaining(), out);
+            finishData();
+        }
+        return rejected;
+    }
+
+    void sendBdat(ByteBuffer data, OutputStream out) throws MessagingException, IOException {
+
+        int chunkCount = 0;
+        do {
+            int length = Math.min(chunkSize, data.remaining());
+            boolean last = (length == data.remaining());
+            sendCommand("BDAT " + length + (last ? " LAST" : ""));
+            // Commands are flushed, the chunk directly follows the command on the TLS socket.
+            write(data, length, out);
+            out.flush();
+            chunkCount++;
+            if (readServerResponse() != 250) {
+                throw new MessagingException("BDAT chunk " + chunkCount + " not accepted, response: " + getLastServerResponse());
+            }
+        } while (data.hasRemaining());
+        log.debug("Sent message in {} BDAT chunk(s).", chunkCount);
+    }
+
+    /**
+     * The socket this transport is connected on (after STARTTLS the TLS socket), null if unknown.
+     */
+    Socket serverSocket() {
+
+        if (SERVER_SOCKET == null) {
+            return null;
+        }
+        try {
+            return (Socket) SERVER_SOCKET.get(this);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    static Field serverSocketField() {
+
+        try {
+            var field = SMTPTransport.class.getDeclaredField("serverSocket");
+            field.setAccessible(true);
+            return field;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("Cannot access the SMTP transport socket, messages will be sent with DATA: {}", e.toString());
+            return null;
+        }
+    }
+
+    static void write(ByteBuffer data, int length, OutputStream out) throws IOException {
+
+        if (data.hasArray()) {
+            out.write(data.array(), data.arrayOffset() + data.position(), length);
+            data.position(data.position() + length);
+            return;
+        }
+        var buffer = new byte[Math.min(TRANSFER_BUFFER_SIZE, Math.max(length, 1))];
+        int remaining = length;
+        while (remaining > 0) {
+            int size = Math.min(buffer.length, remaining);
+            data.get(buffer, 0, size);
+            out.write(buffer, 0, size);
+            remaining -= size;
+        }
+    }
+
+    /**
+     * Creates plain sockets that record the duration of the TCP connect.
+     */
+    static class ConnectTimer extends SocketFactory {
+
+        volatile long connectMillis = -1L;
+
+        Socket timed(Callable<Socket> connect) throws IOException {
+
+            long start = System.nanoTime();
+            try {
+                var socket = connect.call();
+                connectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                return socket;
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public Socket createSocket() {
+
+            return new Socket() {
+                @Override
+                public void connect(SocketAddress endpoint, int timeout) throws IOException {
+                    timed(() -> {
+                        super.connect(endpoint, timeout);
+                        return this;
+                    });
+                }
+            };
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return timed(() -> new Socket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return timed(() -> new Socket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return timed(() -> new Socket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return timed(() -> new Socket(address, port, localAddress, localPort));
+        }
+    }
+
+    /**
+     * Remembers the last TLS socket created for the transport (e.g. for STARTTLS).
+     */
+    static class TlsSocketFactory extends SSLSocketFactory {
+
+        final SSLSocketFactory delegate;
+        volatile SSLSocket socket;
+
+        TlsSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        Socket remember(Socket socket) {
+
+            if (socket instanceof SSLSocket) {
+                this.socket = (SSLSocket) socket;
+            }
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return remember(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            return remember(delegate.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return remember(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return remember(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return remember(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return remember(delegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.enovationgroup.dane.smtp;
+
+/**
+ * Locates parts of a DER encoded X.509 certificate (RFC 5280 section 4.1) without decoding it.
+ * <br>Ranges are returned as a single long, offset in the high 32 bits and length in the low 32 bits,
+ * use {@link #offset(long)} and {@link #length(long)}. A negative value means not found.
+ */
+public class DerSlices {
+
+    static final int TAG_SEQUENCE = 0x30;
+    static final int TAG_VERSION = 0xA0;
+
+    private DerSlices() {}
+
+    public static int offset(long range) {
+        return (int) (range >>> 32);
+    }
+
+    public static int length(long range) {
+        return (int) range;
+    }
+
+    /**
+     * Returns the range of the complete SubjectPublicKeyInfo element (tag, length and content),
+     * the same bytes as {@link java.security.PublicKey#getEncoded()} for a correctly encoded certificate.
+     */
+    public static long subjectPublicKeyInfo(byte[] der) {
+
+        try {
+            // Certificate ::= SEQUENCE { tbsCertificate, signatureAlgorithm, signatureValue }
+            int pos = enter(der, 0, TAG_SEQUENCE);
+            // TBSCertificate ::= SEQUENCE { [0] version OPTIONAL, serialNumber, signature, issuer, validity, subject, subjectPublicKeyInfo, ... }
+            pos = enter(der, pos, TAG_SEQUENCE);
+            if ((der[pos] & 0xFF) == TAG_VERSION) {
+                pos = skip(der, pos);
+            }
+            // serialNumber, signature, issuer, validity, subject
+            for (int i = 0; i < 5; i++) {
+                pos = skip(der, pos);
+            }
+            if ((der[pos] & 0xFF) != TAG_SEQUENCE) {
+                return -1L;
+            }
+            int end = skip(der, pos);
+            return ((long) pos << 32) | (end - pos);
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * @return position of the content of the element at pos.
+     */
+    static int enter(byte[] der, int pos, int expectedTag) {
+
+        if ((der[pos] & 0xFF) != expectedTag) {
+            throw new IllegalArgumentException("Unexpected DER tag " + (der[pos] & 0xFF) + " at " + pos);
+        }
+        return contentOffset(der, pos);
+    }
+
+    /**
+     * @return position after the element at pos.
+     */
+    static int skip(byte[] der, int pos) {
+
+        int content = contentOffset(der, pos);
+        int end = content + contentLength(der, pos);
+        if (end > der.length || end < content) {
+            throw new IllegalArgumentException("DER element at " + pos + " exceeds data.");
+        }
+        return end;
+    }
+
+    static int contentOffset(byte[] der, int pos) {
+
+        int first = der[pos + 1] & 0xFF;
+        return pos + 2 + (first < 0x80 ? 0 : first & 0x7F);
+    }
+
+    static int contentLength(byte[] der, int pos) {
+
+        int first = der[pos + 1] & 0xFF;
+        if (first < 0x80) {
+            return first;
+        }
+        int count = first & 0x7F;
+        if (count == 0 || count > 4) {
+            // Indefinite length is not allowed in DER.
+            throw new IllegalArgumentException("Invalid DER length at " + pos);
+        }
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            length = (length << 8) | (der[pos + 2 + i] & 0xFF);
+        }
+        if (length < 0) {
+            throw new IllegalArgumentException("Invalid DER length at " + pos);
+        }
+        return length;
+    }
+
+}
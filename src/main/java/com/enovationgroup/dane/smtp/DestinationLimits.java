@@ -0,0 +1,28 @@
+package com.enovationgroup.dane.smtp;
+
+import lombok.Data;
+
+/**
+ * Connection limits used by {@link ConnectionScheduler}.
+ * Per-MX limits are lowered when an MX host replies with throttling responses
+ * and are raised again (up to the configured maximum) after successful connections.
+ */
+@Data
+public class DestinationLimits {
+
+    /** Maximum concurrent connections to one MX host. */
+    private int maxConnectionsPerMx = 5;
+    /** Lower bound for the concurrent connections to one MX host after throttling. */
+    private int minConnectionsPerMx = 1;
+    /** Maximum new connections per second to one MX host, 0 for unlimited. */
+    private double maxConnectsPerSecondPerMx = 10.0;
+    /** Lower bound for the new connections per second to one MX host after throttling. */
+    private double minConnectsPerSecondPerMx = 0.5;
+    /** Maximum concurrent connections for one recipient domain (over all MX hosts). */
+    private int maxConnectionsPerDomain = 10;
+    /** Maximum new connections per second for one recipient domain, 0 for unlimited. */
+    private double maxConnectsPerSecondPerDomain = 0.0;
+    /** Maximum queued connection tasks per MX host, producers are blocked when the queue is full. */
+    private int queueCapacityPerMx = 100;
+
+}
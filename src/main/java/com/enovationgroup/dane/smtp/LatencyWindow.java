@@ -0,0 +1,49 @@
+package com.enovationgroup.dane.smtp;
+
+import java.util.Arrays;
+
+/**
+ * Latency samples (milliseconds) for the last N connections, used to calculate percentiles.
+ */
+public class LatencyWindow {
+
+    private final long[] samples;
+    private int next;
+    private int size;
+
+    public LatencyWindow(int capacity) {
+        this.samples = new long[capacity];
+    }
+
+    public synchronized void add(long millis) {
+
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        if (size < samples.length) {
+            size++;
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @param percentile 0.0 - 100.0
+     * @return the sample at the percentile, or -1 when there are no samples.
+     */
+    public long percentile(double percentile) {
+
+        long[] sorted;
+        synchronized (this) {
+            if (size == 0) {
+                return -1L;
+            }
+            sorted = Arrays.copyOf(samples, size);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+}
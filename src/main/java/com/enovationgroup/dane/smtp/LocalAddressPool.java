@@ -0,0 +1,171 @@
+package com.enovationgroup.dane.smtp;
+
+import com.enovationgroup.dane.MailUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Pool of local (source) addresses to bind outbound connections to (<tt>mail.smtp.localaddress</tt>).
+ * <br>For each connection the source address with the least open connections to the destination (MX host) is chosen,
+ * ties are broken by the total open connections of the source address. This spreads connections (and ephemeral ports)
+ * to one destination over all source addresses.
+ * <br>A destination can be pinned to one source address, e.g. when the receiver only accepts (or has a reputation for)
+ * mail from a specific address. Connections to a pinned destination always use the pinned address.
+ * <br>Usage:
+ * <pre>
+ * try (var lease = pool.acquire(mxHost)) {
+ *     options.setLocalAddress(lease.getAddress());
+ *     ... connect and send ...
+ * }
+ * </pre>
+ */
+@Slf4j
+public class LocalAddressPool {
+
+    private final List<Source> sources = new ArrayList<>();
+    private final Map<String, Source> pinned = new ConcurrentHashMap<>();
+
+    /**
+     * @param localAddresses IP addresses (or host names) of local interfaces.
+     */
+    public LocalAddressPool(Collection<String> localAddresses) {
+
+        if (localAddresses == null || localAddresses.isEmpty()) {
+            throw new IllegalArgumentException("At least one local address is required.");
+        }
+        localAddresses.forEach(a -> sources.add(new Source(a)));
+    }
+
+    public List<String> getAddresses() {
+
+        var addresses = new ArrayList<String>();
+        sources.forEach(s -> addresses.add(s.address));
+        return addresses;
+    }
+
+    /**
+     * Connections to the destination will always use the given local address.
+     */
+    public void pin(String destination, String localAddress) {
+
+        var source = sources.stream().filter(s -> s.address.equals(localAddress)).findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Local address " + localAddress + " is not in the pool."));
+        pinned.put(MailUtil.lowerCase(destination), source);
+    }
+
+    public void unpin(String destination) {
+        pinned.remove(MailUtil.lowerCase(destination));
+    }
+
+    /**
+     * Chooses a local address for a connection to the destination.
+     * The returned lease must be closed when the connection is closed.
+     */
+    public synchronized Lease acquire(String destination) {
+
+        var key = MailUtil.lowerCase(destination);
+        var source = pinned.get(key);
+        if (source == null) {
+            for (var candidate : sources) {
+                if (source == null || candidate.connections(key) < source.connections(key)
+                        || (candidate.connections(key) == source.connections(key) && candidate.total < source.total)) {
+                    source = candidate;
+                }
+            }
+        }
+        source.acquire(key);
+        log.trace("Using local address {} for {} ({} connections).", source.address, key, source.connections(key));
+        return new Lease(this, source, key);
+    }
+
+    synchronized void release(Source source, String destination) {
+        source.release(destination);
+    }
+
+    /**
+     * Open connections from the local address to the destination.
+     */
+    public synchronized int getConnections(String localAddress, String destination) {
+
+        var key = MailUtil.lowerCase(destination);
+        return sources.stream().filter(s -> s.address.equals(localAddress)).mapToInt(s -> s.connections(key)).sum();
+    }
+
+    /**
+     * Open connections from the local address to all destinations.
+     */
+    public synchronized int getConnections(String localAddress) {
+        return sources.stream().filter(s -> s.address.equals(localAddress)).mapToInt(s -> s.total).sum();
+    }
+
+    public static class Lease implements AutoCloseable {
+
+        private final LocalAddressPool pool;
+        private final Source source;
+        @Getter
+        private final String destination;
+        private boolean closed;
+
+        Lease(LocalAddressPool pool, Source source, String destination) {
+            this.pool = pool;
+            this.source = source;
+            this.destination = destination;
+        }
+
+        public String getAddress() {
+            return source.address;
+        }
+
+        @Override
+        public void close() {
+
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            pool.release(source, destination);
+        }
+    }
+
+    /**
+     * Connection counts for one local address. Not thread-safe.
+     */
+    static class Source {
+
+        final String address;
+        final Map<String, Integer> perDestination = new HashMap<>();
+        int total;
+
+        Source(String address) {
+            this.address = address;
+        }
+
+        int connections(String destination) {
+            return perDestination.getOrDefault(destination, 0);
+        }
+
+        void acquire(String destination) {
+
+            perDestination.merge(destination, 1, Integer::sum);
+            total++;
+        }
+
+        void release(String destination) {
+
+            // remove the entry when the count drops to zero
+            perDestination.computeIfPresent(destination, (k, v) -> (v <= 1 ? null : v - 1));
+            total--;
+        }
+    }
+
+}
@@ -0,0 +1,228 @@
+package com.enovationgroup.dane.smtp;
+
+import com.enovationgroup.dane.MailUtil;
+import com.enovationgroup.dane.dns.DaneRecord;
+
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Circuit-breaker registry keyed by MX host.
+ * <br>After {@link #getFailureThreshold()} consecutive connection failures (e.g. connect timeouts or
+ * DANE validation failures) the circuit for a host opens and connections to the host are skipped.
+ * After the open period one probe connection is allowed (half-open): success closes the circuit,
+ * failure opens it again for twice as long (up to {@link #getMaxOpenMillis()}).
+ * <br>When the TLSA records for a host change, the state for the host is reset:
+ * a DANE failure with old records says nothing about the new records.
+ * <br>Closed circuits of hosts that are not used for {@link #getIdleMillis()} are removed.
+ */
+@Slf4j
+public class MxCircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final MxCircuitBreaker SHARED = new MxCircuitBreaker();
+
+    @Getter @Setter
+    private int failureThreshold = 3;
+    @Getter @Setter
+    private long openMillis = 30_000L;
+    @Getter @Setter
+    private long maxOpenMillis = 600_000L;
+    /** Closed circuits of hosts that are not used for this time are removed. */
+    @Getter @Setter
+    private long idleMillis = 3_600_000L;
+
+    private final ConcurrentHashMap<String, HostState> hosts = new ConcurrentHashMap<>();
+    private final LongSupplier clock;
+    private final AtomicLong nextSweep = new AtomicLong();
+
+    public MxCircuitBreaker() {
+        this(System::currentTimeMillis);
+    }
+
+    MxCircuitBreaker(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Registry shared by all users in this JVM.
+     */
+    public static MxCircuitBreaker shared() {
+        return SHARED;
+    }
+
+    /**
+     * True if a connection to the MX host should be attempted.
+     * When true is returned, the outcome must be reported via {@link #recordSuccess(String)} or {@link #recordFailure(String)}.
+     * @param daneRecords the current TLSA records for the host, null when unknown (the state for the host is kept).
+     */
+    public boolean allowConnection(String mxHost, Collection<DaneRecord> daneRecords) {
+
+        long now = clock.getAsLong();
+        evictIdle(now);
+        var fingerprint = (daneRecords == null ? null : fingerprint(daneRecords));
+        while (true) {
+            var host = hosts.computeIfAbsent(MailUtil.lowerCase(mxHost), k -> new HostState());
+            synchronized (host) {
+                if (host.evicted) {
+                    continue;
+                }
+                host.lastUsed = now;
+                if (fingerprint != null) {
+                    if (host.tlsaFingerprint != null && !host.tlsaFingerprint.equals(fingerprint)) {
+                        if (host.state != State.CLOSED) {
+                            log.info("TLSA records changed for {}, closing circuit.", mxHost);
+                        }
+                        host.close();
+                    }
+                    host.tlsaFingerprint = fingerprint;
+                }
+                switch (host.state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (now < host.retryAt) {
+                        return false;
+                    }
+                    log.debug("Circuit for {} half-open, allowing probe connection.", mxHost);
+                    host.state = State.HALF_OPEN;
+                    host.retryAt = now + host.openMillis;
+                    return true;
+                default:
+                    // HALF_OPEN, allow another probe only if the previous probe never reported back.
+                    if (now < host.retryAt) {
+                        return false;
+                    }
+                    host.retryAt = now + host.openMillis;
+                    return true;
+                }
+            }
+        }
+    }
+
+    public void recordSuccess(String mxHost) {
+
+        var host = hosts.get(MailUtil.lowerCase(mxHost));
+        if (host == null) {
+            return;
+        }
+        synchronized (host) {
+            if (host.state != State.CLOSED) {
+                log.info("Circuit for {} closed after successful connection.", mxHost);
+            }
+            host.lastUsed = clock.getAsLong();
+            host.close();
+        }
+    }
+
+    public void recordFailure(String mxHost) {
+
+        long now = clock.getAsLong();
+        while (true) {
+            var host = hosts.computeIfAbsent(MailUtil.lowerCase(mxHost), k -> new HostState());
+            synchronized (host) {
+                if (host.evicted) {
+                    continue;
+                }
+                host.lastUsed = now;
+                if (host.state == State.HALF_OPEN) {
+                    host.openMillis = Math.min(maxOpenMillis, host.openMillis * 2);
+                    host.open(now);
+                    log.info("Probe connection to {} failed, circuit open for {} ms.", mxHost, host.openMillis);
+                } else if (host.state == State.CLOSED && ++host.failures >= failureThreshold) {
+                    host.openMillis = openMillis;
+                    host.open(now);
+                    log.info("{} consecutive connection failures for {}, circuit open for {} ms.", host.failures, mxHost, host.openMillis);
+                }
+                return;
+            }
+        }
+    }
+
+    public State getState(String mxHost) {
+
+        var host = hosts.get(MailUtil.lowerCase(mxHost));
+        if (host == null) {
+            return State.CLOSED;
+        }
+        synchronized (host) {
+            return host.state;
+        }
+    }
+
+    public void reset(String mxHost) {
+        hosts.remove(MailUtil.lowerCase(mxHost));
+    }
+
+    /**
+     * Amount of hosts with a circuit state.
+     */
+    public int size() {
+        return hosts.size();
+    }
+
+    /**
+     * Removes the closed circuits of hosts that were not used for {@link #getIdleMillis()},
+     * at most once per idle period.
+     */
+    void evictIdle(long now) {
+
+        long sweepAt = nextSweep.get();
+        if (now < sweepAt || !nextSweep.compareAndSet(sweepAt, now + idleMillis)) {
+            return;
+        }
+        hosts.forEach((name, host) -> {
+            synchronized (host) {
+                if (host.state == State.CLOSED && now - host.lastUsed >= idleMillis) {
+                    host.evicted = true;
+                    hosts.remove(name, host);
+                }
+            }
+        });
+    }
+
+    static Set<String> fingerprint(Collection<DaneRecord> daneRecords) {
+
+        if (daneRecords == null) {
+            return Set.of();
+        }
+        return daneRecords.stream()
+                .map(r -> r.getCertificateUsage() + " " + r.getSelector() + " " + r.getMatchingType() + " "
+                        + (r.getCertificateAssociationData() == null ? "" : Base64.getEncoder().encodeToString(r.getCertificateAssociationData())))
+                .collect(Collectors.toSet());
+    }
+
+    static class HostState {
+
+        State state = State.CLOSED;
+        int failures;
+        long retryAt;
+        long openMillis;
+        long lastUsed;
+        /** Removed from the registry, a new state must be created. */
+        boolean evicted;
+        Set<String> tlsaFingerprint;
+
+        void open(long now) {
+            state = State.OPEN;
+            retryAt = now + openMillis;
+        }
+
+        void close() {
+            state = State.CLOSED;
+            failures = 0;
+            retryAt = 0L;
+        }
+    }
+
+}
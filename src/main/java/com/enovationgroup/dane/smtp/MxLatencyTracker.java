@@ -0,0 +1,188 @@
+package com.enovationgroup.dane.smtp;
+
+import com.enovationgroup.dane.MailUtil;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps per-MX latency samples and derives connect and read timeouts from them:
+ * <br><tt>timeout = percentile(samples) * factor * backoff</tt>, limited by a floor and a ceiling.
+ * <br>Connect samples are the duration of the TCP connect ({@link DaneSmtpTransport#getTcpConnectMillis()}).
+ * Read samples are the duration of a single command round-trip (e.g. NOOP).
+ * The read timeout of a transport also applies to the greeting, the TLS handshake and the reply after DATA,
+ * which can take much longer than a command round-trip (RFC 5321 section 4.5.3.2, e.g. a deliberately delayed greeting),
+ * so {@link #adaptTimeouts(String, TransportOptions)} never sets a read timeout below the configured timeout.
+ * <br>Until enough samples are available the {@link TransportOptions} defaults are used.
+ * Each timeout doubles the backoff for the host (up to the ceiling) so that slow hosts are not cut off repeatedly,
+ * a successful connection resets it.
+ * <br>Hosts without samples for {@link #getIdleMillis()} are removed.
+ */
+@Slf4j
+public class MxLatencyTracker {
+
+    private static final MxLatencyTracker SHARED = new MxLatencyTracker();
+
+    @Getter @Setter
+    private int windowSize = 128;
+    @Getter @Setter
+    private int minSamples = 20;
+    @Getter @Setter
+    private double percentile = 99.0;
+    @Getter @Setter
+    private double factor = 3.0;
+    @Getter @Setter
+    private int connectTimeoutFloor = 250;
+    @Getter @Setter
+    private int connectTimeoutCeiling = 15_000;
+    @Getter @Setter
+    private int readTimeoutFloor = 1_000;
+    @Getter @Setter
+    private int readTimeoutCeiling = 60_000;
+    /** Hosts without samples for this time are removed. */
+    @Getter @Setter
+    private long idleMillis = 3_600_000L;
+
+    private final ConcurrentHashMap<String, HostLatency> hosts = new ConcurrentHashMap<>();
+    private final LongSupplier clock;
+    private final AtomicLong nextSweep = new AtomicLong();
+
+    public MxLatencyTracker() {
+        this(System::currentTimeMillis);
+    }
+
+    MxLatencyTracker(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Tracker shared by all users in this JVM.
+     */
+    public static MxLatencyTracker shared() {
+        return SHARED;
+    }
+
+    public void recordConnect(String mxHost, long millis) {
+
+        var host = host(mxHost);
+        host.connect.add(millis);
+        host.connectBackoff = 1;
+    }
+
+    public void recordRead(String mxHost, long millis) {
+
+        var host = host(mxHost);
+        host.read.add(millis);
+        host.readBackoff = 1;
+    }
+
+    /**
+     * Register a timeout: the next timeouts for the host are doubled.
+     * @param connectPhase true if the timeout occurred during the TCP connect,
+     *        false for timeouts after the TCP connection was established (e.g. waiting for the greeting).
+     */
+    public void recordTimeout(String mxHost, boolean connectPhase) {
+
+        var host = host(mxHost);
+        if (connectPhase) {
+            host.connectBackoff = Math.min(host.connectBackoff * 2, 1 << 10);
+        } else {
+            host.readBackoff = Math.min(host.readBackoff * 2, 1 << 10);
+        }
+        log.debug("{} timeout for {}, timeouts for host will be increased.", (connectPhase ? "Connect" : "Read"), mxHost);
+    }
+
+    public int connectTimeout(String mxHost, int defaultTimeout) {
+
+        var host = hosts.get(MailUtil.lowerCase(mxHost));
+        if (host == null) {
+            return defaultTimeout;
+        }
+        return timeout(host.connect, host.connectBackoff, defaultTimeout, connectTimeoutFloor, connectTimeoutCeiling);
+    }
+
+    public int readTimeout(String mxHost, int defaultTimeout) {
+
+        var host = hosts.get(MailUtil.lowerCase(mxHost));
+        if (host == null) {
+            return defaultTimeout;
+        }
+        return timeout(host.read, host.readBackoff, defaultTimeout, readTimeoutFloor, readTimeoutCeiling);
+    }
+
+    /**
+     * Returns new options with timeouts for the MX host, based on the given options.
+     * The read timeout is only increased (for slow hosts), see the class comment.
+     */
+    public TransportOptions adaptTimeouts(String mxHost, TransportOptions options) {
+
+        var adapted = options.copy();
+        adapted.setConnectionTimeout(connectTimeout(mxHost, options.getConnectionTimeout()));
+        adapted.setTimeout(Math.max(options.getTimeout(), readTimeout(mxHost, options.getTimeout())));
+        return adapted;
+    }
+
+    int timeout(LatencyWindow window, int backoff, int defaultTimeout, int floor, int ceiling) {
+
+        long base;
+        if (window.size() < minSamples) {
+            base = defaultTimeout;
+        } else {
+            base = Math.max(floor, (long) Math.ceil(window.percentile(percentile) * factor));
+        }
+        return (int) Math.min(ceiling, base * backoff);
+    }
+
+    HostLatency host(String mxHost) {
+
+        long now = clock.getAsLong();
+        evictIdle(now);
+        var host = hosts.computeIfAbsent(MailUtil.lowerCase(mxHost), k -> new HostLatency(windowSize));
+        host.lastUsed = now;
+        return host;
+    }
+
+    /**
+     * Amount of hosts with latency samples.
+     */
+    public int size() {
+        return hosts.size();
+    }
+
+    /**
+     * Removes the hosts that were not used for {@link #getIdleMillis()}, at most once per idle period.
+     * A sample recorded concurrently for a removed host is lost, the next sample starts a new window.
+     */
+    void evictIdle(long now) {
+
+        long sweepAt = nextSweep.get();
+        if (now < sweepAt || !nextSweep.compareAndSet(sweepAt, now + idleMillis)) {
+            return;
+        }
+        hosts.forEach((name, host) -> {
+            if (now - host.lastUsed >= idleMillis) {
+                hosts.remove(name, host);
+            }
+        });
+    }
+
+    static class HostLatency {
+
+        final LatencyWindow connect;
+        final LatencyWindow read;
+        volatile int connectBackoff = 1;
+        volatile int readBackoff = 1;
+        volatile long lastUsed;
+
+        HostLatency(int windowSize) {
+            connect = new LatencyWindow(windowSize);
+            read = new LatencyWindow(windowSize);
+        }
+    }
+
+}
@@ -0,0 +1,600 @@
+package com.enovationgroup.dane.smtp;
+
+import com.enovationgroup.dane.dns.DaneRecord;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Non-blocking SMTP client for the EHLO / STARTTLS / EHLO / NOOP / QUIT exchange with DANE validation
+ * ({@link TrustManagerDane} in an {@link SSLEngine}).
+ * <br>Connections are driven by a few selector threads, so many concurrent handshakes (e.g. to probe MX hosts)
+ * do not need a thread per connection as {@link com.sun.mail.smtp.SMTPTransport} does.
+ * TLS delegated tasks (including the DANE validation) run on the selector thread.
+ * <br>The connect timeout ({@link TransportOptions#getConnectionTimeout()}) applies to the TCP connect,
+ * the read timeout ({@link TransportOptions#getTimeout()}) to each following step.
+ */
+@Slf4j
+public class NioStartTlsClient implements AutoCloseable {
+
+    /** Buffer size for the plain text part of the exchange, also the maximum reply length. */
+    static final int PLAIN_BUFFER_SIZE = 4_096;
+    static final long TIMEOUT_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100L);
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    enum State { CONNECT, GREETING, EHLO, STARTTLS, HANDSHAKE, EHLO_TLS, NOOP, QUIT }
+
+    @Getter @Setter
+    private String ehloName = "localhost";
+    @Getter @Setter
+    private String sslProtocol = "TLS";
+
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    public NioStartTlsClient() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    public NioStartTlsClient(int threads) {
+
+        loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop("nio-starttls-" + i);
+        }
+    }
+
+    /**
+     * Connects to the MX host and validates the TLS certificate with the DANE records after STARTTLS.
+     * <br>The future fails with e.g. a {@link javax.net.ssl.SSLHandshakeException} when DANE validation fails,
+     * or a {@link SocketTimeoutException} on timeout.
+     */
+    public CompletableFuture<StartTlsResult> probe(String mxHost, Collection<DaneRecord> daneRecords, TransportOptions options) {
+
+        var future = new CompletableFuture<StartTlsResult>();
+        try {
+            var address = new InetSocketAddress(mxHost, options.getPort());
+            if (address.isUnresolved()) {
+                throw new UnknownHostException(mxHost);
+            }
+            var trustManager = new TrustManagerDane(daneRecords);
+            trustManager.setAuditLog(options.getAuditLog());
+            trustManager.setDomain(options.getDomain());
+            var sslContext = TransportFactory.createSslContext(sslProtocol, trustManager, null);
+            var engine = sslContext.createSSLEngine(mxHost, options.getPort());
+            engine.setUseClientMode(true);
+            var connection = new Connection(mxHost, address, engine, options, future);
+            loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].register(connection);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Stops the selector threads, connections in progress fail.
+     */
+    @Override
+    public void close() {
+
+        for (var loop : loops) {
+            loop.close();
+        }
+    }
+
+    class EventLoop implements Runnable {
+
+        final Selector selector;
+        final ConcurrentLinkedQueue<Connection> pending = new ConcurrentLinkedQueue<>();
+        final Thread thread;
+        volatile boolean closed;
+
+        EventLoop(String name) {
+
+            try {
+                selector = Selector.open();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void register(Connection connection) {
+
+            pending.add(connection);
+            if (closed) {
+                failPending();
+            } else {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+
+            long nextTimeoutCheck = System.nanoTime() + TIMEOUT_CHECK_NANOS;
+            try {
+                while (!closed) {
+                    selector.select(TimeUnit.NANOSECONDS.toMillis(TIMEOUT_CHECK_NANOS));
+                    Connection connection;
+                    while ((connection = pending.poll()) != null) {
+                        connection.start(selector);
+                    }
+                    var selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        var key = selected.next();
+                        selected.remove();
+                        ((Connection) key.attachment()).handle(key);
+                    }
+                    long now = System.nanoTime();
+                    if (now - nextTimeoutCheck >= 0L) {
+                        nextTimeoutCheck = now + TIMEOUT_CHECK_NANOS;
+                        for (var key : new ArrayList<>(selector.keys())) {
+                            ((Connection) key.attachment()).checkTimeout(now);
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                log.error("Selector loop {} stopped unexpectedly.", thread.getName(), e);
+            } finally {
+                closed = true;
+                for (var key : new ArrayList<>(selector.keys())) {
+                    ((Connection) key.attachment()).fail(new IOException("NIO STARTTLS client is closed."));
+                }
+                failPending();
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    log.debug("Closing selector failed: {}", e.toString());
+                }
+            }
+        }
+
+        void failPending() {
+
+            Connection connection;
+            while ((connection = pending.poll()) != null) {
+                connection.fail(new IOException("NIO STARTTLS client is closed."));
+            }
+        }
+
+        void close() {
+
+            closed = true;
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * State of one connection, only used by the selector thread of the connection.
+     */
+    class Connection {
+
+        final String mxHost;
+        final InetSocketAddress address;
+        final SSLEngine engine;
+        final TransportOptions options;
+        final CompletableFuture<StartTlsResult> future;
+        final StartTlsResult result = new StartTlsResult();
+        final long startNanos = System.nanoTime();
+
+        SocketChannel channel;
+        SelectionKey key;
+        State state = State.CONNECT;
+        long deadline;
+        long handshakeStartNanos;
+        boolean tls;
+        ByteBuffer netIn = ByteBuffer.allocate(PLAIN_BUFFER_SIZE);
+        ByteBuffer netOut = ByteBuffer.allocate(PLAIN_BUFFER_SIZE);
+        ByteBuffer appIn;
+
+        Connection(String mxHost, InetSocketAddress address, SSLEngine engine, TransportOptions options, CompletableFuture<StartTlsResult> future) {
+
+            this.mxHost = mxHost;
+            this.address = address;
+            this.engine = engine;
+            this.options = options;
+            this.future = future;
+            result.setMxHost(mxHost);
+            result.setAddress(address.getAddress().getHostAddress());
+        }
+
+        void start(Selector selector) {
+
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                if (options.getLocalAddress() != null) {
+                    channel.bind(new InetSocketAddress(options.getLocalAddress(), 0));
+                }
+                deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(options.getConnectionTimeout());
+                boolean connected = channel.connect(address);
+                key = channel.register(selector, (connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT), this);
+                if (connected) {
+                    connected();
+                }
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        void handle(SelectionKey key) {
+
+            try {
+                if (key.isConnectable() && channel.finishConnect()) {
+                    connected();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush();
+                    if (state == State.HANDSHAKE) {
+                        handshake();
+                    }
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read();
+                }
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        void checkTimeout(long now) {
+
+            if (now - deadline > 0L) {
+                fail(new SocketTimeoutException((state == State.CONNECT ? "Connect" : "Read") + " timed out for " + mxHost + " in state " + state));
+            }
+        }
+
+        void connected() {
+
+            result.setConnectMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+            key.interestOps(SelectionKey.OP_READ);
+            setState(State.GREETING);
+        }
+
+        void setState(State state) {
+
+            this.state = state;
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(options.getTimeout());
+        }
+
+        void read() throws IOException {
+
+            int n;
+            while ((n = channel.read(netIn)) > 0) {
+                if (!netIn.hasRemaining()) {
+                    break;
+                }
+            }
+            if (state == State.HANDSHAKE) {
+                handshake();
+            }
+            String reply;
+            while (state != State.HANDSHAKE && (reply = nextReply()) != null) {
+                onReply(reply);
+                if (future.isDone()) {
+                    return;
+                }
+            }
+            if (n < 0) {
+                // Data received before the end of stream is processed first, e.g. a 421 reply.
+                throw new EOFException("Connection closed by " + mxHost + " in state " + state);
+            }
+            var replyBuffer = (tls ? appIn : netIn);
+            if (state != State.HANDSHAKE && !replyBuffer.hasRemaining()) {
+                throw new IOException("Reply too long from " + mxHost + " in state " + state);
+            }
+        }
+
+        String nextReply() throws IOException {
+
+            if (!tls) {
+                return takeReply(netIn);
+            }
+            unwrap();
+            return takeReply(appIn);
+        }
+
+        void onReply(String reply) throws IOException {
+
+            int code = replyCode(reply);
+            switch (state) {
+            case GREETING:
+                expect(220, code, reply);
+                result.setGreeting(reply);
+                send("EHLO " + ehloName);
+                setState(State.EHLO);
+                break;
+            case EHLO:
+                expect(250, code, reply);
+                if (!advertises(reply, "STARTTLS")) {
+                    throw new IOException("STARTTLS not supported by " + mxHost + ", response: " + code);
+                }
+                send("STARTTLS");
+                setState(State.STARTTLS);
+                break;
+            case STARTTLS:
+                expect(220, code, reply);
+                startTls();
+                break;
+            case EHLO_TLS:
+                expect(250, code, reply);
+                send("NOOP");
+                setState(State.NOOP);
+                break;
+            case NOOP:
+                expect(250, code, reply);
+                send("QUIT");
+                setState(State.QUIT);
+                break;
+            case QUIT:
+                complete();
+                break;
+            default:
+                throw new IOException("Unexpected reply from " + mxHost + " in state " + state + ", response: " + reply);
+            }
+        }
+
+        void expect(int expected, int code, String reply) throws IOException {
+
+            if (code != expected) {
+                throw new IOException("Unexpected reply from " + mxHost + " in state " + state + ", response: " + reply);
+            }
+        }
+
+        void startTls() throws IOException {
+
+            if (netIn.position() > 0) {
+                throw new IOException("Unexpected data from " + mxHost + " before TLS handshake.");
+            }
+            var session = engine.getSession();
+            netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+            netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+            appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+            tls = true;
+            handshakeStartNanos = System.nanoTime();
+            setState(State.HANDSHAKE);
+            engine.beginHandshake();
+            handshake();
+        }
+
+        void handshake() throws IOException {
+
+            while (state == State.HANDSHAKE) {
+                switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runTasks();
+                    break;
+                case NEED_WRAP:
+                    if (!wrap(EMPTY)) {
+                        // Wait until the pending data is written.
+                        return;
+                    }
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    netIn.flip();
+                    var unwrapped = engine.unwrap(netIn, appIn);
+                    netIn.compact();
+                    if (unwrapped.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        // Wait for more data.
+                        return;
+                    }
+                    checkResult(unwrapped);
+                    break;
+                default:
+                    // FINISHED or NOT_HANDSHAKING
+                    handshakeFinished();
+                }
+            }
+        }
+
+        void handshakeFinished() throws IOException {
+
+            result.setHandshakeMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - handshakeStartNanos));
+            result.setProtocol(engine.getSession().getProtocol());
+            result.setCipherSuite(engine.getSession().getCipherSuite());
+            send("EHLO " + ehloName);
+            setState(State.EHLO_TLS);
+        }
+
+        void runTasks() {
+
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+        }
+
+        /**
+         * Unwraps all available application data into appIn, handles post-handshake messages (e.g. TLS 1.3 session tickets).
+         */
+        void unwrap() throws IOException {
+
+            while (netIn.position() > 0) {
+                netIn.flip();
+                var unwrapped = engine.unwrap(netIn, appIn);
+                netIn.compact();
+                if (unwrapped.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    return;
+                }
+                checkResult(unwrapped);
+                if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                }
+                if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    wrap(EMPTY);
+                }
+                if (unwrapped.bytesConsumed() == 0 && unwrapped.bytesProduced() == 0) {
+                    return;
+                }
+            }
+        }
+
+        void checkResult(SSLEngineResult result) throws IOException {
+
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("TLS connection closed by " + mxHost + " in state " + state);
+            }
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                throw new SSLException("Application buffer full for " + mxHost + " in state " + state);
+            }
+        }
+
+        /**
+         * @return false if the output buffer is still full and the data was not wrapped.
+         */
+        boolean wrap(ByteBuffer data) throws IOException {
+
+            while (true) {
+                var wrapped = engine.wrap(data, netOut);
+                if (wrapped.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    if (!flush()) {
+                        return false;
+                    }
+                    continue;
+                }
+                if (wrapped.getStatus() == SSLEngineResult.Status.CLOSED && state != State.QUIT) {
+                    throw new SSLException("TLS connection closed for " + mxHost + " in state " + state);
+                }
+                flush();
+                if (!data.hasRemaining()) {
+                    return true;
+                }
+            }
+        }
+
+        void send(String command) throws IOException {
+
+            var bytes = (command + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            if (tls) {
+                wrap(ByteBuffer.wrap(bytes));
+            } else {
+                netOut.put(bytes);
+                flush();
+            }
+        }
+
+        /**
+         * @return true if all output is written.
+         */
+        boolean flush() throws IOException {
+
+            netOut.flip();
+            channel.write(netOut);
+            netOut.compact();
+            boolean done = (netOut.position() == 0);
+            if (key != null && key.isValid()) {
+                key.interestOps(done ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+            return done;
+        }
+
+        void complete() {
+
+            result.setTotalMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+            close();
+            future.complete(result);
+        }
+
+        void fail(Throwable t) {
+
+            close();
+            if (future.completeExceptionally(t)) {
+                log.debug("STARTTLS probe to {} failed in state {}: {}", mxHost, state, t.toString());
+            }
+        }
+
+        void close() {
+
+            if (key != null) {
+                key.cancel();
+            }
+            if (tls) {
+                engine.closeOutbound();
+            }
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                log.trace("Closing channel to {} failed: {}", mxHost, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Takes a complete (possibly multi-line) reply from the buffer (in write mode).
+     * @return the reply lines separated by CRLF, or null if the reply is not complete.
+     */
+    static String takeReply(ByteBuffer buffer) {
+
+        buffer.flip();
+        int lineStart = buffer.position();
+        for (int i = lineStart; i < buffer.limit(); i++) {
+            if (buffer.get(i) != '\n') {
+                continue;
+            }
+            if (i - lineStart < 4 || buffer.get(lineStart + 3) != '-') {
+                // last line of the reply
+                var bytes = new byte[i + 1 - buffer.position()];
+                buffer.get(bytes);
+                buffer.compact();
+                return new String(bytes, StandardCharsets.US_ASCII).trim();
+            }
+            lineStart = i + 1;
+        }
+        buffer.compact();
+        return null;
+    }
+
+    static int replyCode(String reply) {
+
+        try {
+            return (reply.length() < 3 ? -1 : Integer.parseInt(reply.substring(0, 3)));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static boolean advertises(String ehloReply, String extension) {
+
+        for (var line : ehloReply.split("\r\n")) {
+            if (line.length() > 4 && line.substring(4).trim().toUpperCase(Locale.US).split(" ")[0].equals(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,91 @@
+package com.enovationgroup.dane.smtp;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+
+import java.net.SocketTimeoutException;
+import java.util.regex.Pattern;
+
+import javax.mail.MessagingException;
+
+/**
+ * Helper methods to interpret SMTP reply codes in exceptions thrown by {@link com.sun.mail.smtp.SMTPTransport}.
+ */
+public class SmtpReplies {
+
+    /** Matches e.g. "Could not connect to SMTP host: mx.domain, port: 25, response: 421". */
+    private static final Pattern RESPONSE_CODE = Pattern.compile("(?:response: |^)([2-5]\\d\\d)\\b");
+    private static final Pattern THROTTLE_TEXT = Pattern.compile("(?i)\\b4\\.7\\.\\d+\\b|too many|\\brate\\b|\\blimit|try again later");
+
+    private SmtpReplies() {}
+
+    /**
+     * Returns the first SMTP reply code found in the exception chain, or -1 if there is none.
+     */
+    public static int replyCode(Throwable t) {
+
+        for (var e = t; e != null; e = next(e)) {
+            int code = -1;
+            if (e instanceof SMTPSendFailedException) {
+                code = ((SMTPSendFailedException) e).getReturnCode();
+            } else if (e instanceof SMTPAddressFailedException) {
+                code = ((SMTPAddressFailedException) e).getReturnCode();
+            } else if (e instanceof SMTPSenderFailedException) {
+                code = ((SMTPSenderFailedException) e).getReturnCode();
+            } else if (e.getMessage() != null) {
+                var m = RESPONSE_CODE.matcher(e.getMessage());
+                if (m.find()) {
+                    code = Integer.parseInt(m.group(1));
+                }
+            }
+            if (code > 0) {
+                return code;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * True if the exception chain contains a reply indicating the remote server is limiting connections or rate:
+     * a 421 reply, or a 4xx reply with a 4.7.x status or a text mentioning rate limits.
+     */
+    public static boolean isThrottled(Throwable t) {
+
+        int code = replyCode(t);
+        if (code == 421) {
+            return true;
+        }
+        if (code < 400 || code >= 500) {
+            return false;
+        }
+        for (var e = t; e != null; e = next(e)) {
+            if (e.getMessage() != null && THROTTLE_TEXT.matcher(e.getMessage()).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * True if the exception chain contains a socket (connect or read) timeout.
+     */
+    public static boolean isTimeout(Throwable t) {
+
+        for (var e = t; e != null; e = next(e)) {
+            if (e instanceof SocketTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static Throwable next(Throwable e) {
+
+        if (e instanceof MessagingException && ((MessagingException) e).getNextException() != null) {
+            return ((MessagingException) e).getNextException();
+        }
+        return (e.getCause() == e ? null : e.getCause());
+    }
+
+}
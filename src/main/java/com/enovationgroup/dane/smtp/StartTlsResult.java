@@ -0,0 +1,22 @@
+package com.enovationgroup.dane.smtp;
+
+import lombok.Data;
+
+/**
+ * Outcome of a successful EHLO / STARTTLS / EHLO / NOOP exchange by the {@link NioStartTlsClient}.
+ */
+@Data
+public class StartTlsResult {
+
+    private String mxHost;
+    private String address;
+    private String greeting;
+    /** TLS protocol, e.g. TLSv1.3 */
+    private String protocol;
+    private String cipherSuite;
+    private long connectMillis;
+    /** Time from the STARTTLS command up to the finished TLS handshake, including DANE validation. */
+    private long handshakeMillis;
+    private long totalMillis;
+
+}
@@ -1,12 +1,12 @@
 package com.enovationgroup.dane.smtp;
 
 import com.enovationgroup.dane.dns.DaneRecord;
-import com.sun.mail.smtp.SMTPTransport;
 
 import java.util.Collection;
 import java.util.Properties;
 
 import javax.mail.Session;
+import javax.mail.URLName;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
@@ -16,43 +16,63 @@ import lombok.SneakyThrows;
 
 public class TransportFactory {
 
+    public static DaneSmtpTransport buildTransport(String mailHost, Collection<DaneRecord> daneRecords, boolean smtpDebug) {
+        return buildTransport(mailHost, 25, daneRecords, smtpDebug);
+    }
+
+    public static DaneSmtpTransport buildTransport(String mailHost, int port, Collection<DaneRecord> daneRecords, boolean smtpDebug) {
+
+        var options = new TransportOptions();
+        options.setPort(port);
+        options.setSmtpDebug(smtpDebug);
+        return buildTransport(mailHost, daneRecords, options);
+    }
+
     @SneakyThrows
-    public static SMTPTransport buildTransport(String mailHost, Collection<DaneRecord> daneRecords, boolean smtpDebug) {
+    public static DaneSmtpTransport buildTransport(String mailHost, Collection<DaneRecord> daneRecords, TransportOptions options) {
 
         Properties props = new Properties();
 
         props.put("mail.smtp.host", mailHost);
-        props.put("mail.smtp.port", 25);
-        props.put("mail.smtp.connectiontimeout", 3_000);
-        props.put("mail.smtp.timeout", 10_000);
-        // props.put("mail.smtp.localaddress", "bind-address");
-        props.put("mail.smtp.ssl.socketFactory", createSslSocketFactory(new TrustManagerDane(daneRecords), null));
+        props.put("mail.smtp.port", options.getPort());
+        props.put("mail.smtp.connectiontimeout", options.getConnectionTimeout());
+        props.put("mail.smtp.timeout", options.getTimeout());
+        if (options.getLocalAddress() != null) {
+            props.put("mail.smtp.localaddress", options.getLocalAddress());
+        }
+        var trustManager = new TrustManagerDane(daneRecords);
+        trustManager.setAuditLog(options.getAuditLog());
+        trustManager.setDomain(options.getDomain());
+        props.put("mail.smtp.ssl.socketFactory", createSslSocketFactory(trustManager, null));
         props.put("mail.smtp.auth", false); // disable basic-auth
         props.put("mail.smtp.starttls.enable", true);
         props.put("mail.smtp.starttls.required", true);
 
         var session = Session.getInstance(props);
-        if (smtpDebug) {
+        if (options.isSmtpDebug()) {
             SmtpWireLog.registerWireLog(session);
         }
-        return (SMTPTransport) session.getTransport("smtp");
+        // Same URL name as used by session.getTransport("smtp").
+        return new DaneSmtpTransport(session, new URLName("smtp", null, -1, null, null, null));
     }
 
     public static SSLSocketFactory createSslSocketFactory(TrustManager trustManager, KeyManager keyManager) {
         return createSslSocketFactory("TLS", trustManager, keyManager);
     }
 
-    @SneakyThrows
     public static SSLSocketFactory createSslSocketFactory(String protocol, TrustManager trustManager, KeyManager keyManager) {
+        return createSslContext(protocol, trustManager, keyManager).getSocketFactory();
+    }
+
+    @SneakyThrows
+    public static SSLContext createSslContext(String protocol, TrustManager trustManager, KeyManager keyManager) {
 
-        SSLSocketFactory socketFactory;
         SSLContext sslcontext = SSLContext.getInstance(protocol);
         sslcontext.init(
             keyManager == null ? null : new KeyManager[]{keyManager},
                     trustManager == null ? null : new TrustManager[]{trustManager},
                             null);
-        socketFactory = sslcontext.getSocketFactory();
-        return socketFactory;
+        return sslcontext;
     }
 
 }
@@ -0,0 +1,42 @@
+package com.enovationgroup.dane.smtp;
+
+import com.enovationgroup.dane.audit.AuditLog;
+
+import lombok.Data;
+
+/**
+ * Connection properties used by {@link TransportFactory#buildTransport(String, java.util.Collection, TransportOptions)}.
+ */
+@Data
+public class TransportOptions {
+
+    private int port = 25;
+    /** Socket connect timeout in milliseconds (<tt>mail.smtp.connectiontimeout</tt>). */
+    private int connectionTimeout = 3_000;
+    /** Socket read timeout in milliseconds (<tt>mail.smtp.timeout</tt>). */
+    private int timeout = 10_000;
+    private boolean smtpDebug;
+    /** Local address to bind the socket to (<tt>mail.smtp.localaddress</tt>), null for any. See {@link LocalAddressPool}. */
+    private String localAddress;
+    /** Audit log for the DANE validations, null for none. */
+    private AuditLog auditLog;
+    /**
+     * Recipient domain of the connection, used in DANE validation events and the audit log.
+     * Null to use the domain of the DANE records (records resolved for many domains have no domain).
+     */
+    private String domain;
+
+    public TransportOptions copy() {
+
+        var copy = new TransportOptions();
+        copy.setPort(port);
+        copy.setConnectionTimeout(connectionTimeout);
+        copy.setTimeout(timeout);
+        copy.setSmtpDebug(smtpDebug);
+        copy.setLocalAddress(localAddress);
+        copy.setAuditLog(auditLog);
+        copy.setDomain(domain);
+        return copy;
+    }
+
+}
@@ -2,8 +2,11 @@ package com.enovationgroup.dane.smtp;
 
 import org.apache.commons.lang3.StringUtils;
 
+import com.enovationgroup.dane.audit.AuditLog;
 import com.enovationgroup.dane.dns.DaneRecord;
+import com.enovationgroup.dane.jfr.DaneValidationEvent;
 
+import java.security.DigestException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -17,14 +20,27 @@ import java.util.stream.Collectors;
 
 import javax.net.ssl.X509TrustManager;
 
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
 @RequiredArgsConstructor
 @Slf4j
 public class TrustManagerDane implements X509TrustManager {
 
+    private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> newDigester("SHA-256"));
+    private static final ThreadLocal<MessageDigest> sha512 = ThreadLocal.withInitial(() -> newDigester("SHA-512"));
+    private static final ThreadLocal<byte[]> digestBuffer = ThreadLocal.withInitial(() -> new byte[64]);
+
     private final Collection<DaneRecord> daneRecords;
+    /** When set, each validation is recorded in the audit log. */
+    @Getter @Setter
+    private AuditLog auditLog;
+    /** Recipient domain, when null the domain of the DANE records is used (if any). */
+    @Getter @Setter
+    private String domain;
 
     @Override
     public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
@@ -34,6 +50,53 @@ public class TrustManagerDane implements X509TrustManager {
     @Override
     public void checkServerTrusted(X509Certificate[] certs, String authType) throws CertificateException {
 
+        var event = new DaneValidationEvent();
+        event.begin();
+        long start = System.nanoTime();
+        DaneRecord matched = null;
+        Throwable failure = null;
+        try {
+            matched = validate(certs, authType);
+            if (event.isEnabled()) {
+                event.setMatchedUsage(matched.getCertificateUsage().name());
+            }
+        } catch (CertificateException | RuntimeException e) {
+            failure = e;
+            event.failed(e);
+            throw e;
+        } finally {
+            CertificateException rejected = null;
+            if (auditLog != null) {
+                try {
+                    auditLog.record(domain(), certs, daneRecords, matched, failure, System.nanoTime() - start);
+                } catch (IllegalStateException e) {
+                    if (failure != null) {
+                        failure.addSuppressed(e);
+                    } else {
+                        // A validation that is not in the audit log is not accepted.
+                        rejected = new CertificateException("DANE validation could not be recorded in the audit log.", e);
+                        event.failed(rejected);
+                    }
+                }
+            }
+            if (event.isEnabled()) {
+                event.setChainLength(certs == null ? 0 : certs.length);
+                event.setRecordCount(daneRecords.size());
+                event.setDomain(domain());
+                daneRecords.stream().findFirst().ifPresent(r -> event.setMxHost(r.getDomain()));
+            }
+            event.complete();
+            if (rejected != null) {
+                throw rejected;
+            }
+        }
+    }
+
+    /**
+     * @return the TLSA record that matched.
+     */
+    DaneRecord validate(X509Certificate[] certs, String authType) throws CertificateException {
+
         if (certs == null || certs.length == 0) {
             throw new CertificateException("Certificate chain is empty.");
         }
@@ -44,21 +107,39 @@ public class TrustManagerDane implements X509TrustManager {
         var daneDomainRecords = daneRecords.stream()
             .filter(e -> e.getCertificateUsage() == DaneRecord.CertificateUsage.DANE_EE)
             .collect(Collectors.toList());
-        if (validateDane(certs, daneDomainRecords)) {
-            return;
+        var matched = findValidDane(certs, daneDomainRecords);
+        if (matched != null) {
+            return matched;
         }
         // DANE_TA can only be used if another intermediate (trust anchor) certificate is also send by SMTP server.
         if (certs.length > 1) {
             var daneTrustedAnchorRecords = daneRecords.stream()
                     .filter(e -> e.getCertificateUsage() == DaneRecord.CertificateUsage.DANE_TA)
                     .collect(Collectors.toList());
-            if (validateDane(certs, daneTrustedAnchorRecords)) {
-                return;
+            matched = findValidDane(certs, daneTrustedAnchorRecords);
+            if (matched != null) {
+                return matched;
             }
         }
         // DANE validation for presented server certificates failed.
         var r = daneRecords.stream().findFirst().get();
-        throw new CertificateException("No valid DANE certificates found for domain " + r.getDomain() + " / " + r.getMxDomain());
+        throw new CertificateException("No valid DANE certificates found for " + describe(r));
+    }
+
+    /**
+     * The recipient domain, or the domain of the DANE records. Null when unknown.
+     */
+    String domain() {
+        return (domain != null ? domain : daneRecords.stream().map(DaneRecord::getMxDomain).filter(d -> d != null).findFirst().orElse(null));
+    }
+
+    /**
+     * Email-server and (if known) recipient domain for messages.
+     */
+    String describe(DaneRecord record) {
+
+        var recipientDomain = domain();
+        return "email-server " + record.getDomain() + (recipientDomain == null ? "" : " for domain " + recipientDomain);
     }
 
     @Override
@@ -67,15 +148,22 @@ public class TrustManagerDane implements X509TrustManager {
     }
 
     boolean validateDane(X509Certificate[] certs, Collection<DaneRecord> records) {
+        return findValidDane(certs, records) != null;
+    }
+
+    /**
+     * @return the first record that matches the chain, or null.
+     */
+    DaneRecord findValidDane(X509Certificate[] certs, Collection<DaneRecord> records) {
 
         if (records.isEmpty()) {
-            return false;
+            return null;
         }
         var found = records.stream().filter(r -> isValidDane(certs, r)).findFirst();
         if (log.isDebugEnabled() && found.isPresent()) {
             log.debug("Found match for dane record {}", found.get());
         }
-        return found.isPresent();
+        return found.orElse(null);
     }
 
     boolean isValidDane(X509Certificate[] certs, DaneRecord record) {
@@ -90,39 +178,55 @@ public class TrustManagerDane implements X509TrustManager {
                 return validateDaneTA(certs, record);
             }
         } catch (Exception e) {
-            log.error("DANE validation failed unexpectedly for domain {} / {}.", record.getDomain(), record.getMxDomain(), e);
+            log.error("DANE validation failed unexpectedly for {}.", describe(record), e);
         }
         return false;
     }
 
-    boolean validateDaneEE(X509Certificate[] certs, DaneRecord record) throws NoSuchAlgorithmException, CertificateEncodingException {
+    boolean validateDaneEE(X509Certificate[] certs, DaneRecord record) throws NoSuchAlgorithmException, CertificateEncodingException, DigestException {
 
         // Validate DANE record against the domain certificate.
         return validateDaneCert(certs[0], record);
     }
 
-    boolean validateDaneCert(X509Certificate cert, DaneRecord record) throws NoSuchAlgorithmException, CertificateEncodingException {
+    boolean validateDaneCert(X509Certificate cert, DaneRecord record) throws NoSuchAlgorithmException, CertificateEncodingException, DigestException {
 
+        byte[] certData = cert.getEncoded();
+        int offset = 0;
+        int length = certData.length;
+        if (record.getSelector() == DaneRecord.Selector.PUBLIC_KEY) {
+            // Hash the SubjectPublicKeyInfo bytes in the certificate, instead of decoding and re-encoding the public key.
+            long range = DerSlices.subjectPublicKeyInfo(certData);
+            if (range < 0L) {
+                log.debug("SubjectPublicKeyInfo not found in certificate data, using encoded public key.");
+                certData = cert.getPublicKey().getEncoded();
+                length = certData.length;
+            } else {
+                offset = DerSlices.offset(range);
+                length = DerSlices.length(range);
+            }
+        }
+        // DaneRecord.Selector.FULL uses the entire certificate data.
+        var expected = record.getCertificateAssociationData();
+        if (expected == null) {
+            return false;
+        }
         MessageDigest digester = null;
         if (record.getMatchingType() == DaneRecord.MatchingType.SHA_256) {
-            digester = MessageDigest.getInstance("SHA-256");
+            digester = sha256.get();
         } else if (record.getMatchingType() == DaneRecord.MatchingType.SHA_512) {
-            digester = MessageDigest.getInstance("SHA-512");
-        }
-        byte[] certData;
-        if (record.getSelector() == DaneRecord.Selector.PUBLIC_KEY) {
-            certData = cert.getPublicKey().getEncoded();
-        } else {
-            // DaneRecord.Selector.FULL
-            certData = cert.getEncoded();
+            digester = sha512.get();
         }
-        if (digester != null) {
-            certData = digester.digest(certData);
+        if (digester == null) {
+            return Arrays.equals(certData, offset, offset + length, expected, 0, expected.length);
         }
-        return Arrays.equals(certData, record.getCertificateAssociationData());
+        var digest = digestBuffer.get();
+        digester.update(certData, offset, length);
+        int digestLength = digester.digest(digest, 0, digest.length);
+        return Arrays.equals(digest, 0, digestLength, expected, 0, expected.length);
     }
 
-    boolean validateDaneTA(X509Certificate[] certs, DaneRecord record) throws NoSuchAlgorithmException, CertificateEncodingException {
+    boolean validateDaneTA(X509Certificate[] certs, DaneRecord record) throws NoSuchAlgorithmException, CertificateEncodingException, DigestException {
 
         // Validate DANE record against trust anchor (first intermediate certificate).
         if (!validateDaneCert(certs[1], record)) {
@@ -136,9 +240,9 @@ public class TrustManagerDane implements X509TrustManager {
                 certs[i].verify(certs[i+1].getPublicKey());
                 verified = true;
             } catch (SignatureException | InvalidKeyException e) {
-                log.warn("Invalid certificate chain for domain {} / {}: {}", record.getDomain(), record.getMxDomain(), e.toString());
+                log.warn("Invalid certificate chain for {}: {}", describe(record), e.toString());
             } catch (Exception e) {
-                log.warn("Unable to verify certificate chain for domain {} / {}: {}", record.getDomain(), record.getMxDomain(), e);
+                log.warn("Unable to verify certificate chain for {}: {}", describe(record), e);
             }
             if (!verified) {
                 return false;
@@ -147,4 +251,9 @@ public class TrustManagerDane implements X509TrustManager {
         return true;
     }
 
+    @SneakyThrows
+    static MessageDigest newDigester(String algorithm) {
+        return MessageDigest.getInstance(algorithm);
+    }
+
 }
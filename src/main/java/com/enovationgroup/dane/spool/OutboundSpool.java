@@ -0,0 +1,861 @@
+package com.enovationgroup.dane.spool;
+
+import com.enovationgroup.dane.MailUtil;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Durable queue of outbound messages in memory-mapped segment files.
+ * <br>Changes (enqueue, retry, done) are appended as records to the current segment file. A committer thread
+ * forces the segment to disk once for all records appended since the previous force (group commit) and then
+ * completes the futures returned for the changes: a message is durable when its {@link #enqueue} future completes.
+ * <br>Messages ready for delivery are kept per recipient domain, delivery workers {@link #claim(int) claim}
+ * a batch of messages for one domain so that DNS lookups and connections can be reused for the batch.
+ * Messages that must be retried wait in a queue ordered by the time of the next attempt (exponential backoff),
+ * only messages that are due are moved to the ready queues.
+ * <br>A claim is a lease: a message that is not completed within {@link #getClaimTimeoutMillis()}
+ * (e.g. the worker died) is ready again. Only the current claim of a message can complete it.
+ * <br>On open, the segment files are scanned to restore the spool. Messages that were claimed but not completed
+ * before a restart are ready again (at-least-once delivery). Segment files are deleted, oldest first,
+ * when all messages in the segment are done.
+ */
+@Slf4j
+public class OutboundSpool implements AutoCloseable {
+
+    static final long SEGMENT_MAGIC = 0x44414E4553504C31L; // "DANESPL1"
+    static final int SEGMENT_HEADER_SIZE = 16;
+    static final int RECORD_HEADER_SIZE = 12;
+    static final int ENQUEUE = 1;
+    static final int RETRY = 2;
+    static final int DONE = 3;
+    static final String SEGMENT_PREFIX = "spool-";
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    private final Path directory;
+    private final LongSupplier clock;
+    private final int segmentSize;
+
+    // Guarded by the append lock.
+    private final Object appendLock = new Object();
+    private volatile Segment current;
+    private long nextId = 1L;
+    private final CRC32 crc = new CRC32();
+
+    // Group commit.
+    private final ConcurrentLinkedQueue<Commit> commits = new ConcurrentLinkedQueue<>();
+    private final Thread committer;
+    private volatile boolean closed;
+
+    // Guarded by the index lock.
+    private final Object indexLock = new Object();
+    private final Map<Long, Entry> entries = new HashMap<>();
+    private final LinkedHashMap<String, ArrayDeque<Entry>> ready = new LinkedHashMap<>();
+    private final PriorityQueue<Entry> delayed = new PriorityQueue<>(Comparator.comparingLong((Entry e) -> e.nextAttempt).thenComparingLong(e -> e.id));
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    /** Claimed entries in order of claim (and lease expiry). */
+    private final LinkedHashMap<Long, Entry> claimed = new LinkedHashMap<>();
+    private long nextClaim = 1L;
+
+    @Getter @Setter
+    private long retryInitialDelayMillis = 60_000L;
+    @Getter @Setter
+    private long retryMaxDelayMillis = 3_600_000L;
+    /** Messages are dropped after this many failed attempts. */
+    @Getter @Setter
+    private int maxAttempts = 10;
+    /** A claimed message that is not completed within this time is ready for delivery again. */
+    @Getter @Setter
+    private long claimTimeoutMillis = 600_000L;
+
+    public OutboundSpool(Path directory) throws IOException {
+        this(directory, 64 * 1024 * 1024);
+    }
+
+    /**
+     * @param segmentSize size of a segment file in bytes, a larger segment is used for a message that does not fit.
+     */
+    public OutboundSpool(Path directory, int segmentSize) throws IOException {
+        this(directory, segmentSize, System::currentTimeMillis);
+    }
+
+    OutboundSpool(Path directory, int segmentSize, LongSupplier clock) throws IOException {
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.clock = clock;
+        Files.createDirectories(directory);
+        recover();
+        this.committer = new Thread(this::commitLoop, "dane-spool-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Adds a message to the spool.
+     * @param domain recipient domain, messages are claimed per domain.
+     * @param payload the RFC 5322 message (from position to limit).
+     * @return the message id, completed when the message is durable and ready for delivery.
+     */
+    public CompletableFuture<Long> enqueue(String domain, String sender, Collection<String> recipients, ByteBuffer payload) {
+
+        var key = MailUtil.lowerCase(domain);
+        var body = new RecordWriter();
+        var future = new CompletableFuture<Long>();
+        try {
+            Entry entry;
+            synchronized (appendLock) {
+                checkOpen();
+                long id = nextId++;
+                long now = clock.getAsLong();
+                body.putLong(id);
+                body.putLong(now);
+                body.putString(key);
+                body.putString(sender == null ? "" : sender);
+                body.putShort(recipients.size());
+                recipients.forEach(body::putString);
+                body.putInt(payload.remaining());
+                var location = append(ENQUEUE, body, payload);
+                var stored = location.segment.buffer.duplicate();
+                stored.position(location.offset + RECORD_HEADER_SIZE + body.size()).limit(location.end);
+                entry = new Entry(id, key, sender, List.copyOf(recipients), now, location.segment, stored.slice().asReadOnlyBuffer());
+                entry.nextAttempt = now;
+                synchronized (indexLock) {
+                    // Counted before the commit so that the segment is not deleted in the meantime.
+                    location.segment.live++;
+                }
+                commits.add(new Commit(location.segment, () -> {
+                    addEntry(entry);
+                    future.complete(id);
+                }, future));
+            }
+            LockSupport.unpark(committer);
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Adds the message file to the spool, see {@link #enqueue(String, String, Collection, ByteBuffer)}.
+     */
+    public CompletableFuture<Long> enqueue(String domain, String sender, Collection<String> recipients, Path message) throws IOException {
+
+        try (var channel = FileChannel.open(message, StandardOpenOption.READ)) {
+            return enqueue(domain, sender, recipients, channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size()));
+        }
+    }
+
+    /**
+     * Claims up to max messages for the domain that has been waiting the longest, see {@link #claim(String, int)}.
+     * @return an empty list when no messages are ready.
+     */
+    public List<SpoolMessage> claim(int max) {
+
+        synchronized (indexLock) {
+            moveDue();
+            var it = ready.keySet().iterator();
+            return (it.hasNext() ? claimReady(it.next(), max) : Collections.emptyList());
+        }
+    }
+
+    /**
+     * Waits up to the timeout for messages to become ready, see {@link #claim(int)}.
+     */
+    public List<SpoolMessage> claim(int max, long timeout, TimeUnit unit) throws InterruptedException {
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (indexLock) {
+            while (true) {
+                var messages = claim(max);
+                long waitNanos = deadline - System.nanoTime();
+                if (!messages.isEmpty() || waitNanos <= 0L || closed) {
+                    return messages;
+                }
+                long waitMillis = Math.max(1L, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+                var next = delayed.peek();
+                if (next != null) {
+                    waitMillis = Math.max(1L, Math.min(waitMillis, next.nextAttempt - clock.getAsLong()));
+                }
+                var it = claimed.values().iterator();
+                if (it.hasNext()) {
+                    waitMillis = Math.max(1L, Math.min(waitMillis, it.next().claimExpires - clock.getAsLong()));
+                }
+                indexLock.wait(waitMillis);
+            }
+        }
+    }
+
+    /**
+     * Claims up to max ready messages for the domain,
+     * e.g. to send more messages over an open connection to an email-server of the domain.
+     * Claimed messages must be completed with {@link #delivered(SpoolMessage)}, {@link #retry(SpoolMessage)}
+     * or {@link #failed(SpoolMessage)} within {@link #getClaimTimeoutMillis()}.
+     */
+    public List<SpoolMessage> claim(String domain, int max) {
+
+        synchronized (indexLock) {
+            moveDue();
+            return claimReady(MailUtil.lowerCase(domain), max);
+        }
+    }
+
+    List<SpoolMessage> claimReady(String domain, int max) {
+
+        var queue = ready.get(domain);
+        if (queue == null) {
+            return Collections.emptyList();
+        }
+        long expires = clock.getAsLong() + claimTimeoutMillis;
+        var messages = new ArrayList<SpoolMessage>(Math.min(max, queue.size()));
+        while (messages.size() < max && !queue.isEmpty()) {
+            var entry = queue.poll();
+            entry.claim = nextClaim++;
+            entry.claimExpires = expires;
+            claimed.remove(entry.id);
+            claimed.put(entry.id, entry);
+            messages.add(entry.toMessage());
+        }
+        if (queue.isEmpty()) {
+            ready.remove(domain);
+        } else {
+            // Other domains first.
+            ready.remove(domain);
+            ready.put(domain, queue);
+        }
+        return messages;
+    }
+
+    /**
+     * Moves messages that are due for a retry and messages with an expired claim to the ready queues.
+     */
+    void moveDue() {
+
+        long now = clock.getAsLong();
+        Entry entry;
+        while ((entry = delayed.peek()) != null && entry.nextAttempt <= now) {
+            delayed.poll();
+            ready.computeIfAbsent(entry.domain, k -> new ArrayDeque<>()).add(entry);
+        }
+        var it = claimed.values().iterator();
+        while (it.hasNext() && (entry = it.next()).claimExpires <= now) {
+            it.remove();
+            // The claim remains valid until the message is claimed again.
+            log.info("Claim of message {} for domain {} expired, message is ready again.", entry.id, entry.domain);
+            ready.computeIfAbsent(entry.domain, k -> new ArrayDeque<>()).add(entry);
+        }
+    }
+
+    /**
+     * Starts the completion of a claimed message: the message is no longer claimed or ready.
+     * @return null when the message is not claimed (or claimed again after the claim expired) or already completed.
+     */
+    Entry complete(SpoolMessage message) {
+
+        synchronized (indexLock) {
+            var entry = entries.get(message.getId());
+            if (entry == null || entry.claim == 0L || entry.claim != message.claim) {
+                return null;
+            }
+            entry.claim = 0L;
+            claimed.remove(entry.id);
+            var queue = ready.get(entry.domain);
+            if (queue != null && queue.remove(entry) && queue.isEmpty()) {
+                ready.remove(entry.domain);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Makes the message ready again when the completion could not be written.
+     */
+    void completionFailed(Entry entry) {
+
+        synchronized (indexLock) {
+            if (entries.get(entry.id) == entry && entry.claim == 0L && !delayed.contains(entry)) {
+                ready.computeIfAbsent(entry.domain, k -> new ArrayDeque<>()).add(entry);
+                indexLock.notifyAll();
+            }
+        }
+    }
+
+    static <T> CompletableFuture<T> notClaimed(SpoolMessage message) {
+        return CompletableFuture.failedFuture(new IllegalStateException("Message " + message.getId() + " is not claimed."));
+    }
+
+    /**
+     * Removes the delivered message from the spool.
+     */
+    public CompletableFuture<Void> delivered(SpoolMessage message) {
+        return done(message);
+    }
+
+    /**
+     * Removes the message that cannot be delivered from the spool.
+     */
+    public CompletableFuture<Void> failed(SpoolMessage message) {
+
+        var entry = complete(message);
+        if (entry == null) {
+            return notClaimed(message);
+        }
+        log.info("Removing undeliverable message {} for domain {} after {} attempts.", message.getId(), message.getDomain(), message.getAttempts() + 1);
+        return done(entry);
+    }
+
+    CompletableFuture<Void> done(SpoolMessage message) {
+
+        var entry = complete(message);
+        if (entry == null) {
+            return notClaimed(message);
+        }
+        return done(entry);
+    }
+
+    CompletableFuture<Void> done(Entry entry) {
+
+        var body = new RecordWriter();
+        body.putLong(entry.id);
+        var future = appendCommit(DONE, body, () -> {
+            synchronized (indexLock) {
+                if (entries.remove(entry.id) != null) {
+                    entry.segment.live--;
+                    deleteDoneSegments();
+                }
+            }
+        });
+        future.whenComplete((v, e) -> {
+            if (e != null) {
+                completionFailed(entry);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Schedules a new attempt with exponential backoff.
+     * @return true when the message will be retried,
+     *         false when the message is removed because it reached the {@link #getMaxAttempts()}.
+     */
+    public CompletableFuture<Boolean> retry(SpoolMessage message) {
+
+        int attempts = message.getAttempts() + 1;
+        if (attempts >= maxAttempts) {
+            return failed(message).thenApply(v -> false);
+        }
+        var entry = complete(message);
+        if (entry == null) {
+            return notClaimed(message);
+        }
+        long nextAttempt = clock.getAsLong() + backoffMillis(attempts);
+        var body = new RecordWriter();
+        body.putLong(entry.id);
+        body.putInt(attempts);
+        body.putLong(nextAttempt);
+        var future = appendCommit(RETRY, body, () -> {
+            synchronized (indexLock) {
+                if (entries.get(entry.id) == entry) {
+                    entry.attempts = attempts;
+                    entry.nextAttempt = nextAttempt;
+                    delayed.add(entry);
+                    indexLock.notifyAll();
+                }
+            }
+        });
+        future.whenComplete((v, e) -> {
+            if (e != null) {
+                completionFailed(entry);
+            }
+        });
+        return future.thenApply(v -> true);
+    }
+
+    long backoffMillis(int attempts) {
+
+        long delay = retryInitialDelayMillis << Math.min(attempts - 1, 30);
+        return (delay <= 0L || delay > retryMaxDelayMillis ? retryMaxDelayMillis : delay);
+    }
+
+    CompletableFuture<Void> appendCommit(int type, RecordWriter body, Runnable onCommit) {
+
+        var future = new CompletableFuture<Void>();
+        try {
+            synchronized (appendLock) {
+                checkOpen();
+                var location = append(type, body, null);
+                commits.add(new Commit(location.segment, () -> {
+                    onCommit.run();
+                    future.complete(null);
+                }, future));
+            }
+            LockSupport.unpark(committer);
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Spool is closed.");
+        }
+    }
+
+    /**
+     * Number of messages in the spool (ready, waiting for a retry or claimed).
+     */
+    public int size() {
+
+        synchronized (indexLock) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Domains with messages ready for delivery, in claim order.
+     */
+    public List<String> getReadyDomains() {
+
+        synchronized (indexLock) {
+            moveDue();
+            return new ArrayList<>(ready.keySet());
+        }
+    }
+
+    public int getSegmentCount() {
+
+        synchronized (indexLock) {
+            return segments.size();
+        }
+    }
+
+    void addEntry(Entry entry) {
+
+        synchronized (indexLock) {
+            entries.put(entry.id, entry);
+            if (entry.nextAttempt <= clock.getAsLong()) {
+                ready.computeIfAbsent(entry.domain, k -> new ArrayDeque<>()).add(entry);
+            } else {
+                delayed.add(entry);
+            }
+            indexLock.notifyAll();
+        }
+    }
+
+    /**
+     * Deletes segments, oldest first, without messages. Records in newer segments
+     * (e.g. done records for messages in older segments) must remain until the older segments are deleted.
+     */
+    void deleteDoneSegments() {
+
+        while (!segments.isEmpty()) {
+            var oldest = segments.firstEntry().getValue();
+            if (oldest.live > 0 || oldest == current) {
+                return;
+            }
+            segments.pollFirstEntry();
+            try {
+                oldest.channel.close();
+                Files.deleteIfExists(oldest.path);
+                log.debug("Deleted spool segment {}", oldest.path);
+            } catch (IOException e) {
+                log.warn("Cannot delete spool segment {}: {}", oldest.path, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Appends the record to the current segment, a new segment is started when the record does not fit.
+     * The payload (if not null) is appended after the body.
+     */
+    Location append(int type, RecordWriter body, ByteBuffer payload) throws IOException {
+
+        int payloadSize = (payload == null ? 0 : payload.remaining());
+        int size = RECORD_HEADER_SIZE + body.size() + payloadSize;
+        if (current == null || current.buffer.remaining() < size + Integer.BYTES) {
+            openSegment(size + Integer.BYTES);
+        }
+        var buffer = current.buffer;
+        int offset = buffer.position();
+        crc.reset();
+        crc.update(body.bytes(), 0, body.size());
+        if (payload != null) {
+            crc.update(payload.duplicate());
+        }
+        buffer.position(offset + Integer.BYTES);
+        buffer.putInt(body.size() + payloadSize);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(body.bytes(), 0, body.size());
+        if (payload != null) {
+            buffer.put(payload.duplicate());
+        }
+        // Type last: the record is complete.
+        buffer.putInt(offset, type);
+        return new Location(current, offset, buffer.position());
+    }
+
+    void openSegment(int minSize) throws IOException {
+
+        var previous = current;
+        long sequence = (previous == null ? lastSegmentSequence() : previous.sequence) + 1L;
+        var path = directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+        var channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0L, Math.max(segmentSize, SEGMENT_HEADER_SIZE + minSize));
+        buffer.putLong(SEGMENT_MAGIC);
+        buffer.putLong(sequence);
+        buffer.force();
+        current = new Segment(sequence, path, channel, buffer);
+        synchronized (indexLock) {
+            segments.put(sequence, current);
+            // The previous segment may only have been kept because it was current.
+            deleteDoneSegments();
+        }
+        log.debug("Writing spool segment {}", path);
+    }
+
+    long lastSegmentSequence() {
+
+        synchronized (indexLock) {
+            return (segments.isEmpty() ? 0L : segments.lastKey());
+        }
+    }
+
+    void commitLoop() {
+
+        var batch = new ArrayList<Commit>();
+        while (true) {
+            Commit commit;
+            while ((commit = commits.poll()) != null) {
+                batch.add(commit);
+            }
+            if (batch.isEmpty()) {
+                if (closed) {
+                    return;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10L));
+                continue;
+            }
+            Segment forced = null;
+            try {
+                for (var c : batch) {
+                    if (c.segment != forced) {
+                        c.segment.buffer.force();
+                        forced = c.segment;
+                    }
+                }
+                for (var c : batch) {
+                    c.onCommit.run();
+                }
+            } catch (RuntimeException e) {
+                log.error("Spool commit failed.", e);
+                batch.forEach(c -> c.future.completeExceptionally(e));
+            }
+            log.trace("Committed {} spool records.", batch.size());
+            batch.clear();
+        }
+    }
+
+    /**
+     * Restores the spool from the segment files.
+     */
+    void recover() throws IOException {
+
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(f -> segmentSequence(f) > 0L).sorted().collect(Collectors.toList());
+        }
+        for (var path : files) {
+            var channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            var segment = new Segment(segmentSequence(path), path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0L, channel.size()));
+            segments.put(segment.sequence, segment);
+            recoverSegment(segment);
+        }
+        long now = clock.getAsLong();
+        for (var entry : entries.values()) {
+            if (entry.nextAttempt <= now) {
+                ready.computeIfAbsent(entry.domain, k -> new ArrayDeque<>()).add(entry);
+            } else {
+                delayed.add(entry);
+            }
+        }
+        // Ready in order of arrival.
+        for (var queue : ready.values()) {
+            var sorted = new ArrayList<>(queue);
+            sorted.sort(Comparator.comparingLong(e -> e.id));
+            queue.clear();
+            queue.addAll(sorted);
+        }
+        deleteDoneSegments();
+        if (!entries.isEmpty() || !files.isEmpty()) {
+            log.info("Recovered {} messages from {} spool segments.", entries.size(), files.size());
+        }
+    }
+
+    void recoverSegment(Segment segment) {
+
+        var buffer = segment.buffer;
+        if (buffer.limit() < SEGMENT_HEADER_SIZE || buffer.getLong(0) != SEGMENT_MAGIC) {
+            log.warn("Ignoring invalid spool segment {}", segment.path);
+            return;
+        }
+        int offset = SEGMENT_HEADER_SIZE;
+        while (offset + RECORD_HEADER_SIZE <= buffer.limit()) {
+            int type = buffer.getInt(offset);
+            int length = buffer.getInt(offset + 4);
+            if (type < ENQUEUE || type > DONE || length < 0 || offset + RECORD_HEADER_SIZE + length > buffer.limit()) {
+                break;
+            }
+            var body = buffer.duplicate();
+            body.position(offset + RECORD_HEADER_SIZE).limit(offset + RECORD_HEADER_SIZE + length);
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(offset + 8)) {
+                log.warn("Spool segment {} has an incomplete record at offset {}.", segment.path, offset);
+                break;
+            }
+            recoverRecord(segment, type, body.slice());
+            offset += RECORD_HEADER_SIZE + length;
+        }
+    }
+
+    void recoverRecord(Segment segment, int type, ByteBuffer body) {
+
+        long id = body.getLong();
+        nextId = Math.max(nextId, id + 1L);
+        if (type == ENQUEUE) {
+            long enqueued = body.getLong();
+            var domain = getString(body);
+            var sender = getString(body);
+            int count = body.getShort() & 0xFFFF;
+            var recipients = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+                recipients.add(getString(body));
+            }
+            int payloadSize = body.getInt();
+            var payload = body.slice().limit(payloadSize).slice().asReadOnlyBuffer();
+            var entry = new Entry(id, domain, sender, Collections.unmodifiableList(recipients), enqueued, segment, payload);
+            entry.nextAttempt = enqueued;
+            entries.put(id, entry);
+            segment.live++;
+        } else {
+            var entry = entries.get(id);
+            if (entry == null) {
+                return;
+            }
+            if (type == RETRY) {
+                entry.attempts = body.getInt();
+                entry.nextAttempt = body.getLong();
+            } else {
+                entries.remove(id);
+                entry.segment.live--;
+            }
+        }
+    }
+
+    static String getString(ByteBuffer buffer) {
+
+        var bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static long segmentSequence(Path file) {
+
+        var name = file.getFileName().toString();
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return 0L;
+        }
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+    /**
+     * Waits for pending commits and closes the segment files.
+     * Payloads of claimed messages remain readable.
+     */
+    @Override
+    @SneakyThrows
+    public void close() {
+
+        synchronized (appendLock) {
+            closed = true;
+        }
+        LockSupport.unpark(committer);
+        committer.join();
+        synchronized (indexLock) {
+            for (var segment : segments.values()) {
+                try {
+                    segment.channel.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            indexLock.notifyAll();
+        }
+    }
+
+    static class Segment {
+
+        final long sequence;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        /** Messages enqueued in this segment that are not done, guarded by the index lock. */
+        int live;
+
+        Segment(long sequence, Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    static class Location {
+
+        final Segment segment;
+        final int offset;
+        final int end;
+
+        Location(Segment segment, int offset, int end) {
+            this.segment = segment;
+            this.offset = offset;
+            this.end = end;
+        }
+    }
+
+    static class Commit {
+
+        final Segment segment;
+        final Runnable onCommit;
+        final CompletableFuture<?> future;
+
+        Commit(Segment segment, Runnable onCommit, CompletableFuture<?> future) {
+            this.segment = segment;
+            this.onCommit = onCommit;
+            this.future = future;
+        }
+    }
+
+    /**
+     * State of a message, guarded by the index lock.
+     */
+    static class Entry {
+
+        final long id;
+        final String domain;
+        final String sender;
+        final List<String> recipients;
+        final long enqueued;
+        final Segment segment;
+        final ByteBuffer payload;
+        int attempts;
+        long nextAttempt;
+        /** Current claim, 0 when not claimed. */
+        long claim;
+        long claimExpires;
+
+        Entry(long id, String domain, String sender, List<String> recipients, long enqueued, Segment segment, ByteBuffer payload) {
+            this.id = id;
+            this.domain = domain;
+            this.sender = sender;
+            this.recipients = recipients;
+            this.enqueued = enqueued;
+            this.segment = segment;
+            this.payload = payload;
+        }
+
+        SpoolMessage toMessage() {
+            return new SpoolMessage(id, domain, sender, recipients, enqueued, attempts, payload, claim);
+        }
+    }
+
+    /**
+     * Growable buffer for the fixed part of a record.
+     */
+    static class RecordWriter {
+
+        private ByteBuffer buffer = ByteBuffer.allocate(256);
+
+        void ensure(int size) {
+
+            if (buffer.remaining() < size) {
+                var larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + size));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+
+        void putLong(long value) {
+            ensure(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        void putInt(int value) {
+            ensure(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void putShort(int value) {
+
+            if (value > 0xFFFF) {
+                throw new IllegalArgumentException("Value too large for spool record: " + value);
+            }
+            ensure(Short.BYTES);
+            buffer.putShort((short) value);
+        }
+
+        void putString(String value) {
+
+            var bytes = value.getBytes(StandardCharsets.UTF_8);
+            putShort(bytes.length);
+            ensure(bytes.length);
+            buffer.put(bytes);
+        }
+
+        byte[] bytes() {
+            return buffer.array();
+        }
+
+        int size() {
+            return buffer.position();
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+package com.enovationgroup.dane.spool;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * A message claimed from the {@link OutboundSpool}.
+ * <br>The payload is a read-only view on the memory-mapped spool segment (no copy),
+ * it can be sent with {@link com.enovationgroup.dane.smtp.DaneSmtpTransport#sendRaw(String, java.util.Collection, ByteBuffer)}.
+ */
+@Getter
+@ToString
+public class SpoolMessage {
+
+    private final long id;
+    /** Recipient domain. */
+    private final String domain;
+    private final String sender;
+    private final List<String> recipients;
+    private final long enqueuedMillis;
+    /** Number of failed delivery attempts. */
+    private final int attempts;
+    @ToString.Exclude
+    private final ByteBuffer payload;
+    /** The claim this message was returned for. */
+    @Getter(AccessLevel.NONE)
+    final long claim;
+
+    SpoolMessage(long id, String domain, String sender, List<String> recipients, long enqueuedMillis, int attempts, ByteBuffer payload, long claim) {
+        this.id = id;
+        this.domain = domain;
+        this.sender = sender;
+        this.recipients = recipients;
+        this.enqueuedMillis = enqueuedMillis;
+        this.attempts = attempts;
+        this.payload = payload;
+        this.claim = claim;
+    }
+
+    /**
+     * A new view on the payload (position 0), the returned buffer can be consumed.
+     */
+    public ByteBuffer getPayload() {
+        return payload.duplicate();
+    }
+
+}
@@ -0,0 +1,24 @@
+package com.enovationgroup.dane;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+public class WarmUpTest {
+
+    @Test
+    public void warmUpWithoutDns() {
+
+        var warmUp = new WarmUp();
+        warmUp.setValidationIterations(10);
+        var report = warmUp.run();
+        log.debug(report.summary());
+        Assertions.assertTrue(report.isSuccess(), report.summary());
+        Assertions.assertTrue(WarmUp.isWarm());
+        Assertions.assertEquals(3, report.getStepNanos().size());
+        Assertions.assertTrue(report.getStepNanos().containsKey("dane-validation"));
+    }
+
+}
@@ -0,0 +1,226 @@
+package com.enovationgroup.dane.audit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.enovationgroup.dane.dns.DaneRecord;
+import com.enovationgroup.dane.jfr.DeliveryTrace;
+import com.enovationgroup.dane.smtp.ResourceUtil;
+import com.enovationgroup.dane.smtp.TrustManagerDane;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.SneakyThrows;
+
+public class AuditLogTest {
+
+    @TempDir
+    Path tempDir;
+
+    X509Certificate[] chain = new X509Certificate[] {
+            ResourceUtil.loadCert("certs-localhost/0-localhost.crt"), ResourceUtil.loadCert("certs-localhost/1-ca.crt") };
+
+    @Test
+    @SneakyThrows
+    public void recordValidations() {
+
+        var valid = record("certs-localhost/localhost.tlsa.json");
+        var other = record("certs-zorgmail-relay/relay.zorgmail.nl.tlsa.json");
+        try (var auditLog = new AuditLog(tempDir, 4)) {
+            var trustManager = new TrustManagerDane(List.of(valid));
+            trustManager.setAuditLog(auditLog);
+            var invalid = new TrustManagerDane(List.of(other));
+            invalid.setAuditLog(auditLog);
+            try (var trace = DeliveryTrace.begin("delivery-1")) {
+                for (int i = 0; i < 5; i++) {
+                    trustManager.checkServerTrusted(chain, "RSA");
+                    Assertions.assertThrows(CertificateException.class, () -> invalid.checkServerTrusted(chain, "RSA"));
+                }
+            }
+            auditLog.sync();
+            Assertions.assertEquals(10, auditLog.getWritten());
+        }
+        var reader = new AuditLogReader();
+        var entries = reader.readAll(tempDir);
+        Assertions.assertEquals(10, entries.size());
+        Assertions.assertEquals(3, AuditLogReader.listSegments(tempDir).size());
+        Assertions.assertEquals(0, reader.getCorruptEntries());
+
+        var digester = MessageDigest.getInstance("SHA-256");
+        var entry = entries.get(0);
+        Assertions.assertEquals(AuditResult.Outcome.VALID, entry.getOutcome());
+        Assertions.assertEquals("delivery-1", entry.getDeliveryId());
+        Assertions.assertEquals("example.com", entry.getDomain());
+        Assertions.assertEquals("mx.example.com", entry.getMxHost());
+        Assertions.assertEquals(valid.getCertificateUsage(), entry.getMatchedUsage());
+        Assertions.assertEquals(valid.getSelector(), entry.getMatchedSelector());
+        Assertions.assertEquals(valid.getMatchingType(), entry.getMatchedMatchingType());
+        Assertions.assertArrayEquals(valid.getCertificateAssociationData(), entry.getMatchedAssociationData());
+        Assertions.assertEquals(2, entry.getChainLength());
+        Assertions.assertEquals(1, entry.getRecordCount());
+        Assertions.assertEquals(2, entry.getChainFingerprints().size());
+        Assertions.assertArrayEquals(digester.digest(chain[1].getEncoded()), entry.getChainFingerprints().get(1));
+        Assertions.assertTrue(Math.abs(System.currentTimeMillis() - entry.getTimestamp()) < 60_000L);
+
+        entry = entries.get(1);
+        Assertions.assertEquals(AuditResult.Outcome.INVALID, entry.getOutcome());
+        Assertions.assertNull(entry.getMatchedUsage());
+        Assertions.assertNull(entry.getMatchedAssociationData());
+
+        // A new log continues with a new segment.
+        try (var auditLog = new AuditLog(tempDir, 4)) {
+            auditLog.record(new AuditLogEntry(), null);
+        }
+        Assertions.assertEquals(11, new AuditLogReader().readAll(tempDir).size());
+        Assertions.assertEquals(4, AuditLogReader.listSegments(tempDir).size());
+    }
+
+    @Test
+    @SneakyThrows
+    public void corruptEntry() {
+
+        try (var auditLog = new AuditLog(tempDir, 16)) {
+            for (int i = 0; i < 3; i++) {
+                var entry = new AuditLogEntry();
+                entry.setMxHost("mx" + i + ".example.com");
+                auditLog.record(entry, null);
+            }
+        }
+        var segment = AuditLogReader.listSegments(tempDir).get(0);
+        try (var channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0L, channel.size());
+            int offset = AuditLog.SEGMENT_HEADER_SIZE + AuditLog.ENTRY_SIZE + AuditLog.MX_HOST + 1;
+            buffer.put(offset, (byte) 'X');
+        }
+        var reader = new AuditLogReader();
+        var entries = reader.readAll(tempDir);
+        Assertions.assertEquals(List.of("mx0.example.com", "mx2.example.com"), List.of(entries.get(0).getMxHost(), entries.get(1).getMxHost()));
+        Assertions.assertEquals(1, reader.getCorruptEntries());
+    }
+
+    @Test
+    @SneakyThrows
+    public void concurrentRecords() {
+
+        var executor = Executors.newFixedThreadPool(4);
+        try (var auditLog = new AuditLog(tempDir, 1_000)) {
+            var futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 2_500; i++) {
+                        auditLog.record(chain, List.of(record("certs-localhost/localhost.tlsa.json")), null, new CertificateException(), 1_000L);
+                    }
+                }));
+            }
+            for (var future : futures) {
+                future.get();
+            }
+            auditLog.sync();
+            Assertions.assertEquals(10_000, auditLog.getWritten());
+            Assertions.assertEquals(0, auditLog.getDropped());
+        } finally {
+            executor.shutdown();
+        }
+        Assertions.assertEquals(10_000, new AuditLogReader().scan(tempDir, e -> {}));
+    }
+
+    @Test
+    @SneakyThrows
+    public void rejectWhenNotRecorded() {
+
+        var dir = tempDir.resolve("audit");
+        var trustManager = new TrustManagerDane(List.of(record("certs-localhost/localhost.tlsa.json")));
+        try (var auditLog = new AuditLog(dir, 4)) {
+            trustManager.setAuditLog(auditLog);
+            auditLog.setMaxQueued(0);
+            Assertions.assertThrows(IllegalStateException.class, () -> auditLog.record(new AuditLogEntry(), chain));
+            var e = Assertions.assertThrows(CertificateException.class, () -> trustManager.checkServerTrusted(chain, "RSA"));
+            Assertions.assertTrue(e.getCause() instanceof IllegalStateException);
+            auditLog.setMaxQueued(1_000);
+
+            // The writer cannot create a segment file.
+            Files.delete(dir);
+            Files.createFile(dir);
+            auditLog.record(new AuditLogEntry(), chain);
+            for (int i = 0; i < 1_000 && auditLog.getFailure() == null; i++) {
+                Thread.sleep(5L);
+            }
+            Assertions.assertNotNull(auditLog.getFailure());
+            Assertions.assertThrows(IllegalStateException.class, () -> auditLog.record(new AuditLogEntry(), chain));
+            Assertions.assertThrows(CertificateException.class, () -> trustManager.checkServerTrusted(chain, "RSA"));
+            Assertions.assertEquals(4, auditLog.getDropped());
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void rejectWhenClosed() {
+
+        var trustManager = new TrustManagerDane(List.of(record("certs-localhost/localhost.tlsa.json")));
+        var auditLog = new AuditLog(tempDir, 4);
+        trustManager.setAuditLog(auditLog);
+        auditLog.record(new AuditLogEntry(), chain);
+        auditLog.close();
+        Assertions.assertThrows(IllegalStateException.class, () -> auditLog.record(new AuditLogEntry(), chain));
+        Assertions.assertThrows(CertificateException.class, () -> trustManager.checkServerTrusted(chain, "RSA"));
+        Assertions.assertEquals(1, auditLog.getWritten());
+        Assertions.assertEquals(2, auditLog.getDropped());
+        Assertions.assertEquals(1, new AuditLogReader().readAll(tempDir).size());
+    }
+
+    @Test
+    @SneakyThrows
+    public void closeWhileRecording() {
+
+        var dir = tempDir.resolve("audit");
+        var executor = Executors.newFixedThreadPool(4);
+        var recorded = new AtomicLong();
+        try {
+            var auditLog = new AuditLog(dir, 1_000);
+            var futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(() -> {
+                    try {
+                        while (true) {
+                            auditLog.record(new AuditLogEntry(), null);
+                            recorded.incrementAndGet();
+                        }
+                    } catch (IllegalStateException e) {
+                        // closed
+                    }
+                }));
+            }
+            Thread.sleep(20L);
+            auditLog.close();
+            for (var future : futures) {
+                future.get();
+            }
+            // Every entry that was accepted is written.
+            Assertions.assertEquals(recorded.get(), auditLog.getWritten());
+        } finally {
+            executor.shutdown();
+        }
+        Assertions.assertEquals(recorded.get(), new AuditLogReader().scan(dir, e -> {}));
+    }
+
+    static DaneRecord record(String resource) {
+
+        var record = ResourceUtil.loadRecord(resource);
+        record.setMxDomain("example.com");
+        record.setDomain("mx.example.com");
+        return record;
+    }
+
+}
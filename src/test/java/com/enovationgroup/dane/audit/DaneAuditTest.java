@@ -0,0 +1,77 @@
+package com.enovationgroup.dane.audit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+public class DaneAuditTest {
+
+    ObjectMapper mapper = new ObjectMapper();
+
+    @SneakyThrows
+    Path resourcesRoot() {
+        return Paths.get(Thread.currentThread().getContextClassLoader().getResource("certs-localhost").toURI()).getParent();
+    }
+
+    @Test
+    @SneakyThrows
+    public void auditTestResources() {
+
+        var report = new StringWriter();
+        var audit = new DaneAudit();
+        audit.setParallelism(4);
+        var summary = audit.run(resourcesRoot(), report);
+        log.debug("{}\n{}", summary, report);
+
+        var outcomes = new HashMap<String, AuditResult.Outcome>();
+        for (String line : report.toString().split("\n")) {
+            var result = mapper.readValue(line, AuditResult.class);
+            outcomes.put(result.getName(), result.getOutcome());
+        }
+        Assertions.assertEquals(5, summary.getTotal());
+        Assertions.assertEquals(AuditResult.Outcome.VALID, outcomes.get("certs-zorgmail-relay"));
+        Assertions.assertEquals(AuditResult.Outcome.VALID, outcomes.get("certs-zivver-smtp"));
+        Assertions.assertEquals(AuditResult.Outcome.VALID, outcomes.get("certs-heemskerk-vmx"));
+        Assertions.assertEquals(AuditResult.Outcome.VALID, outcomes.get("certs-localhost"));
+        Assertions.assertEquals(AuditResult.Outcome.INVALID, outcomes.get("certs-secumailer"));
+    }
+
+    @Test
+    @SneakyThrows
+    public void auditZip(@TempDir Path tempDir) {
+
+        var zip = tempDir.resolve("audit.zip");
+        var source = resourcesRoot().resolve("certs-heemskerk-vmx");
+        try (var out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            for (var file : DaneAudit.listSorted(source)) {
+                out.putNextEntry(new ZipEntry("vmx/" + file.getFileName()));
+                out.write(Files.readAllBytes(file));
+                out.closeEntry();
+            }
+        }
+        var report = new StringWriter();
+        var summary = new DaneAudit().run(zip, report);
+        Assertions.assertEquals(1, summary.getTotal());
+        Assertions.assertEquals(1, summary.getValid().sum());
+        var result = mapper.readValue(report.toString().trim(), AuditResult.class);
+        Assertions.assertEquals("vmx", result.getName());
+        Assertions.assertEquals("vmx01.prolocation.nl", result.getMxHost());
+        Assertions.assertEquals(3, result.getChainLength());
+        Assertions.assertEquals(2, result.getRecordCount());
+    }
+
+}
@@ -0,0 +1,97 @@
+package com.enovationgroup.dane.dns;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.MXRecord;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TLSARecord;
+import org.xbill.DNS.Type;
+
+import com.enovationgroup.dane.smtp.ResourceUtil;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lombok.SneakyThrows;
+
+public class DaneResolverTest {
+
+    static final Map<String, List<String>> MX = Map.of(
+            "a.example.", List.of("relay.zorgmail.nl."),
+            "b.example.", List.of("relay.zorgmail.nl.", "smtp.zivver.com."),
+            "c.example.", List.of("smtp.zivver.com.", "broken.example.", "relay.zorgmail.nl."));
+
+    static final Map<String, String> TLSA = Map.of(
+            "_25._tcp.relay.zorgmail.nl.", "certs-zorgmail-relay/relay.zorgmail.nl.tlsa.json",
+            "_25._tcp.smtp.zivver.com.", "certs-zivver-smtp/smtp.zivver.com.tlsa.json");
+
+    final Map<String, Integer> queries = new ConcurrentHashMap<>();
+
+    @Test
+    @SneakyThrows
+    public void resolveBatch() {
+
+        try (var server = new DnsTestServer(this::answer)) {
+            var resolver = new DaneResolver(new DnsResolver(server.getHost(), server.getPort()));
+            var result = resolver.resolveDaneRecords(List.of("a.example", "b.example", "c.example", "d.example", "a.example"));
+
+            Assertions.assertEquals(List.of("a.example", "b.example", "c.example", "d.example"), List.copyOf(result.keySet()));
+            Assertions.assertEquals(List.of("relay.zorgmail.nl"), List.copyOf(result.get("a.example").keySet()));
+            Assertions.assertEquals(List.of("relay.zorgmail.nl", "smtp.zivver.com"), List.copyOf(result.get("b.example").keySet()));
+            // Lookup for broken.example fails, servers after it are not used.
+            Assertions.assertEquals(List.of("smtp.zivver.com"), List.copyOf(result.get("c.example").keySet()));
+            // MX lookup failed.
+            Assertions.assertTrue(result.get("d.example").isEmpty());
+
+            // Shared records, resolved once.
+            Assertions.assertSame(result.get("a.example").get("relay.zorgmail.nl"), result.get("b.example").get("relay.zorgmail.nl"));
+            Assertions.assertSame(result.get("b.example").get("smtp.zivver.com"), result.get("c.example").get("smtp.zivver.com"));
+            for (var name : TLSA.keySet()) {
+                Assertions.assertEquals(1, queries.get(name), name);
+            }
+            Assertions.assertEquals(1, queries.get("a.example."));
+            var record = result.get("a.example").get("relay.zorgmail.nl").iterator().next();
+            Assertions.assertNull(record.getMxDomain());
+            Assertions.assertEquals("relay.zorgmail.nl", record.getDomain());
+            Assertions.assertArrayEquals(ResourceUtil.loadRecord(TLSA.get("_25._tcp.relay.zorgmail.nl.")).getCertificateAssociationData(),
+                    record.getCertificateAssociationData());
+
+            // Same records as the lookup for one domain.
+            var single = resolver.resolveDaneRecords("b.example");
+            Assertions.assertEquals(single.keySet(), result.get("b.example").keySet());
+        }
+    }
+
+    @SneakyThrows
+    Message answer(Message query) {
+
+        var question = query.getQuestion();
+        var name = question.getName().toString();
+        queries.merge(name, 1, Integer::sum);
+        var response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setFlag(Flags.AD);
+        response.addRecord(question, Section.QUESTION);
+        if (question.getType() == Type.MX && MX.containsKey(name)) {
+            int priority = 10;
+            for (var host : MX.get(name)) {
+                response.addRecord(new MXRecord(question.getName(), DClass.IN, 300, priority, Name.fromString(host)), Section.ANSWER);
+                priority += 10;
+            }
+        } else if (question.getType() == Type.TLSA && TLSA.containsKey(name)) {
+            var r = ResourceUtil.loadRecord(TLSA.get(name));
+            response.addRecord(new TLSARecord(question.getName(), DClass.IN, 300, r.getCertificateUsage().value(),
+                    r.getSelector().value(), r.getMatchingType().value(), r.getCertificateAssociationData()), Section.ANSWER);
+        } else {
+            response.getHeader().setRcode(Rcode.SERVFAIL);
+        }
+        return response;
+    }
+
+}
@@ -0,0 +1,144 @@
+package com.enovationgroup.dane.dns;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.MXRecord;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TLSARecord;
+import org.xbill.DNS.Type;
+
+import com.enovationgroup.dane.smtp.ResourceUtil;
+
+import java.io.IOException;
+import java.util.List;
+
+import lombok.SneakyThrows;
+
+public class DnsResolverTest {
+
+    @Test
+    @SneakyThrows
+    public void autoTcpAfterTruncation() {
+
+        try (var server = new DnsTestServer(DnsResolverTest::answer)) {
+            server.setTruncateUdpWhen(DnsResolverTest::isTlsa);
+            var dnsResolver = newResolver(server);
+            var resolver = new DaneResolver(dnsResolver);
+
+            Assertions.assertEquals(List.of("mx.example"), new MxResolver(dnsResolver).resolveMxDomains("example"));
+            assertQueries(server, 1, 0);
+            Assertions.assertEquals(1, resolver.resolveDaneRecord("example", "mx.example").size());
+            assertQueries(server, 2, 1);
+            // TCP is remembered for the TLSA query, MX stays on UDP.
+            Assertions.assertEquals(1, resolver.resolveDaneRecord("example", "mx.example").size());
+            assertQueries(server, 2, 2);
+            Assertions.assertEquals(List.of("mx.example"), new MxResolver(dnsResolver).resolveMxDomains("example"));
+            assertQueries(server, 3, 2);
+
+            // Same for wire parsing.
+            dnsResolver.setWireParsing(true);
+            Assertions.assertEquals(1, resolver.resolveDaneRecord("example", "mx.example").size());
+            assertQueries(server, 3, 3);
+            Assertions.assertEquals(1, resolver.resolveDaneRecord("example", "mx2.example").size());
+            assertQueries(server, 4, 4);
+            Assertions.assertEquals(1, resolver.resolveDaneRecord("example", "mx2.example").size());
+            assertQueries(server, 4, 5);
+            Assertions.assertEquals(2, dnsResolver.getTcpFallback().size());
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void autoTcpAfterTimeout() {
+
+        try (var server = new DnsTestServer(DnsResolverTest::answer)) {
+            server.setDropUdpWhen(DnsResolverTest::isTlsa);
+            var dnsResolver = newResolver(server);
+            var resolver = new DaneResolver(dnsResolver);
+
+            Assertions.assertEquals(1, resolver.resolveDaneRecord("example", "mx.example").size());
+            assertQueries(server, 1, 1);
+            Assertions.assertEquals(1, resolver.resolveDaneRecord("example", "mx.example").size());
+            assertQueries(server, 1, 2);
+            Assertions.assertEquals(List.of("mx.example"), new MxResolver(dnsResolver).resolveMxDomains("example"));
+            assertQueries(server, 2, 2);
+
+            // Consecutive timeouts for different names, TCP for all queries to the upstream.
+            dnsResolver.setWireParsing(true);
+            resolver.resolveDaneRecord("example", "mx2.example");
+            resolver.resolveDaneRecord("example", "mx3.example");
+            resolver.resolveDaneRecord("example", "mx4.example");
+            assertQueries(server, 5, 5);
+            Assertions.assertEquals(List.of("mx.example"), new MxResolver(dnsResolver).resolveMxDomains("example"));
+            assertQueries(server, 5, 6);
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void udpAndTcpModes() {
+
+        try (var server = new DnsTestServer(DnsResolverTest::answer)) {
+            server.setDropUdpWhen(DnsResolverTest::isTlsa);
+            var dnsResolver = newResolver(server);
+            dnsResolver.setTcpFallbackSeconds(0);
+            var resolver = new DaneResolver(dnsResolver);
+            resolver.resolveDaneRecord("example", "mx.example");
+            resolver.resolveDaneRecord("example", "mx.example");
+            // Not remembered.
+            assertQueries(server, 2, 2);
+
+            dnsResolver.setTransportMode(DnsResolver.TransportMode.UDP);
+            dnsResolver.setWireTimeoutMillis(200);
+            dnsResolver.setWireParsing(true);
+            Assertions.assertThrows(IOException.class, () -> resolver.resolveDaneRecord("example", "mx.example"));
+            assertQueries(server, 3, 2);
+
+            dnsResolver.setTCP(true);
+            Assertions.assertEquals(DnsResolver.TransportMode.TCP, dnsResolver.getTransportMode());
+            Assertions.assertEquals(1, resolver.resolveDaneRecord("example", "mx.example").size());
+            assertQueries(server, 3, 3);
+        }
+    }
+
+    static DnsResolver newResolver(DnsTestServer server) {
+
+        var dnsResolver = new DnsResolver(server.getHost(), server.getPort());
+        dnsResolver.setTransportMode(DnsResolver.TransportMode.AUTO);
+        dnsResolver.setUdpTimeoutMillis(200);
+        return dnsResolver;
+    }
+
+    static void assertQueries(DnsTestServer server, int udp, int tcp) {
+
+        Assertions.assertEquals(udp, server.getUdpQueries().get(), "UDP queries");
+        Assertions.assertEquals(tcp, server.getTcpQueries().get(), "TCP queries");
+    }
+
+    static boolean isTlsa(Message query) {
+        return query.getQuestion().getType() == Type.TLSA;
+    }
+
+    @SneakyThrows
+    static Message answer(Message query) {
+
+        var question = query.getQuestion();
+        var response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setFlag(Flags.AD);
+        response.addRecord(question, Section.QUESTION);
+        if (question.getType() == Type.MX) {
+            response.addRecord(new MXRecord(question.getName(), DClass.IN, 300, 10, Name.fromString("mx.example.")), Section.ANSWER);
+        } else if (question.getType() == Type.TLSA) {
+            var r = ResourceUtil.loadRecord("certs-localhost/localhost.tlsa.json");
+            response.addRecord(new TLSARecord(question.getName(), DClass.IN, 300, r.getCertificateUsage().value(),
+                    r.getSelector().value(), r.getMatchingType().value(), r.getCertificateAssociationData()), Section.ANSWER);
+        }
+        return response;
+    }
+
+}
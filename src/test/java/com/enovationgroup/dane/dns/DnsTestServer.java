@@ -0,0 +1,131 @@
+package com.enovationgroup.dane.dns;
+
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * DNS server on the loopback address answering UDP and TCP queries (on the same port) with a handler.
+ */
+@Slf4j
+public class DnsTestServer implements AutoCloseable {
+
+    private final Function<Message, Message> handler;
+    private final DatagramSocket udpSocket;
+    private final ServerSocket tcpSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private volatile boolean stopped;
+
+    /** Reply to UDP queries with an empty response with the TC flag set. */
+    @Setter
+    private volatile boolean truncateUdp;
+    /** Reply to matching UDP queries with an empty response with the TC flag set. */
+    @Setter
+    private volatile Predicate<Message> truncateUdpWhen = query -> false;
+    /** Do not reply to matching UDP queries, as if (fragmented) responses are dropped. */
+    @Setter
+    private volatile Predicate<Message> dropUdpWhen = query -> false;
+
+    @Getter
+    private final AtomicInteger udpQueries = new AtomicInteger();
+    @Getter
+    private final AtomicInteger tcpQueries = new AtomicInteger();
+
+    @SneakyThrows
+    public DnsTestServer(Function<Message, Message> handler) {
+
+        this.handler = handler;
+        this.udpSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        this.tcpSocket = new ServerSocket(udpSocket.getLocalPort(), 50, InetAddress.getLoopbackAddress());
+        executor.execute(this::udpLoop);
+        executor.execute(this::tcpLoop);
+    }
+
+    public String getHost() {
+        return udpSocket.getLocalAddress().getHostAddress();
+    }
+
+    public int getPort() {
+        return udpSocket.getLocalPort();
+    }
+
+    @Override
+    @SneakyThrows
+    public void close() {
+
+        stopped = true;
+        udpSocket.close();
+        tcpSocket.close();
+        executor.shutdownNow();
+    }
+
+    void udpLoop() {
+
+        var buffer = new byte[65_535];
+        while (!stopped) {
+            try {
+                var packet = new DatagramPacket(buffer, buffer.length);
+                udpSocket.receive(packet);
+                udpQueries.incrementAndGet();
+                var query = new Message(Arrays.copyOf(packet.getData(), packet.getLength()));
+                if (dropUdpWhen.test(query)) {
+                    continue;
+                }
+                Message response;
+                if (truncateUdp || truncateUdpWhen.test(query)) {
+                    response = new Message(query.getHeader().getID());
+                    response.getHeader().setFlag(Flags.QR);
+                    response.getHeader().setFlag(Flags.TC);
+                    response.addRecord(query.getQuestion(), 0);
+                } else {
+                    response = handler.apply(query);
+                }
+                var bytes = response.toWire();
+                udpSocket.send(new DatagramPacket(bytes, bytes.length, packet.getSocketAddress()));
+            } catch (IOException e) {
+                if (!stopped) {
+                    log.warn("DNS test server UDP failure: {}", e.toString());
+                }
+            }
+        }
+    }
+
+    void tcpLoop() {
+
+        while (!stopped) {
+            try (var socket = tcpSocket.accept()) {
+                tcpQueries.incrementAndGet();
+                var in = new DataInputStream(socket.getInputStream());
+                var queryBytes = new byte[in.readUnsignedShort()];
+                in.readFully(queryBytes);
+                var bytes = handler.apply(new Message(queryBytes)).toWire();
+                var out = socket.getOutputStream();
+                out.write(new byte[] { (byte) (bytes.length >>> 8), (byte) bytes.length });
+                out.write(bytes);
+                out.flush();
+            } catch (IOException e) {
+                if (!stopped) {
+                    log.warn("DNS test server TCP failure: {}", e.toString());
+                }
+            }
+        }
+    }
+
+}
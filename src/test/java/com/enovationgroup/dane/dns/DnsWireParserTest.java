@@ -0,0 +1,126 @@
+package com.enovationgroup.dane.dns;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.CNAMERecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.MXRecord;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TLSARecord;
+import org.xbill.DNS.Type;
+
+import com.enovationgroup.dane.smtp.ResourceUtil;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import lombok.SneakyThrows;
+
+/**
+ * Compares {@link DnsWireParser} results with the results from dnsjava {@link Message} objects.
+ */
+public class DnsWireParserTest {
+
+    static final List<String> TLSA_FIXTURES = List.of(
+            "certs-heemskerk-vmx/vmx01.prolocation.nl.tlsa.json",
+            "certs-heemskerk-vmx/vmx01.prolocation.nl.2.tlsa.json",
+            "certs-secumailer/gateway.secumailer.eu.tlsa.json",
+            "certs-secumailer/gateway.secumailer.eu.2.tlsa.json",
+            "certs-zivver-smtp/smtp.zivver.com.tlsa.json",
+            "certs-zorgmail-relay/relay.zorgmail.nl.tlsa.json",
+            "certs-localhost/localhost.tlsa.json",
+            "certs-localhost/localhost.2.tlsa.json");
+
+    @Test
+    @SneakyThrows
+    public void parseMxHosts() {
+
+        var domain = Name.fromString("Example.COM.");
+        var response = newResponse(domain, Type.MX);
+        response.addRecord(new CNAMERecord(domain, DClass.IN, 300, Name.fromString("alias.example.com.")), Section.ANSWER);
+        response.addRecord(new MXRecord(domain, DClass.IN, 300, 20, Name.fromString("backup.Example.com.")), Section.ANSWER);
+        response.addRecord(new MXRecord(domain, DClass.IN, 300, 10, Name.fromString("MX1.example.com.")), Section.ANSWER);
+        response.addRecord(new MXRecord(domain, DClass.IN, 300, 10, Name.fromString("mx2.example.com.")), Section.ANSWER);
+        response.addRecord(new MXRecord(domain, DClass.IN, 300, 5, Name.fromString("relay.zorgmail.nl.")), Section.ANSWER);
+        response.addRecord(new MXRecord(domain, DClass.IN, 300, 30, Name.fromString("we\\.ird\\032name.example.com.")), Section.ANSWER);
+        response.addRecord(new MXRecord(domain, DClass.IN, 300, 40, Name.root), Section.ANSWER);
+
+        var wire = response.toWire();
+        var expected = new MxResolver(null).toMxHosts(new Message(wire));
+        var actual = DnsWireParser.parseMxHosts(ByteBuffer.wrap(wire));
+        Assertions.assertEquals(6, expected.size());
+        Assertions.assertEquals(expected, actual);
+        Assertions.assertEquals("relay.zorgmail.nl", actual.get(0).getHost());
+        Assertions.assertEquals("mx1.example.com", actual.get(1).getHost());
+    }
+
+    @Test
+    @SneakyThrows
+    public void parseTlsaRecords() {
+
+        var emailServer = "mx.example.com";
+        var name = Name.fromString("_25._tcp." + emailServer + ".");
+        var response = newResponse(name, Type.TLSA);
+        for (String fixture : TLSA_FIXTURES) {
+            var r = ResourceUtil.loadRecord(fixture);
+            response.addRecord(new TLSARecord(name, DClass.IN, 300, r.getCertificateUsage().value(),
+                    r.getSelector().value(), r.getMatchingType().value(), r.getCertificateAssociationData()), Section.ANSWER);
+        }
+        // Invalid value, skipped.
+        response.addRecord(new TLSARecord(name, DClass.IN, 300, 9, 1, 1, new byte[32]), Section.ANSWER);
+
+        var wire = response.toWire();
+        var expected = new DaneResolver(null).toDaneRecords("example.com", emailServer, new Message(wire));
+        var actual = DnsWireParser.parseTlsaRecords(ByteBuffer.wrap(wire), "example.com", emailServer);
+        Assertions.assertEquals(TLSA_FIXTURES.size(), expected.size());
+        Assertions.assertEquals(expected, actual);
+    }
+
+    @Test
+    @SneakyThrows
+    public void parseEmptyAnswer() {
+
+        var name = Name.fromString("_25._tcp.mx.example.com.");
+        var wire = newResponse(name, Type.TLSA).toWire();
+        Assertions.assertTrue(DnsWireParser.parseTlsaRecords(ByteBuffer.wrap(wire), "example.com", "mx.example.com").isEmpty());
+        Assertions.assertTrue(DnsWireParser.parseMxHosts(ByteBuffer.wrap(wire)).isEmpty());
+    }
+
+    @Test
+    @SneakyThrows
+    public void resolveWireWithTcpFallback() {
+
+        var domain = Name.fromString("example.com.");
+        try (var server = new DnsTestServer(query -> {
+            var response = newResponse(domain, Type.MX);
+            response.getHeader().setID(query.getHeader().getID());
+            response.getHeader().setFlag(Flags.AD);
+            response.addRecord(new MXRecord(domain, DClass.IN, 300, 10, Name.fromConstantString("mx.example.com.")), Section.ANSWER);
+            return response;
+        })) {
+            var dnsResolver = new DnsResolver(server.getHost(), server.getPort());
+            dnsResolver.setWireParsing(true);
+            var mxResolver = new MxResolver(dnsResolver);
+            Assertions.assertEquals(List.of("mx.example.com"), mxResolver.resolveMxDomains("example.com"));
+            Assertions.assertEquals(1, server.getUdpQueries().get());
+
+            server.setTruncateUdp(true);
+            Assertions.assertEquals(List.of("mx.example.com"), mxResolver.resolveMxDomains("example.com"));
+            Assertions.assertEquals(2, server.getUdpQueries().get());
+            Assertions.assertEquals(1, server.getTcpQueries().get());
+        }
+    }
+
+    static Message newResponse(Name name, int type) {
+
+        var response = new Message();
+        response.getHeader().setFlag(Flags.QR);
+        response.addRecord(Record.newRecord(name, type, DClass.IN), Section.QUESTION);
+        return response;
+    }
+
+}
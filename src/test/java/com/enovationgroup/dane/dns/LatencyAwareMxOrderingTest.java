@@ -0,0 +1,110 @@
+package com.enovationgroup.dane.dns;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LatencyAwareMxOrderingTest {
+
+    Random random = new Random(42L);
+
+    List<MxHost> hosts = List.of(
+            new MxHost("mx1.example.com", 10),
+            new MxHost("mx2.example.com", 10),
+            new MxHost("backup.example.com", 20));
+
+    @Test
+    public void keepsPriorityOrder() {
+
+        var ordering = new LatencyAwareMxOrdering(() -> random);
+        // Backup is fastest, but has a lower priority.
+        ordering.recordResult("backup.example.com", 1, true);
+        for (int i = 0; i < 100; i++) {
+            var ordered = ordering.order(hosts);
+            Assertions.assertEquals(3, ordered.size());
+            Assertions.assertEquals("backup.example.com", ordered.get(2).getHost());
+        }
+    }
+
+    @Test
+    public void spreadsLoadOverEqualHosts() {
+
+        var ordering = new LatencyAwareMxOrdering(() -> random);
+        for (int i = 0; i < 10; i++) {
+            ordering.recordResult("mx1.example.com", 50, true);
+            ordering.recordResult("mx2.example.com", 50, true);
+        }
+        var counts = firstHostCounts(ordering, 1_000);
+        Assertions.assertTrue(counts.get("mx1.example.com") > 400, counts.toString());
+        Assertions.assertTrue(counts.get("mx2.example.com") > 400, counts.toString());
+    }
+
+    @Test
+    public void prefersFastHealthyHost() {
+
+        var ordering = new LatencyAwareMxOrdering(() -> random);
+        for (int i = 0; i < 10; i++) {
+            ordering.recordResult("mx1.example.com", 200, true);
+            ordering.recordResult("mx2.example.com", 20, true);
+        }
+        var counts = firstHostCounts(ordering, 1_000);
+        Assertions.assertTrue(counts.get("mx2.example.com") > 850, counts.toString());
+
+        // Failing fast host loses preference.
+        for (int i = 0; i < 20; i++) {
+            ordering.recordResult("mx2.example.com", 0, false);
+        }
+        counts = firstHostCounts(ordering, 1_000);
+        Assertions.assertTrue(counts.get("mx1.example.com") > 500, counts.toString());
+    }
+
+    @Test
+    public void firstResultFailed() {
+
+        var ordering = new LatencyAwareMxOrdering(() -> random);
+        ordering.recordResult("mx1.example.com", 0, false);
+        for (int i = 0; i < 10; i++) {
+            ordering.recordResult("mx2.example.com", 100, true);
+        }
+        // Latency of the failed host is unknown, the worst latency is used.
+        Assertions.assertTrue(ordering.weight("mx1.example.com") < ordering.weight("mx2.example.com"));
+        var counts = firstHostCounts(ordering, 1_000);
+        Assertions.assertTrue(counts.get("mx2.example.com") > 850, counts.toString());
+
+        ordering.recordResult("mx1.example.com", 10, true);
+        Assertions.assertEquals(0.2 / 10.0, ordering.weight("mx1.example.com"), 0.0001);
+    }
+
+    @Test
+    public void evictIdleHosts() {
+
+        var now = new AtomicLong(1_000L);
+        var ordering = new LatencyAwareMxOrdering(() -> random, now::get);
+        ordering.setIdleMillis(1_000L);
+        ordering.recordResult("mx1.example.com", 10, true);
+        ordering.recordResult("mx2.example.com", 10, true);
+        now.addAndGet(500L);
+        ordering.recordResult("mx2.example.com", 10, true);
+        Assertions.assertEquals(2, ordering.size());
+
+        now.addAndGet(500L);
+        ordering.recordResult("backup.example.com", 10, true);
+        Assertions.assertEquals(2, ordering.size());
+        Assertions.assertEquals(-1.0, ordering.weight("mx1.example.com"));
+        Assertions.assertTrue(ordering.weight("mx2.example.com") > 0.0);
+    }
+
+    HashMap<String, Integer> firstHostCounts(LatencyAwareMxOrdering ordering, int rounds) {
+
+        var counts = new HashMap<String, Integer>();
+        for (int i = 0; i < rounds; i++) {
+            counts.merge(ordering.order(hosts).get(0).getHost(), 1, Integer::sum);
+        }
+        return counts;
+    }
+
+}
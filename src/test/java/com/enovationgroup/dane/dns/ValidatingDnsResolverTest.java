@@ -0,0 +1,322 @@
+package com.enovationgroup.dane.dns;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.DNSKEYRecord;
+import org.xbill.DNS.DNSSEC;
+import org.xbill.DNS.DSRecord;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.MXRecord;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.NSEC3Record;
+import org.xbill.DNS.NSECRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.RRset;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TLSARecord;
+import org.xbill.DNS.Type;
+import org.xbill.DNS.utils.base32;
+
+import com.enovationgroup.dane.smtp.ResourceUtil;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.SneakyThrows;
+
+/**
+ * Validates lookups against a locally signed zone hierarchy (root, <tt>example.</tt> and the unsigned delegation <tt>unsigned.example.</tt>).
+ */
+public class ValidatingDnsResolverTest {
+
+    static final long TTL = 300L;
+
+    final Map<String, List<RRset>> answers = new HashMap<>();
+    final Map<String, List<RRset>> authority = new HashMap<>();
+    final AtomicInteger queries = new AtomicInteger();
+    final AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+
+    SignedZone root;
+    SignedZone example;
+
+    @BeforeEach
+    @SneakyThrows
+    public void signZones() {
+
+        root = new SignedZone(Name.root);
+        example = new SignedZone(Name.fromString("example."));
+        var unsigned = new SignedZone(Name.fromString("unsigned.example."));
+        answer(root.sign(root.key));
+        answer(example.sign(example.key));
+        answer(unsigned.sign(unsigned.key));
+        answer(root.sign(new DSRecord(example.name, DClass.IN, TTL, DSRecord.Digest.SHA256, example.key)));
+
+        answer(example.sign(new MXRecord(example.name, DClass.IN, TTL, 10, Name.fromString("mx.example."))));
+        var tlsa = ResourceUtil.loadRecord("certs-localhost/localhost.tlsa.json");
+        answer(example.sign(tlsa(Name.fromString("_25._tcp.mx.example."), tlsa)));
+        answer(unsigned.sign(tlsa(Name.fromString("_25._tcp.mx.unsigned.example."), tlsa)));
+
+        // Signature made for other data.
+        var bogusName = Name.fromString("_25._tcp.bogus.example.");
+        var bogus = example.sign(tlsa(bogusName, tlsa));
+        var tampered = new RRset(tlsa(bogusName, ResourceUtil.loadRecord("certs-zorgmail-relay/relay.zorgmail.nl.tlsa.json")));
+        bogus.sigs().forEachRemaining(r -> tampered.addRR((Record) r));
+        answer(tampered);
+
+        // Validly signed answer for another name.
+        var attacker = ResourceUtil.loadRecord("certs-zorgmail-relay/relay.zorgmail.nl.tlsa.json");
+        answers.put(key(Name.fromString("_25._tcp.victim.example."), Type.TLSA),
+                List.of(example.sign(tlsa(Name.fromString("_25._tcp.attacker.example."), attacker))));
+        answers.computeIfAbsent(key(Name.fromString("_25._tcp.mx.example."), Type.TLSA), k -> new ArrayList<>())
+                .add(example.sign(tlsa(Name.fromString("_25._tcp.attacker.example."), attacker)));
+
+        // Wildcard answers, with and without proof that the queried name does not exist.
+        var wild = expand(example.sign(tlsa(Name.fromString("*._tcp.wild.example."), tlsa)), Name.fromString("_25._tcp.wild.example."));
+        answer(wild);
+        authority.put(key(wild.getName(), Type.TLSA), List.of(example.sign(new NSECRecord(Name.fromString("_24._tcp.wild.example."),
+                DClass.IN, TTL, Name.fromString("_26._tcp.wild.example."), new int[] { Type.NSEC, Type.RRSIG }))));
+        answer(expand(example.sign(tlsa(Name.fromString("*._tcp.wildcard.example."), tlsa)), Name.fromString("_25._tcp.wildcard.example.")));
+
+        // DNSKEY without the zone flag.
+        var noZoneKey = new SignedZone(Name.fromString("nozone.example."), DNSKEYRecord.Flags.SEP_KEY);
+        answer(noZoneKey.sign(noZoneKey.key));
+        answer(example.sign(new DSRecord(noZoneKey.name, DClass.IN, TTL, DSRecord.Digest.SHA256, noZoneKey.key)));
+        answer(noZoneKey.sign(tlsa(Name.fromString("_25._tcp.mx.nozone.example."), tlsa)));
+
+        // No data, proven with NSEC and NSEC3.
+        var noDane = Name.fromString("_25._tcp.nodane.example.");
+        authority.put(key(noDane, Type.TLSA), List.of(example.sign(
+                new NSECRecord(noDane, DClass.IN, TTL, Name.fromString("_25._tcp.other.example."), new int[] { Type.NSEC, Type.RRSIG }))));
+        var noDane3 = Name.fromString("_25._tcp.nodane3.example.");
+        var salt = new byte[] { 1, 2 };
+        var hash = new NSEC3Record(example.name, DClass.IN, TTL, NSEC3Record.SHA1_DIGEST_ID, 0, 1, salt, new byte[20], new int[0]).hashName(noDane3);
+        var owner = new Name(new base32(base32.Alphabet.BASE32HEX, false, false).toString(hash), example.name);
+        authority.put(key(noDane3, Type.TLSA), List.of(example.sign(
+                new NSEC3Record(owner, DClass.IN, TTL, NSEC3Record.SHA1_DIGEST_ID, 0, 1, salt, new byte[20], new int[] { Type.A, Type.RRSIG }))));
+
+        // Delegations to (insecure) child zones, proven with NSEC and NSEC3 records of the parent zone.
+        var child = Name.fromString("child.example.");
+        authority.put(key(child, Type.MX), List.of(example.sign(
+                new NSECRecord(child, DClass.IN, TTL, Name.fromString("mx.example."), new int[] { Type.NS, Type.NSEC, Type.RRSIG }))));
+        var child3 = Name.fromString("child3.example.");
+        var childOwner = new Name(new base32(base32.Alphabet.BASE32HEX, false, false).toString(
+                new NSEC3Record(example.name, DClass.IN, TTL, NSEC3Record.SHA1_DIGEST_ID, 0, 1, salt, new byte[20], new int[0]).hashName(child3)), example.name);
+        authority.put(key(child3, Type.MX), List.of(example.sign(
+                new NSEC3Record(childOwner, DClass.IN, TTL, NSEC3Record.SHA1_DIGEST_ID, 0, 1, salt, new byte[20], new int[] { Type.NS }))));
+    }
+
+    @Test
+    @SneakyThrows
+    public void validateAndCache() {
+
+        try (var server = new DnsTestServer(this::respond)) {
+            var resolver = newResolver(server, List.of(root.ds()));
+            var records = new DaneResolver(resolver).resolveDaneRecords("example");
+            Assertions.assertEquals(1, records.get("mx.example").size());
+            // MX, TLSA, DNSKEY for root and example, DS for example
+            Assertions.assertEquals(5, queries.get());
+            Assertions.assertEquals(2, resolver.getCachedZones().size());
+
+            // Cached keys, only the answer is needed.
+            Assertions.assertEquals(1, new DaneResolver(resolver).resolveDaneRecord("example", "mx.example").size());
+            Assertions.assertEquals(6, queries.get());
+
+            // Wire parsing uses the validated response.
+            resolver.setWireParsing(true);
+            Assertions.assertEquals(List.of("mx.example"), new MxResolver(resolver).resolveMxDomains("example"));
+            Assertions.assertEquals(7, queries.get());
+            resolver.setWireParsing(false);
+
+            // Expired cache.
+            clock.addAndGet((TTL + 1) * 1_000L);
+            Assertions.assertTrue(resolver.getCachedZones().isEmpty());
+            Assertions.assertEquals(1, new DaneResolver(resolver).resolveDaneRecord("example", "mx.example").size());
+            Assertions.assertEquals(11, queries.get());
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void validateNoData() {
+
+        try (var server = new DnsTestServer(this::respond)) {
+            var resolver = new DaneResolver(newResolver(server, List.of(root.ds())));
+            Assertions.assertTrue(resolver.resolveDaneRecord("example", "nodane.example").isEmpty());
+            Assertions.assertTrue(resolver.resolveDaneRecord("example", "nodane3.example").isEmpty());
+            // Empty answer without NSEC.
+            Assertions.assertThrows(IOException.class, () -> resolver.resolveDaneRecord("example", "other.example"));
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void rejectDelegationAsNoData() {
+
+        try (var server = new DnsTestServer(this::respond)) {
+            var resolver = newResolver(server, List.of(root.ds()));
+            var mxResolver = new MxResolver(resolver);
+            // The NSEC(3) record of the parent zone says nothing about the MX records in the child zone.
+            Assertions.assertThrows(IOException.class, () -> mxResolver.resolveMxDomains("child.example"));
+            Assertions.assertThrows(IOException.class, () -> mxResolver.resolveMxDomains("child3.example"));
+
+            // But proves that there are no DS records.
+            var child = Name.fromString("child.example.");
+            var response = new Message();
+            add(response, authority.get(key(child, Type.MX)), Section.AUTHORITY);
+            resolver.validateNoData("child.example", child, Type.DS, response);
+            Assertions.assertThrows(IOException.class, () -> resolver.validateNoData("child.example", child, Type.MX, response));
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void validationFailures() {
+
+        try (var server = new DnsTestServer(this::respond)) {
+            var resolver = new DaneResolver(newResolver(server, List.of(root.ds())));
+            Assertions.assertThrows(IOException.class, () -> resolver.resolveDaneRecord("example", "bogus.example"));
+            // No DS for unsigned.example.
+            Assertions.assertThrows(IOException.class, () -> resolver.resolveDaneRecord("unsigned.example", "mx.unsigned.example"));
+            // Insecure lookups are not validated.
+            Assertions.assertEquals(List.of("mx.example"), new MxResolver(newResolver(server, List.of())).resolveMxDomains("example", false));
+
+            var otherRoot = new SignedZone(Name.root);
+            var wrongAnchor = new DaneResolver(newResolver(server, List.of(otherRoot.ds())));
+            Assertions.assertThrows(IOException.class, () -> wrongAnchor.resolveDaneRecord("example", "mx.example"));
+            // A trust anchor for a zone below the root.
+            var zoneAnchor = new DaneResolver(newResolver(server, List.of(example.ds())));
+            Assertions.assertEquals(1, zoneAnchor.resolveDaneRecord("example", "mx.example").size());
+            var defaultAnchor = new DaneResolver(new ValidatingDnsResolver(server.getHost(), server.getPort()));
+            Assertions.assertThrows(IOException.class, () -> defaultAnchor.resolveDaneRecord("example", "mx.example"));
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void rejectAnswersForOtherNames() {
+
+        try (var server = new DnsTestServer(this::respond)) {
+            var resolver = new DaneResolver(newResolver(server, List.of(root.ds())));
+            var e = Assertions.assertThrows(IOException.class, () -> resolver.resolveDaneRecord("example", "victim.example"));
+            Assertions.assertTrue(e.getMessage().startsWith("Empty answer without DNSSEC proof"), e.getMessage());
+            // Only the record for the queried name is used.
+            var records = resolver.resolveDaneRecord("example", "mx.example");
+            Assertions.assertEquals(1, records.size());
+            Assertions.assertArrayEquals(ResourceUtil.loadRecord("certs-localhost/localhost.tlsa.json").getCertificateAssociationData(),
+                    records.iterator().next().getCertificateAssociationData());
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void validateWildcardsAndZoneKeys() {
+
+        try (var server = new DnsTestServer(this::respond)) {
+            var resolver = new DaneResolver(newResolver(server, List.of(root.ds())));
+            Assertions.assertEquals(1, resolver.resolveDaneRecord("example", "wild.example").size());
+            var e = Assertions.assertThrows(IOException.class, () -> resolver.resolveDaneRecord("example", "wildcard.example"));
+            Assertions.assertTrue(e.getMessage().startsWith("Wildcard answer without DNSSEC proof"), e.getMessage());
+            e = Assertions.assertThrows(IOException.class, () -> resolver.resolveDaneRecord("nozone.example", "mx.nozone.example"));
+            Assertions.assertTrue(e.getMessage().startsWith("No DNSKEY matches"), e.getMessage());
+        }
+    }
+
+    ValidatingDnsResolver newResolver(DnsTestServer server, List<DSRecord> anchors) {
+
+        var resolver = new ValidatingDnsResolver(server.getHost(), server.getPort(), anchors, clock::get);
+        resolver.setTCP(true);
+        return resolver;
+    }
+
+    /**
+     * The wildcard RRset as returned for the name (the signature keeps the label count of the wildcard).
+     */
+    static RRset expand(RRset wildcard, Name name) {
+
+        var rrset = new RRset();
+        wildcard.rrs().forEachRemaining(r -> rrset.addRR(((Record) r).withName(name)));
+        wildcard.sigs().forEachRemaining(r -> rrset.addRR(Record.newRecord(name, Type.RRSIG, DClass.IN, TTL, ((Record) r).rdataToWireCanonical())));
+        return rrset;
+    }
+
+    void answer(RRset rrset) {
+        answers.computeIfAbsent(key(rrset.getName(), rrset.getType()), k -> new ArrayList<>()).add(rrset);
+    }
+
+    static String key(Name name, int type) {
+        return name.toString().toLowerCase() + " " + Type.string(type);
+    }
+
+    static TLSARecord tlsa(Name name, DaneRecord r) {
+        return new TLSARecord(name, DClass.IN, TTL, r.getCertificateUsage().value(), r.getSelector().value(),
+                r.getMatchingType().value(), r.getCertificateAssociationData());
+    }
+
+    Message respond(Message query) {
+
+        queries.incrementAndGet();
+        var question = query.getQuestion();
+        var response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.addRecord(question, Section.QUESTION);
+        var key = key(question.getName(), question.getType());
+        add(response, answers.getOrDefault(key, List.of()), Section.ANSWER);
+        add(response, authority.getOrDefault(key, List.of()), Section.AUTHORITY);
+        return response;
+    }
+
+    static void add(Message response, List<RRset> rrsets, int section) {
+
+        for (var rrset : rrsets) {
+            rrset.rrs().forEachRemaining(r -> response.addRecord((Record) r, section));
+            rrset.sigs().forEachRemaining(r -> response.addRecord((Record) r, section));
+        }
+    }
+
+    class SignedZone {
+
+        final Name name;
+        final KeyPair keyPair;
+        final DNSKEYRecord key;
+
+        SignedZone(Name name) {
+            this(name, DNSKEYRecord.Flags.ZONE_KEY | DNSKEYRecord.Flags.SEP_KEY);
+        }
+
+        @SneakyThrows
+        SignedZone(Name name, int flags) {
+
+            this.name = name;
+            var generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(1024);
+            this.keyPair = generator.generateKeyPair();
+            this.key = new DNSKEYRecord(name, DClass.IN, TTL, flags,
+                    DNSKEYRecord.Protocol.DNSSEC, DNSSEC.Algorithm.RSASHA256, keyPair.getPublic());
+        }
+
+        DSRecord ds() {
+            return new DSRecord(name, DClass.IN, TTL, DSRecord.Digest.SHA256, key);
+        }
+
+        @SneakyThrows
+        RRset sign(Record record) {
+
+            var rrset = new RRset(record);
+            var now = clock.get();
+            rrset.addRR(DNSSEC.sign(rrset, key, keyPair.getPrivate(), new Date(now - 3_600_000L), new Date(now + 86_400_000L)));
+            return rrset;
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.enovationgroup.dane.jfr;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.MXRecord;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TLSARecord;
+import org.xbill.DNS.Type;
+
+import com.enovationgroup.dane.dns.DaneResolver;
+import com.enovationgroup.dane.dns.DnsResolver;
+import com.enovationgroup.dane.dns.DnsTestServer;
+import com.enovationgroup.dane.smtp.ResourceUtil;
+import com.enovationgroup.dane.smtp.SmtpTestServer;
+import com.enovationgroup.dane.smtp.TransportFactory;
+import com.enovationgroup.dane.smtp.TransportOptions;
+
+import java.nio.file.Files;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import lombok.SneakyThrows;
+
+public class DaneEventTest {
+
+    static final List<String> EVENTS = List.of(
+            "com.enovationgroup.dane.MxLookup",
+            "com.enovationgroup.dane.TlsaLookup",
+            "com.enovationgroup.dane.DnsQuery",
+            "com.enovationgroup.dane.SmtpConnect",
+            "com.enovationgroup.dane.DaneValidation");
+
+    @Test
+    @SneakyThrows
+    public void deliveryEvents() {
+
+        var record = ResourceUtil.loadRecord("certs-localhost/localhost.tlsa.json");
+        try (var smtpServer = new SmtpTestServer();
+                var dnsServer = new DnsTestServer(query -> answer(query, record));
+                var recording = new Recording()) {
+            EVENTS.forEach(e -> recording.enable(e).withThreshold(java.time.Duration.ZERO));
+            recording.start();
+            String deliveryId;
+            try (var trace = DeliveryTrace.begin()) {
+                deliveryId = trace.getDeliveryId();
+                var dnsResolver = new DnsResolver(dnsServer.getHost(), dnsServer.getPort());
+                dnsResolver.setTCP(true);
+                var daneRecords = new DaneResolver(dnsResolver).resolveDaneRecords("example.com");
+                Assertions.assertEquals(1, daneRecords.size());
+                var options = new TransportOptions();
+                options.setPort(smtpServer.getPort());
+                var transport = TransportFactory.buildTransport(smtpServer.getHost(), daneRecords.get("mx.example.com"), options);
+                transport.connect();
+                transport.close();
+            }
+            Assertions.assertNull(DeliveryTrace.current());
+            recording.stop();
+            var file = Files.createTempFile("dane-events", ".jfr");
+            try {
+                recording.dump(file);
+                var events = RecordingFile.readAllEvents(file).stream()
+                        .filter(e -> e.getEventType().getName().startsWith("com.enovationgroup.dane."))
+                        .collect(Collectors.toList());
+                for (var name : EVENTS) {
+                    var event = events.stream().filter(e -> e.getEventType().getName().equals(name)).findFirst();
+                    Assertions.assertTrue(event.isPresent(), name);
+                    Assertions.assertEquals(deliveryId, event.get().getString("deliveryId"), name);
+                    Assertions.assertEquals(DaneEvent.OK, event.get().getString("outcome"), name);
+                }
+                Assertions.assertEquals(2, count(events, "com.enovationgroup.dane.DnsQuery"));
+                var mx = first(events, "com.enovationgroup.dane.MxLookup");
+                Assertions.assertEquals("example.com", mx.getString("domain"));
+                Assertions.assertEquals(1, mx.getInt("mxCount"));
+                var validation = first(events, "com.enovationgroup.dane.DaneValidation");
+                Assertions.assertEquals("DANE_EE", validation.getString("matchedUsage"));
+                Assertions.assertEquals("mx.example.com", validation.getString("mxHost"));
+                var connect = first(events, "com.enovationgroup.dane.SmtpConnect");
+                Assertions.assertEquals(smtpServer.getPort(), connect.getInt("port"));
+            } finally {
+                Files.delete(file);
+            }
+        }
+    }
+
+    static long count(List<RecordedEvent> events, String name) {
+        return events.stream().filter(e -> e.getEventType().getName().equals(name)).count();
+    }
+
+    static RecordedEvent first(List<RecordedEvent> events, String name) {
+        return events.stream().filter(e -> e.getEventType().getName().equals(name)).findFirst().get();
+    }
+
+    @SneakyThrows
+    static Message answer(Message query, com.enovationgroup.dane.dns.DaneRecord record) {
+
+        var question = query.getQuestion();
+        var response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setFlag(Flags.AD);
+        response.addRecord(question, Section.QUESTION);
+        if (question.getType() == Type.MX) {
+            response.addRecord(new MXRecord(question.getName(), DClass.IN, 300, 10, Name.fromString("mx.example.com.")), Section.ANSWER);
+        } else if (question.getType() == Type.TLSA) {
+            response.addRecord(new TLSARecord(question.getName(), DClass.IN, 300, record.getCertificateUsage().value(),
+                    record.getSelector().value(), record.getMatchingType().value(), record.getCertificateAssociationData()), Section.ANSWER);
+        }
+        return response;
+    }
+
+}
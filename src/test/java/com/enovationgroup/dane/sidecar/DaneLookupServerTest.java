@@ -0,0 +1,205 @@
+package com.enovationgroup.dane.sidecar;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.MXRecord;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TLSARecord;
+import org.xbill.DNS.Type;
+
+import com.enovationgroup.dane.dns.DaneResolver;
+import com.enovationgroup.dane.dns.DnsResolver;
+import com.enovationgroup.dane.dns.DnsTestServer;
+import com.enovationgroup.dane.smtp.ResourceUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.SneakyThrows;
+
+public class DaneLookupServerTest {
+
+    static final Map<String, List<String>> MX = Map.of(
+            "a.example.", List.of("relay.zorgmail.nl.", "smtp.zivver.com."),
+            "b.example.", List.of("relay.zorgmail.nl."),
+            "d.example.", List.of("relay.zorgmail.nl.", "broken.example."),
+            "e.example.", List.of("relay.zorgmail.nl."));
+
+    /** TTL of the MX records, default 300. */
+    static final Map<String, Integer> MX_TTL = Map.of("e.example.", 60);
+
+    static final Map<String, String> TLSA = Map.of(
+            "_25._tcp.relay.zorgmail.nl.", "certs-zorgmail-relay/relay.zorgmail.nl.tlsa.json",
+            "_25._tcp.smtp.zivver.com.", "certs-zivver-smtp/smtp.zivver.com.tlsa.json");
+
+    final Map<String, Integer> queries = new ConcurrentHashMap<>();
+    final AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+
+    @Test
+    @SneakyThrows
+    public void lookupAndCache() {
+
+        try (var dns = new DnsTestServer(this::answer);
+                var server = new DaneLookupServer(new DaneResolver(new DnsResolver(dns.getHost(), dns.getPort())));
+                var remote = new RemoteDaneResolver(server.getHost(), server.getPort(), 2)) {
+            var direct = new DaneResolver(new DnsResolver(dns.getHost(), dns.getPort())).resolveDaneRecords("a.example");
+            queries.clear();
+
+            var records = remote.resolveDaneRecords("a.example");
+            Assertions.assertEquals(direct, records);
+            Assertions.assertEquals(1, queries.get("a.example."));
+            // Cached by the server.
+            Assertions.assertEquals(direct, remote.resolveDaneRecords("a.example"));
+            Assertions.assertEquals(1, queries.get("a.example."));
+            Assertions.assertEquals(1, server.getCacheSize());
+
+            var tlsa = remote.resolveDaneRecord("b.example", "relay.zorgmail.nl");
+            Assertions.assertEquals(direct.get("relay.zorgmail.nl").size(), tlsa.size());
+            var record = tlsa.iterator().next();
+            Assertions.assertEquals("b.example", record.getMxDomain());
+            Assertions.assertEquals("relay.zorgmail.nl", record.getDomain());
+            Assertions.assertArrayEquals(ResourceUtil.loadRecord(TLSA.get("_25._tcp.relay.zorgmail.nl.")).getCertificateAssociationData(),
+                    record.getCertificateAssociationData());
+            // Cached for all domains.
+            remote.resolveDaneRecord("other.example", "relay.zorgmail.nl");
+            Assertions.assertEquals(2, queries.get("_25._tcp.relay.zorgmail.nl."));
+            Assertions.assertTrue(remote.resolveDaneRecord("b.example", "notls.example").isEmpty());
+
+            var batch = remote.resolveDaneRecords(List.of("a.example", "b.example", "c.example"));
+            Assertions.assertEquals(direct, batch.get("a.example"));
+            Assertions.assertEquals(List.of("relay.zorgmail.nl"), List.copyOf(batch.get("b.example").keySet()));
+            Assertions.assertTrue(batch.get("c.example").isEmpty());
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void concurrentLookups() {
+
+        var executor = Executors.newFixedThreadPool(8);
+        try (var dns = new DnsTestServer(this::answer);
+                var server = new DaneLookupServer(new DaneResolver(new DnsResolver(dns.getHost(), dns.getPort())));
+                var remote = new RemoteDaneResolver(server.getHost(), server.getPort(), 4)) {
+            var results = new ArrayList<Future<?>>();
+            for (int i = 0; i < 64; i++) {
+                var domain = (i % 2 == 0 ? "a.example" : "b.example");
+                results.add(executor.submit(() -> remote.resolveDaneRecords(domain)));
+            }
+            for (var result : results) {
+                Assertions.assertFalse(((Map<?, ?>) result.get()).isEmpty());
+            }
+            // In-flight lookups are shared.
+            Assertions.assertEquals(1, queries.get("a.example."));
+            Assertions.assertEquals(1, queries.get("b.example."));
+            Assertions.assertTrue(server.getConnectionCount() <= 8);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void failures() {
+
+        try (var dns = new DnsTestServer(this::answer);
+                var server = new DaneLookupServer(new DaneResolver(new DnsResolver(dns.getHost(), dns.getPort())));
+                var remote = new RemoteDaneResolver(server.getHost(), server.getPort(), 2)) {
+            Assertions.assertThrows(IOException.class, () -> remote.resolveDaneRecords("c.example"));
+            // Failures are not cached.
+            Assertions.assertThrows(IOException.class, () -> remote.resolveDaneRecords("c.example"));
+            Assertions.assertEquals(2, queries.get("c.example."));
+            Assertions.assertEquals(0, server.getCacheSize());
+            // The connection is still usable.
+            Assertions.assertEquals(1, server.getConnectionCount());
+            Assertions.assertFalse(remote.resolveDaneRecords("b.example").isEmpty());
+
+            server.close();
+            remote.close();
+            Assertions.assertThrows(IOException.class, () -> remote.resolveDaneRecords("b.example"));
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void failedTlsaLookup() {
+
+        try (var dns = new DnsTestServer(this::answer);
+                var server = new DaneLookupServer(new DaneResolver(new DnsResolver(dns.getHost(), dns.getPort())));
+                var remote = new RemoteDaneResolver(server.getHost(), server.getPort(), 2)) {
+            // A local resolver skips the email-server with the failed lookup.
+            var direct = new DaneResolver(new DnsResolver(dns.getHost(), dns.getPort())).resolveDaneRecords("d.example");
+            Assertions.assertEquals(List.of("relay.zorgmail.nl"), List.copyOf(direct.keySet()));
+            queries.clear();
+            // The server does not return (and cache) a partial result.
+            var e = Assertions.assertThrows(IOException.class, () -> remote.resolveDaneRecords("d.example"));
+            Assertions.assertTrue(e.getMessage().contains("SERVFAIL"), e.getMessage());
+            Assertions.assertThrows(IOException.class, () -> remote.resolveDaneRecord("d.example", "broken.example"));
+            Assertions.assertEquals(0, server.getCacheSize());
+            Assertions.assertThrows(IOException.class, () -> remote.resolveDaneRecords("d.example"));
+            Assertions.assertEquals(2, queries.get("d.example."));
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void cacheForTtl() {
+
+        try (var dns = new DnsTestServer(this::answer);
+                var server = new DaneLookupServer(new DaneResolver(new DnsResolver(dns.getHost(), dns.getPort())), 0, clock::get);
+                var remote = new RemoteDaneResolver(server.getHost(), server.getPort(), 2)) {
+            remote.resolveDaneRecords("e.example");
+            remote.resolveDaneRecords("a.example");
+            clock.addAndGet(59_000L);
+            remote.resolveDaneRecords("e.example");
+            Assertions.assertEquals(1, queries.get("e.example."));
+            // The MX records expired.
+            clock.addAndGet(2_000L);
+            remote.resolveDaneRecords("e.example");
+            Assertions.assertEquals(2, queries.get("e.example."));
+            remote.resolveDaneRecords("a.example");
+            Assertions.assertEquals(1, queries.get("a.example."));
+            // Cached at most cacheSeconds.
+            clock.addAndGet(server.getCacheSeconds() * 1_000L);
+            remote.resolveDaneRecords("a.example");
+            Assertions.assertEquals(2, queries.get("a.example."));
+        }
+    }
+
+    @SneakyThrows
+    Message answer(Message query) {
+
+        var question = query.getQuestion();
+        var name = question.getName().toString();
+        queries.merge(name, 1, Integer::sum);
+        var response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setFlag(Flags.AD);
+        response.addRecord(question, Section.QUESTION);
+        if (question.getType() == Type.MX && MX.containsKey(name)) {
+            int priority = 10;
+            for (var host : MX.get(name)) {
+                response.addRecord(new MXRecord(question.getName(), DClass.IN, MX_TTL.getOrDefault(name, 300), priority, Name.fromString(host)), Section.ANSWER);
+                priority += 10;
+            }
+        } else if (question.getType() == Type.TLSA && TLSA.containsKey(name)) {
+            var r = ResourceUtil.loadRecord(TLSA.get(name));
+            response.addRecord(new TLSARecord(question.getName(), DClass.IN, 300, r.getCertificateUsage().value(),
+                    r.getSelector().value(), r.getMatchingType().value(), r.getCertificateAssociationData()), Section.ANSWER);
+        } else if (question.getType() != Type.TLSA || name.equals("_25._tcp.broken.example.")) {
+            response.getHeader().setRcode(Rcode.SERVFAIL);
+        }
+        return response;
+    }
+
+}
@@ -0,0 +1,135 @@
+package com.enovationgroup.dane.smtp;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+
+import lombok.SneakyThrows;
+
+public class ConnectionSchedulerTest {
+
+    @Test
+    @SneakyThrows
+    public void limitsConcurrentConnections() {
+
+        var limits = new DestinationLimits();
+        limits.setMaxConnectionsPerMx(2);
+        limits.setMaxConnectsPerSecondPerMx(0.0);
+        var active = new AtomicInteger();
+        var maxActive = new AtomicInteger();
+        try (var scheduler = new ConnectionScheduler(limits)) {
+            var futures = new ArrayList<CompletableFuture<Integer>>();
+            for (int i = 0; i < 10; i++) {
+                futures.add(scheduler.submit("example.com", "mx.example.com", () -> {
+                    maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                    Thread.sleep(20);
+                    return active.decrementAndGet();
+                }));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        }
+        Assertions.assertEquals(2, maxActive.get());
+    }
+
+    @Test
+    @SneakyThrows
+    public void limitsConnectRate() {
+
+        var limits = new DestinationLimits();
+        limits.setMaxConnectsPerSecondPerMx(20.0);
+        try (var scheduler = new ConnectionScheduler(limits)) {
+            long start = System.nanoTime();
+            var futures = new ArrayList<CompletableFuture<Boolean>>();
+            for (int i = 0; i < 30; i++) {
+                futures.add(scheduler.submit("example.com", "mx.example.com", () -> true));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+            // 20 tokens available at start, 10 more take 0.5 second.
+            Assertions.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(400));
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void lowersLimitsWhenThrottled() {
+
+        var limits = new DestinationLimits();
+        limits.setMaxConnectionsPerMx(4);
+        limits.setMaxConnectsPerSecondPerMx(0.0);
+        try (var scheduler = new ConnectionScheduler(limits)) {
+            for (int i = 0; i < 2; i++) {
+                var f = scheduler.submit("example.com", "mx.example.com", () -> {
+                    throw new MessagingException("421 4.7.0 Too many connections, try again later");
+                });
+                Assertions.assertThrows(ExecutionException.class, () -> f.get(5, TimeUnit.SECONDS));
+            }
+            Assertions.assertEquals(1, scheduler.getConnectionLimit("mx.example.com"));
+            // Not a throttling reply.
+            var f = scheduler.submit("example.com", "mx.example.com", () -> {
+                throw new MessagingException("550 5.1.1 User unknown");
+            });
+            Assertions.assertThrows(ExecutionException.class, () -> f.get(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(1, scheduler.getConnectionLimit("mx.example.com"));
+            // Successful connections raise the limit.
+            for (int i = 0; i < 3; i++) {
+                scheduler.submit("example.com", "mx.example.com", () -> true).get(5, TimeUnit.SECONDS);
+            }
+            Assertions.assertEquals(3, scheduler.getConnectionLimit("mx.example.com"));
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void blocksProducersWhenQueueIsFull() {
+
+        var limits = new DestinationLimits();
+        limits.setMaxConnectionsPerMx(1);
+        limits.setMaxConnectsPerSecondPerMx(0.0);
+        limits.setQueueCapacityPerMx(1);
+        var release = new CountDownLatch(1);
+        try (var scheduler = new ConnectionScheduler(limits)) {
+            var running = scheduler.submit("example.com", "mx.example.com", () -> release.await(5, TimeUnit.SECONDS));
+            var queued = scheduler.submit("example.com", "mx.example.com", () -> true);
+            Assertions.assertEquals(1, scheduler.getQueued("mx.example.com"));
+            Assertions.assertThrows(RejectedExecutionException.class,
+                    () -> scheduler.submit("example.com", "mx.example.com", () -> true, 50, TimeUnit.MILLISECONDS));
+            // Other destinations are not blocked.
+            Assertions.assertTrue(scheduler.submit("example.org", "mx.example.org", () -> true).get(5, TimeUnit.SECONDS));
+            release.countDown();
+            Assertions.assertTrue(running.get(5, TimeUnit.SECONDS));
+            Assertions.assertTrue(queued.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void skipsDomainsAtLimit() {
+
+        var limits = new DestinationLimits();
+        limits.setMaxConnectionsPerMx(4);
+        limits.setMaxConnectsPerSecondPerMx(0.0);
+        limits.setMaxConnectionsPerDomain(1);
+        var release = new CountDownLatch(1);
+        try (var scheduler = new ConnectionScheduler(limits)) {
+            var running = scheduler.submit("example.com", "mx.shared.nl", () -> release.await(5, TimeUnit.SECONDS));
+            var blocked = scheduler.submit("example.com", "mx.shared.nl", () -> true);
+            // The task for another domain on the same MX host is not blocked by the waiting task.
+            Assertions.assertTrue(scheduler.submit("example.org", "mx.shared.nl", () -> true).get(5, TimeUnit.SECONDS));
+            Assertions.assertFalse(blocked.isDone());
+            Assertions.assertEquals(1, scheduler.getQueued("mx.shared.nl"));
+            release.countDown();
+            Assertions.assertTrue(running.get(5, TimeUnit.SECONDS));
+            Assertions.assertTrue(blocked.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+}
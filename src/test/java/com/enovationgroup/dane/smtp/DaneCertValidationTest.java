@@ -7,7 +7,9 @@ import com.enovationgroup.dane.dns.DaneRecord;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.security.MessageDigest;
+import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.List;
 
 import lombok.SneakyThrows;
@@ -24,7 +26,15 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class DaneCertValidationTest {
 
-    // TODO: test "FULL" DANE validations (DaneRecord.Selector.FULL and DaneRecord.MatchingType.FULL)
+    static final List<String> CERTS = List.of(
+            "certs-zorgmail-relay/0-relay.zorgmail.nl.crt",
+            "certs-zivver-smtp/0-smtp.zivver.com.crt",
+            "certs-secumailer/0-gateway.secumailer.eu.crt",
+            "certs-heemskerk-vmx/0-vmx01.prolocation.nl.crt",
+            "certs-heemskerk-vmx/1-usertrust.crt",
+            "certs-heemskerk-vmx/2-usertrust.crt",
+            "certs-localhost/0-localhost.crt",
+            "certs-localhost/1-ca.crt");
 
     ObjectMapper mapper = new ObjectMapper();
 
@@ -103,6 +113,54 @@ public class DaneCertValidationTest {
         }
     }
 
+    @Test
+    @SneakyThrows
+    public void subjectPublicKeyInfoSlice() {
+
+        for (var name : CERTS) {
+            var cert = ResourceUtil.loadCert(name);
+            var der = cert.getEncoded();
+            long range = DerSlices.subjectPublicKeyInfo(der);
+            Assertions.assertTrue(range >= 0L, name);
+            var slice = Arrays.copyOfRange(der, DerSlices.offset(range), DerSlices.offset(range) + DerSlices.length(range));
+            Assertions.assertArrayEquals(cert.getPublicKey().getEncoded(), slice, name);
+        }
+        Assertions.assertTrue(DerSlices.subjectPublicKeyInfo(new byte[] { 0x30, (byte) 0x82, 0x10 }) < 0L);
+        Assertions.assertTrue(DerSlices.subjectPublicKeyInfo(new byte[] { 0x04, 0x00 }) < 0L);
+    }
+
+    @Test
+    @SneakyThrows
+    public void validateFull() {
+
+        var cert = ResourceUtil.loadCert("certs-zorgmail-relay/0-relay.zorgmail.nl.crt");
+        var tm = new TrustManagerDane(List.of());
+        // 3 0 0, 3 0 1, 3 1 0
+        var record = record(DaneRecord.Selector.FULL, DaneRecord.MatchingType.FULL, cert.getEncoded());
+        Assertions.assertTrue(tm.validateDaneCert(cert, record));
+        record = record(DaneRecord.Selector.FULL, DaneRecord.MatchingType.SHA_256, MessageDigest.getInstance("SHA-256").digest(cert.getEncoded()));
+        Assertions.assertTrue(tm.validateDaneCert(cert, record));
+        record = record(DaneRecord.Selector.PUBLIC_KEY, DaneRecord.MatchingType.FULL, cert.getPublicKey().getEncoded());
+        Assertions.assertTrue(tm.validateDaneCert(cert, record));
+
+        var other = ResourceUtil.loadCert("certs-secumailer/0-gateway.secumailer.eu.crt");
+        Assertions.assertFalse(tm.validateDaneCert(other, record));
+        record = record(DaneRecord.Selector.FULL, DaneRecord.MatchingType.FULL, Arrays.copyOf(cert.getEncoded(), 100));
+        Assertions.assertFalse(tm.validateDaneCert(cert, record));
+        record = record(DaneRecord.Selector.FULL, DaneRecord.MatchingType.SHA_512, null);
+        Assertions.assertFalse(tm.validateDaneCert(cert, record));
+    }
+
+    static DaneRecord record(DaneRecord.Selector selector, DaneRecord.MatchingType matchingType, byte[] data) {
+
+        var record = new DaneRecord();
+        record.setCertificateUsage(DaneRecord.CertificateUsage.DANE_EE);
+        record.setSelector(selector);
+        record.setMatchingType(matchingType);
+        record.setCertificateAssociationData(data);
+        return record;
+    }
+
     @Test
     @SneakyThrows
     public void validateTrustedAnchor() {
@@ -193,4 +251,22 @@ public class DaneCertValidationTest {
         }
     }
 
+    @Test
+    public void recipientDomainInMessage() {
+
+        // Records resolved for many domains have no MX domain.
+        var record = ResourceUtil.loadRecord("certs-heemskerk-vmx/vmx01.prolocation.nl.tlsa.json");
+        Assertions.assertNull(record.getMxDomain());
+        var certs = List.of(ResourceUtil.loadCert("certs-zorgmail-relay/0-relay.zorgmail.nl.crt")).toArray(new X509Certificate[0]);
+        var tm = new TrustManagerDane(List.of(record));
+        var e = Assertions.assertThrows(CertificateException.class, () -> tm.checkServerTrusted(certs, "RSA"));
+        Assertions.assertEquals("No valid DANE certificates found for email-server vmx01.prolocation.nl", e.getMessage());
+        Assertions.assertNull(tm.domain());
+
+        tm.setDomain("heemskerk.nl");
+        e = Assertions.assertThrows(CertificateException.class, () -> tm.checkServerTrusted(certs, "RSA"));
+        Assertions.assertEquals("No valid DANE certificates found for email-server vmx01.prolocation.nl for domain heemskerk.nl", e.getMessage());
+        Assertions.assertEquals("heemskerk.nl", tm.domain());
+    }
+
 }
@@ -0,0 +1,157 @@
+package com.enovationgroup.dane.smtp;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.URLName;
+
+import lombok.SneakyThrows;
+
+public class DaneSmtpTransportTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    @SneakyThrows
+    public void sendRawBdat() {
+
+        var message = newMessage(3 * 1024 * 1024);
+        var eml = tempDir.resolve("message.eml");
+        Files.write(eml, message);
+        try (var server = new SmtpTestServer()) {
+            server.setChunking(true);
+            var transport = connect(server);
+            try {
+                transport.setChunkSize(1024 * 1024);
+                var rejected = transport.sendRaw("sender@example.com", List.of("a@example.com", "b@example.com"), eml);
+                Assertions.assertTrue(rejected.isEmpty());
+                // Empty message.
+                transport.sendRaw("sender@example.com", List.of("a@example.com"), ByteBuffer.allocate(0));
+            } finally {
+                transport.close();
+            }
+            Assertions.assertEquals(2, server.getMessages().size());
+            Assertions.assertArrayEquals(message, server.getMessages().get(0));
+            Assertions.assertEquals(0, server.getMessages().get(1).length);
+            Assertions.assertEquals(4 + 1, server.getBdatChunks().get());
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void sendRawData() {
+
+        var message = newMessage(100_000);
+        try (var server = new SmtpTestServer()) {
+            var transport = connect(server);
+            try {
+                Assertions.assertTrue(transport.getTcpConnectMillis() >= 0L);
+                // Heap buffer.
+                transport.sendRaw("sender@example.com", List.of("a@example.com"), ByteBuffer.wrap(message));
+                // Direct buffer.
+                var direct = ByteBuffer.allocateDirect(message.length);
+                direct.put(message).flip();
+                transport.sendRaw("sender@example.com", List.of("a@example.com"), direct);
+                Assertions.assertEquals(message.length, direct.remaining());
+            } finally {
+                transport.close();
+            }
+            Assertions.assertEquals(0, server.getBdatChunks().get());
+            for (var received : server.getMessages()) {
+                Assertions.assertArrayEquals(message, received);
+            }
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void sendRawRejected() {
+
+        try (var server = new SmtpTestServer()) {
+            server.setFailCommand("RCPT");
+            server.setFailReply("550 5.1.1 User unknown");
+            var transport = connect(server);
+            try {
+                var e = Assertions.assertThrows(MessagingException.class,
+                        () -> transport.sendRaw("sender@example.com", List.of("a@example.com"), ByteBuffer.wrap(newMessage(100))));
+                Assertions.assertTrue(e.getMessage().contains("550"), e.getMessage());
+                Assertions.assertTrue(transport.isConnected());
+            } finally {
+                transport.close();
+            }
+            Assertions.assertTrue(server.getMessages().isEmpty());
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void sharedSession() {
+
+        try (var server = new SmtpTestServer()) {
+            server.setChunking(true);
+            var props = new Properties();
+            props.put("mail.smtp.host", server.getHost());
+            props.put("mail.smtp.port", server.getPort());
+            var sslSocketFactory = TransportFactory.createSslSocketFactory(
+                    new TrustManagerDane(List.of(ResourceUtil.loadRecord("certs-localhost/localhost.tlsa.json"))), null);
+            props.put("mail.smtp.ssl.socketFactory", sslSocketFactory);
+            props.put("mail.smtp.starttls.enable", true);
+            props.put("mail.smtp.starttls.required", true);
+            var session = Session.getInstance(props);
+            var urlName = new URLName("smtp", null, -1, null, null, null);
+            var first = new DaneSmtpTransport(session, urlName);
+            var second = new DaneSmtpTransport(session, urlName);
+            Assertions.assertSame(sslSocketFactory, session.getProperties().get("mail.smtp.ssl.socketFactory"));
+            first.connect();
+            second.connect();
+            try {
+                var message = newMessage(1000);
+                first.sendRaw("sender@example.com", List.of("a@example.com"), ByteBuffer.wrap(message));
+                second.sendRaw("sender@example.com", List.of("b@example.com"), ByteBuffer.wrap(message));
+                first.sendRaw("sender@example.com", List.of("a@example.com"), ByteBuffer.wrap(message));
+                Assertions.assertEquals(3, server.getMessages().size());
+                Assertions.assertEquals(3, server.getBdatChunks().get());
+            } finally {
+                first.close();
+                second.close();
+            }
+        }
+    }
+
+    @SneakyThrows
+    static DaneSmtpTransport connect(SmtpTestServer server) {
+
+        var options = new TransportOptions();
+        options.setPort(server.getPort());
+        var transport = TransportFactory.buildTransport(server.getHost(),
+                List.of(ResourceUtil.loadRecord("certs-localhost/localhost.tlsa.json")), options);
+        transport.connect();
+        return transport;
+    }
+
+    /**
+     * Message with CRLF line endings and lines starting with a dot, of at least the given size.
+     */
+    static byte[] newMessage(int size) {
+
+        var bout = new ByteArrayOutputStream();
+        bout.writeBytes("From: sender@example.com\r\nTo: a@example.com\r\nSubject: raw\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        for (int i = 0; bout.size() < size; i++) {
+            bout.writeBytes(((i % 10 == 0 ? "." : "") + "Line " + i + " of the raw message body.\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        return bout.toByteArray();
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.enovationgroup.dane.smtp;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import lombok.SneakyThrows;
+
+public class LocalAddressPoolTest {
+
+    @Test
+    public void leastLoaded() {
+
+        var pool = new LocalAddressPool(List.of("10.0.0.1", "10.0.0.2", "10.0.0.3"));
+        var leases = new ArrayList<LocalAddressPool.Lease>();
+        for (int i = 0; i < 6; i++) {
+            leases.add(pool.acquire("mx.example.com"));
+        }
+        for (var address : pool.getAddresses()) {
+            Assertions.assertEquals(2, pool.getConnections(address, "MX.example.com"));
+        }
+        // Another destination prefers the source address with the fewest connections in total.
+        leases.get(0).close();
+        leases.get(0).close(); // closing twice has no effect
+        Assertions.assertEquals(5, pool.getAddresses().stream().mapToInt(pool::getConnections).sum());
+        var other = pool.acquire("mx.example.org");
+        Assertions.assertEquals(leases.get(0).getAddress(), other.getAddress());
+        // The same source address is also least loaded for the first destination.
+        var next = pool.acquire("mx.example.com");
+        Assertions.assertEquals(leases.get(0).getAddress(), next.getAddress());
+
+        leases.forEach(LocalAddressPool.Lease::close);
+        other.close();
+        next.close();
+        for (var address : pool.getAddresses()) {
+            Assertions.assertEquals(0, pool.getConnections(address));
+        }
+    }
+
+    @Test
+    public void pinned() {
+
+        var pool = new LocalAddressPool(List.of("10.0.0.1", "10.0.0.2"));
+        pool.pin("mx.example.com", "10.0.0.2");
+        for (int i = 0; i < 4; i++) {
+            Assertions.assertEquals("10.0.0.2", pool.acquire("mx.example.com").getAddress());
+        }
+        Assertions.assertEquals("10.0.0.1", pool.acquire("mx.example.org").getAddress());
+        pool.unpin("mx.example.com");
+        Assertions.assertEquals("10.0.0.1", pool.acquire("mx.example.com").getAddress());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> pool.pin("mx.example.com", "10.0.0.3"));
+    }
+
+    @Test
+    @SneakyThrows
+    public void bindLocalAddress() {
+
+        var record = ResourceUtil.loadRecord("certs-localhost/localhost.tlsa.json");
+        var pool = new LocalAddressPool(List.of("127.0.0.1", "127.0.0.2"));
+        try (var server = new SmtpTestServer()) {
+            var leases = new ArrayList<LocalAddressPool.Lease>();
+            for (int i = 0; i < 4; i++) {
+                // Leases stay open, as for concurrent connections.
+                var lease = pool.acquire(server.getHost());
+                leases.add(lease);
+                var options = new TransportOptions();
+                options.setPort(server.getPort());
+                options.setLocalAddress(lease.getAddress());
+                var transport = TransportFactory.buildTransport(server.getHost(), List.of(record), options);
+                transport.connect();
+                transport.close();
+            }
+            leases.forEach(LocalAddressPool.Lease::close);
+            Assertions.assertEquals(Set.of("127.0.0.1", "127.0.0.2"), Set.copyOf(server.getClientAddresses()));
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.enovationgroup.dane.smtp;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MxCircuitBreakerTest {
+
+    AtomicLong now = new AtomicLong(1_000L);
+
+    @Test
+    public void opensAfterFailuresAndProbes() {
+
+        var records = List.of(ResourceUtil.loadRecord("certs-zorgmail-relay/relay.zorgmail.nl.tlsa.json"));
+        var cb = new MxCircuitBreaker(now::get);
+        cb.setFailureThreshold(2);
+        cb.setOpenMillis(100L);
+        var host = "relay.zorgmail.nl";
+
+        Assertions.assertTrue(cb.allowConnection(host, records));
+        cb.recordFailure(host);
+        Assertions.assertEquals(MxCircuitBreaker.State.CLOSED, cb.getState(host));
+        cb.recordFailure(host);
+        Assertions.assertEquals(MxCircuitBreaker.State.OPEN, cb.getState(host));
+        Assertions.assertFalse(cb.allowConnection(host, records));
+
+        // One probe after the open period.
+        now.addAndGet(100L);
+        Assertions.assertTrue(cb.allowConnection(host, records));
+        Assertions.assertEquals(MxCircuitBreaker.State.HALF_OPEN, cb.getState(host));
+        Assertions.assertFalse(cb.allowConnection(host, records));
+        cb.recordFailure(host);
+        Assertions.assertEquals(MxCircuitBreaker.State.OPEN, cb.getState(host));
+
+        // Open period doubled.
+        now.addAndGet(100L);
+        Assertions.assertFalse(cb.allowConnection(host, records));
+        now.addAndGet(100L);
+        Assertions.assertTrue(cb.allowConnection(host, records));
+        cb.recordSuccess(host);
+        Assertions.assertEquals(MxCircuitBreaker.State.CLOSED, cb.getState(host));
+    }
+
+    @Test
+    public void tlsaChangeResets() {
+
+        var records = List.of(ResourceUtil.loadRecord("certs-heemskerk-vmx/vmx01.prolocation.nl.tlsa.json"));
+        var newRecords = List.of(ResourceUtil.loadRecord("certs-heemskerk-vmx/vmx01.prolocation.nl.2.tlsa.json"));
+        var cb = new MxCircuitBreaker(now::get);
+        cb.setFailureThreshold(1);
+        var host = "vmx01.prolocation.nl";
+
+        Assertions.assertTrue(cb.allowConnection(host, records));
+        cb.recordFailure(host);
+        Assertions.assertFalse(cb.allowConnection(host, records));
+        Assertions.assertTrue(cb.allowConnection(host, newRecords));
+        Assertions.assertEquals(MxCircuitBreaker.State.CLOSED, cb.getState(host));
+    }
+
+    @Test
+    public void unknownRecordsKeepState() {
+
+        var records = List.of(ResourceUtil.loadRecord("certs-heemskerk-vmx/vmx01.prolocation.nl.tlsa.json"));
+        var newRecords = List.of(ResourceUtil.loadRecord("certs-heemskerk-vmx/vmx01.prolocation.nl.2.tlsa.json"));
+        var cb = new MxCircuitBreaker(now::get);
+        cb.setFailureThreshold(1);
+        var host = "vmx01.prolocation.nl";
+
+        Assertions.assertTrue(cb.allowConnection(host, records));
+        cb.recordFailure(host);
+        Assertions.assertFalse(cb.allowConnection(host, null));
+        Assertions.assertEquals(MxCircuitBreaker.State.OPEN, cb.getState(host));
+        // The stored records are still compared.
+        Assertions.assertFalse(cb.allowConnection(host, records));
+        Assertions.assertTrue(cb.allowConnection(host, newRecords));
+    }
+
+    @Test
+    public void evictIdleHosts() {
+
+        var cb = new MxCircuitBreaker(now::get);
+        cb.setFailureThreshold(1);
+        cb.setIdleMillis(1_000L);
+
+        Assertions.assertTrue(cb.allowConnection("idle.example.com", null));
+        cb.recordSuccess("idle.example.com");
+        Assertions.assertTrue(cb.allowConnection("open.example.com", null));
+        cb.recordFailure("open.example.com");
+        Assertions.assertEquals(2, cb.size());
+
+        now.addAndGet(1_000L);
+        Assertions.assertTrue(cb.allowConnection("new.example.com", null));
+        // Open circuits are kept.
+        Assertions.assertEquals(2, cb.size());
+        Assertions.assertEquals(MxCircuitBreaker.State.OPEN, cb.getState("open.example.com"));
+        Assertions.assertEquals(MxCircuitBreaker.State.CLOSED, cb.getState("idle.example.com"));
+    }
+
+}
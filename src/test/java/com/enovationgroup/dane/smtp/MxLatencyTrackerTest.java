@@ -0,0 +1,66 @@
+package com.enovationgroup.dane.smtp;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MxLatencyTrackerTest {
+
+    @Test
+    public void adaptsTimeouts() {
+
+        var tracker = new MxLatencyTracker();
+        var options = new TransportOptions();
+        var fast = "relay.fast.example";
+        var slow = "relay.slow.example";
+
+        // Defaults until enough samples.
+        Assertions.assertEquals(options.getConnectionTimeout(), tracker.adaptTimeouts(fast, options).getConnectionTimeout());
+        for (int i = 0; i < tracker.getMinSamples(); i++) {
+            tracker.recordConnect(fast, 20 + i);
+            tracker.recordRead(fast, 2);
+            tracker.recordConnect(slow, 4_000);
+            tracker.recordRead(slow, 1_500);
+        }
+        var fastOptions = tracker.adaptTimeouts(fast, options);
+        // p99 is 39 ms, times 3 is below floor.
+        Assertions.assertEquals(tracker.getConnectTimeoutFloor(), fastOptions.getConnectionTimeout());
+        Assertions.assertEquals(tracker.getReadTimeoutFloor(), tracker.readTimeout(fast, options.getTimeout()));
+        // The read timeout also applies to the greeting and TLS handshake, it is not lowered.
+        Assertions.assertEquals(options.getTimeout(), fastOptions.getTimeout());
+        var slowOptions = tracker.adaptTimeouts(slow, options);
+        Assertions.assertEquals(12_000, slowOptions.getConnectionTimeout());
+        Assertions.assertEquals(4_500, tracker.readTimeout(slow, options.getTimeout()));
+        Assertions.assertEquals(options.getTimeout(), slowOptions.getTimeout());
+
+        // Timeouts increase the next timeout up to the ceiling, success resets.
+        tracker.recordTimeout(slow, true);
+        Assertions.assertEquals(tracker.getConnectTimeoutCeiling(), tracker.connectTimeout(slow, 3_000));
+        tracker.recordTimeout(slow, false);
+        Assertions.assertEquals(9_000, tracker.readTimeout(slow, 10_000));
+        tracker.recordTimeout(slow, false);
+        Assertions.assertEquals(18_000, tracker.adaptTimeouts(slow, options).getTimeout());
+        tracker.recordConnect(slow, 4_000);
+        Assertions.assertEquals(12_000, tracker.connectTimeout(slow, 3_000));
+    }
+
+    @Test
+    public void evictIdleHosts() {
+
+        var now = new AtomicLong(1_000L);
+        var tracker = new MxLatencyTracker(now::get);
+        tracker.setIdleMillis(1_000L);
+        tracker.recordConnect("relay.idle.example", 20);
+        tracker.recordConnect("relay.used.example", 20);
+        now.addAndGet(500L);
+        tracker.recordRead("relay.used.example", 2);
+        Assertions.assertEquals(2, tracker.size());
+
+        now.addAndGet(500L);
+        tracker.recordConnect("relay.new.example", 20);
+        Assertions.assertEquals(2, tracker.size());
+        Assertions.assertEquals(3_000, tracker.connectTimeout("relay.idle.example", 3_000));
+    }
+
+}
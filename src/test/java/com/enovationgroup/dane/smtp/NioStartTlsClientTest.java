@@ -0,0 +1,112 @@
+package com.enovationgroup.dane.smtp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLHandshakeException;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+public class NioStartTlsClientTest {
+
+    SmtpTestServer server;
+    NioStartTlsClient client;
+
+    @BeforeEach
+    public void start() {
+        server = new SmtpTestServer();
+        client = new NioStartTlsClient(2);
+    }
+
+    @AfterEach
+    public void stop() {
+        client.close();
+        server.close();
+    }
+
+    TransportOptions options() {
+
+        var options = new TransportOptions();
+        options.setPort(server.getPort());
+        return options;
+    }
+
+    @Test
+    @SneakyThrows
+    public void concurrentProbes() {
+
+        var record = ResourceUtil.loadRecord("certs-localhost/localhost.tlsa.json");
+        var futures = new ArrayList<CompletableFuture<StartTlsResult>>();
+        long start = System.nanoTime();
+        for (int i = 0; i < 200; i++) {
+            futures.add(client.probe(server.getHost(), List.of(record), options()));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+        log.info("200 NIO STARTTLS probes in {} ms.", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        var result = futures.get(0).get();
+        Assertions.assertEquals(server.getHost(), result.getMxHost());
+        Assertions.assertTrue(result.getGreeting().startsWith("220 "));
+        Assertions.assertNotNull(result.getProtocol());
+        Assertions.assertNotNull(result.getCipherSuite());
+        Assertions.assertEquals(200, server.getTlsHandshakes().get());
+
+        var trustAnchor = ResourceUtil.loadRecord("certs-localhost/localhost.2.tlsa.json");
+        Assertions.assertNotNull(client.probe(server.getHost(), List.of(trustAnchor), options()).get(10, TimeUnit.SECONDS).getProtocol());
+    }
+
+    @Test
+    public void daneMismatch() {
+
+        var record = ResourceUtil.loadRecord("certs-zorgmail-relay/relay.zorgmail.nl.tlsa.json");
+        var e = Assertions.assertThrows(ExecutionException.class, () -> client.probe(server.getHost(), List.of(record), options()).get(10, TimeUnit.SECONDS));
+        Assertions.assertTrue(e.getCause() instanceof SSLHandshakeException, e.getCause().toString());
+    }
+
+    @Test
+    public void serverFailures() {
+
+        var record = ResourceUtil.loadRecord("certs-localhost/localhost.tlsa.json");
+        server.setFailCommand("STARTTLS");
+        var e = Assertions.assertThrows(ExecutionException.class, () -> client.probe(server.getHost(), List.of(record), options()).get(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(454, SmtpReplies.replyCode(e.getCause()));
+
+        server.setFailCommand(null);
+        server.setRejectRate(1.0);
+        e = Assertions.assertThrows(ExecutionException.class, () -> client.probe(server.getHost(), List.of(record), options()).get(10, TimeUnit.SECONDS));
+        Assertions.assertTrue(SmtpReplies.isThrottled(e.getCause()), e.getCause().toString());
+
+        server.setRejectRate(0.0);
+        server.setGreetingDelayMillis(1_000L);
+        var options = options();
+        options.setTimeout(200);
+        e = Assertions.assertThrows(ExecutionException.class, () -> client.probe(server.getHost(), List.of(record), options).get(10, TimeUnit.SECONDS));
+        Assertions.assertTrue(e.getCause() instanceof SocketTimeoutException, e.getCause().toString());
+    }
+
+    @Test
+    public void takeReply() {
+
+        var buffer = ByteBuffer.allocate(256);
+        buffer.put("250-localhost\r\n250-8BITMIME\r\n".getBytes());
+        Assertions.assertNull(NioStartTlsClient.takeReply(buffer));
+        buffer.put("250 STARTTLS\r\n220 next".getBytes());
+        var reply = NioStartTlsClient.takeReply(buffer);
+        Assertions.assertEquals("250-localhost\r\n250-8BITMIME\r\n250 STARTTLS", reply);
+        Assertions.assertTrue(NioStartTlsClient.advertises(reply, "STARTTLS"));
+        Assertions.assertFalse(NioStartTlsClient.advertises(reply, "CHUNKING"));
+        Assertions.assertEquals(8, buffer.position());
+    }
+
+}
@@ -0,0 +1,123 @@
+package com.enovationgroup.dane.smtp;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+
+/**
+ * Runs connect + STARTTLS + DANE validation + NOOP + QUIT cycles
+ * with transports from a factory and measures handshake throughput and latency.
+ */
+@RequiredArgsConstructor
+public class SmtpLoadHarness {
+
+    private final Callable<SMTPTransport> transportFactory;
+
+    @SneakyThrows
+    public LoadResult run(int total, int concurrency) {
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        try {
+            var futures = new ArrayList<Future<Long>>(total);
+            long start = System.nanoTime();
+            for (int i = 0; i < total; i++) {
+                futures.add(executor.submit(this::handshake));
+            }
+            var latencies = new long[total];
+            int count = 0;
+            int failures = 0;
+            for (Future<Long> f : futures) {
+                long latency = f.get();
+                if (latency < 0L) {
+                    failures++;
+                } else {
+                    latencies[count++] = latency;
+                }
+            }
+            return new LoadResult(Arrays.copyOf(latencies, count), failures, System.nanoTime() - start);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return nanos for a full connection cycle, or -1 when the cycle failed.
+     */
+    long handshake() {
+
+        long start = System.nanoTime();
+        try {
+            var transport = transportFactory.call();
+            try {
+                transport.connect();
+                if (!transport.isConnected()) {
+                    return -1L;
+                }
+            } finally {
+                transport.close();
+            }
+        } catch (Exception e) {
+            return -1L;
+        }
+        return System.nanoTime() - start;
+    }
+
+    @Getter
+    public static class LoadResult {
+
+        private final long[] latencies;
+        private final int failures;
+        private final long elapsedNanos;
+
+        LoadResult(long[] latencies, int failures, long elapsedNanos) {
+            this.latencies = latencies;
+            Arrays.sort(this.latencies);
+            this.failures = failures;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getSuccesses() {
+            return latencies.length;
+        }
+
+        public double getHandshakesPerSecond() {
+            return latencies.length / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+
+        /**
+         * @param percentile 0.0 - 100.0
+         */
+        public double percentileMillis(double percentile) {
+
+            if (latencies.length == 0) {
+                return 0.0;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1_000_000.0;
+        }
+
+        public String summary() {
+
+            var percentiles = List.of(50.0, 90.0, 99.0);
+            var sb = new StringBuilder();
+            sb.append(String.format("%d handshakes (%d failed) in %d ms: %.1f handshakes/s",
+                    getSuccesses(), failures, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), getHandshakesPerSecond()));
+            for (double p : percentiles) {
+                sb.append(String.format(", p%.0f=%.2f ms", p, percentileMillis(p)));
+            }
+            return sb.toString();
+        }
+    }
+
+}
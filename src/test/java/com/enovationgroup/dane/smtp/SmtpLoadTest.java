@@ -0,0 +1,82 @@
+package com.enovationgroup.dane.smtp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * End-to-end connect + STARTTLS + DANE validation against the in-process {@link SmtpTestServer}.
+ */
+@Slf4j
+public class SmtpLoadTest {
+
+    SmtpTestServer server;
+
+    @BeforeEach
+    public void startServer() {
+        server = new SmtpTestServer();
+    }
+
+    @AfterEach
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void daneEeThroughput() {
+
+        var record = ResourceUtil.loadRecord("certs-localhost/localhost.tlsa.json");
+        var harness = new SmtpLoadHarness(() -> TransportFactory.buildTransport(server.getHost(), server.getPort(), List.of(record), false));
+        var result = harness.run(100, 8);
+        log.info("DANE_EE: {}", result.summary());
+        Assertions.assertEquals(0, result.getFailures());
+        Assertions.assertEquals(100, server.getTlsHandshakes().get());
+    }
+
+    @Test
+    public void daneTaThroughput() {
+
+        var record = ResourceUtil.loadRecord("certs-localhost/localhost.2.tlsa.json");
+        var harness = new SmtpLoadHarness(() -> TransportFactory.buildTransport(server.getHost(), server.getPort(), List.of(record), false));
+        var result = harness.run(100, 4);
+        log.info("DANE_TA: {}", result.summary());
+        Assertions.assertEquals(0, result.getFailures());
+    }
+
+    @Test
+    public void daneMismatchFails() {
+
+        var record = ResourceUtil.loadRecord("certs-zorgmail-relay/relay.zorgmail.nl.tlsa.json");
+        var harness = new SmtpLoadHarness(() -> TransportFactory.buildTransport(server.getHost(), server.getPort(), List.of(record), false));
+        var result = harness.run(10, 2);
+        Assertions.assertEquals(10, result.getFailures());
+    }
+
+    @Test
+    public void serverFailures() {
+
+        var record = ResourceUtil.loadRecord("certs-localhost/localhost.tlsa.json");
+        var harness = new SmtpLoadHarness(() -> TransportFactory.buildTransport(server.getHost(), server.getPort(), List.of(record), false));
+        server.setFailCommand("STARTTLS");
+        var result = harness.run(10, 2);
+        Assertions.assertEquals(10, result.getFailures());
+
+        server.setFailCommand(null);
+        server.setRejectRate(1.0);
+        result = harness.run(10, 2);
+        Assertions.assertEquals(10, result.getFailures());
+
+        server.setRejectRate(0.0);
+        server.setReplyDelayMillis(20);
+        result = harness.run(10, 2);
+        log.info("Delayed replies: {}", result.summary());
+        Assertions.assertEquals(0, result.getFailures());
+        Assertions.assertTrue(result.percentileMillis(50) >= 20.0);
+    }
+
+}
@@ -0,0 +1,301 @@
+package com.enovationgroup.dane.smtp;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * In-process SMTP server supporting EHLO, STARTTLS, NOOP, MAIL, RCPT, DATA, BDAT (when chunking is enabled), RSET and QUIT.
+ * <br>Presents the certificate chain from <tt>certs-localhost/localhost.p12</tt>
+ * (<tt>0-localhost.crt</tt> signed by <tt>1-ca.crt</tt>), matching TLSA records are in the same directory.
+ * <br>Response delays and failures can be configured to simulate slow or failing mail servers.
+ */
+@Slf4j
+public class SmtpTestServer implements AutoCloseable {
+
+    public static final String KEYSTORE = "certs-localhost/localhost.p12";
+    public static final String KEYSTORE_PASSWORD = "changeit";
+
+    /** Delay before sending the 220 greeting. */
+    @Setter
+    private volatile long greetingDelayMillis;
+    /** Delay before each command reply. */
+    @Setter
+    private volatile long replyDelayMillis;
+    /** Chance (0.0 - 1.0) that a connection is rejected with a 421 greeting. */
+    @Setter
+    private volatile double rejectRate;
+    /** When set, the command (e.g. "STARTTLS" or "MAIL") is answered with {@link #failReply}. */
+    @Setter
+    private volatile String failCommand;
+    @Setter
+    private volatile String failReply = "454 4.7.0 TLS not available";
+    /** Advertise CHUNKING (BDAT) after STARTTLS. */
+    @Setter
+    private volatile boolean chunking;
+
+    @Getter
+    private final AtomicInteger connections = new AtomicInteger();
+    @Getter
+    private final AtomicInteger tlsHandshakes = new AtomicInteger();
+    /** Remote (client) address of each accepted connection. */
+    @Getter
+    private final List<String> clientAddresses = new CopyOnWriteArrayList<>();
+    /** Message data received via DATA (without the dot-stuffing) or BDAT. */
+    @Getter
+    private final List<byte[]> messages = new CopyOnWriteArrayList<>();
+    @Getter
+    private final AtomicInteger bdatChunks = new AtomicInteger();
+
+    private final SSLSocketFactory sslSocketFactory;
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private volatile boolean stopped;
+
+    public SmtpTestServer() {
+        this(createSslContext().getSocketFactory());
+    }
+
+    @SneakyThrows
+    public SmtpTestServer(SSLSocketFactory sslSocketFactory) {
+
+        this.sslSocketFactory = sslSocketFactory;
+        this.serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        executor.execute(this::acceptLoop);
+        log.debug("SMTP test server listening on {}:{}", getHost(), getPort());
+    }
+
+    @SneakyThrows
+    public static SSLContext createSslContext() {
+
+        var keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(ResourceUtil.openResource(KEYSTORE), KEYSTORE_PASSWORD.toCharArray());
+        var kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, KEYSTORE_PASSWORD.toCharArray());
+        var sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(kmf.getKeyManagers(), null, null);
+        return sslContext;
+    }
+
+    public String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    @SneakyThrows
+    public void close() {
+
+        stopped = true;
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    void acceptLoop() {
+
+        while (!stopped) {
+            try {
+                var socket = serverSocket.accept();
+                connections.incrementAndGet();
+                clientAddresses.add(socket.getInetAddress().getHostAddress());
+                executor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!stopped) {
+                    log.warn("SMTP test server accept failed: {}", e.toString());
+                }
+            }
+        }
+    }
+
+    void serve(Socket socket) {
+
+        try (var s = socket) {
+            new Session(s).run();
+        } catch (Exception e) {
+            if (!stopped) {
+                log.debug("SMTP test server session ended: {}", e.toString());
+            }
+        }
+    }
+
+    static void sleep(long millis) throws InterruptedException {
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    class Session {
+
+        Socket socket;
+        InputStream in;
+        OutputStream out;
+        boolean tls;
+        ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+
+        Session(Socket socket) throws IOException {
+            setSocket(socket);
+        }
+
+        void setSocket(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = socket.getOutputStream();
+        }
+
+        void run() throws Exception {
+
+            sleep(greetingDelayMillis);
+            if (rejectRate > 0.0 && ThreadLocalRandom.current().nextDouble() < rejectRate) {
+                reply("421 4.7.0 Too many connections, try again later");
+                return;
+            }
+            reply("220 localhost ESMTP test server");
+            String line;
+            while ((line = readLine()) != null) {
+                var command = (line.length() < 4 ? line : line.substring(0, 4)).toUpperCase(Locale.US);
+                sleep(replyDelayMillis);
+                if (failCommand != null && line.toUpperCase(Locale.US).startsWith(failCommand)) {
+                    reply(failReply);
+                    continue;
+                }
+                switch (command) {
+                case "EHLO":
+                    reply(tls ? "250-localhost\r\n250-8BITMIME\r\n" + (chunking ? "250-CHUNKING\r\n" : "") + "250 PIPELINING"
+                            : "250-localhost\r\n250-8BITMIME\r\n250-PIPELINING\r\n250 STARTTLS");
+                    break;
+                case "HELO":
+                    reply("250 localhost");
+                    break;
+                case "STAR":
+                    if (tls) {
+                        reply("503 5.5.1 TLS already active");
+                    } else {
+                        reply("220 2.0.0 Ready to start TLS");
+                        startTls();
+                    }
+                    break;
+                case "RSET":
+                    chunks.reset();
+                    reply("250 2.0.0 OK");
+                    break;
+                case "NOOP":
+                case "MAIL":
+                case "RCPT":
+                    reply("250 2.0.0 OK");
+                    break;
+                case "DATA":
+                    reply("354 End data with <CR><LF>.<CR><LF>");
+                    messages.add(readData());
+                    reply("250 2.0.0 OK queued");
+                    break;
+                case "BDAT":
+                    var args = line.split(" ");
+                    int size = Integer.parseInt(args[1]);
+                    chunks.write(in.readNBytes(size));
+                    bdatChunks.incrementAndGet();
+                    if (args.length > 2 && "LAST".equalsIgnoreCase(args[2])) {
+                        messages.add(chunks.toByteArray());
+                        chunks.reset();
+                        reply("250 2.0.0 OK queued");
+                    } else {
+                        reply("250 2.0.0 " + size + " octets received");
+                    }
+                    break;
+                case "QUIT":
+                    reply("221 2.0.0 Bye");
+                    return;
+                default:
+                    reply("500 5.5.2 Command not recognized");
+                }
+            }
+        }
+
+        void startTls() throws IOException {
+
+            var sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+            sslSocket.setUseClientMode(false);
+            sslSocket.startHandshake();
+            tlsHandshakes.incrementAndGet();
+            setSocket(sslSocket);
+            tls = true;
+        }
+
+        void reply(String reply) throws IOException {
+            out.write((reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+
+        /**
+         * Returns line without line-ending, or null at end of stream.
+         */
+        String readLine() throws IOException {
+
+            var line = readLineBytes();
+            return (line == null ? null : new String(line, StandardCharsets.US_ASCII));
+        }
+
+        byte[] readLineBytes() throws IOException {
+
+            var bout = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b == '\n') {
+                    var line = bout.toByteArray();
+                    int length = line.length;
+                    if (length > 0 && line[length - 1] == '\r') {
+                        length--;
+                    }
+                    bout.reset();
+                    bout.write(line, 0, length);
+                    return bout.toByteArray();
+                }
+                bout.write(b);
+            }
+            return null;
+        }
+
+        byte[] readData() throws IOException {
+
+            var data = new ByteArrayOutputStream();
+            byte[] line;
+            while ((line = readLineBytes()) != null) {
+                if (line.length == 1 && line[0] == '.') {
+                    break;
+                }
+                int offset = (line.length > 0 && line[0] == '.' ? 1 : 0);
+                data.write(line, offset, line.length - offset);
+                data.write('\r');
+                data.write('\n');
+            }
+            return data.toByteArray();
+        }
+    }
+
+}
@@ -0,0 +1,285 @@
+package com.enovationgroup.dane.spool;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import lombok.SneakyThrows;
+
+public class OutboundSpoolTest {
+
+    @TempDir
+    Path tempDir;
+
+    final AtomicLong clock = new AtomicLong(1_000_000L);
+
+    @Test
+    @SneakyThrows
+    public void claimByDomain() {
+
+        try (var spool = newSpool(64 * 1024)) {
+            long first = spool.enqueue("Example.com", "a@sender.nl", List.of("b@example.com"), message("one")).get();
+            spool.enqueue("other.nl", "a@sender.nl", List.of("c@other.nl"), message("two")).get();
+            spool.enqueue("example.com", "a@sender.nl", List.of("d@example.com", "e@example.com"), message("three")).get();
+            Assertions.assertEquals(3, spool.size());
+            Assertions.assertEquals(List.of("example.com", "other.nl"), spool.getReadyDomains());
+
+            var claimed = spool.claim(10);
+            Assertions.assertEquals(2, claimed.size());
+            var message = claimed.get(0);
+            Assertions.assertEquals(first, message.getId());
+            Assertions.assertEquals("example.com", message.getDomain());
+            Assertions.assertEquals("a@sender.nl", message.getSender());
+            Assertions.assertEquals(List.of("b@example.com"), message.getRecipients());
+            Assertions.assertEquals(clock.get(), message.getEnqueuedMillis());
+            Assertions.assertEquals("one", text(message));
+            Assertions.assertTrue(message.getPayload().isReadOnly());
+            Assertions.assertEquals(List.of("d@example.com", "e@example.com"), claimed.get(1).getRecipients());
+
+            Assertions.assertTrue(spool.claim("example.com", 10).isEmpty());
+            var other = spool.claim(1, 100L, TimeUnit.MILLISECONDS);
+            Assertions.assertEquals("two", text(other.get(0)));
+            Assertions.assertTrue(spool.claim(1, 10L, TimeUnit.MILLISECONDS).isEmpty());
+
+            spool.delivered(message).get();
+            spool.delivered(claimed.get(1)).get();
+            spool.failed(other.get(0)).get();
+            Assertions.assertEquals(0, spool.size());
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void recoverAfterRestart() {
+
+        var file = tempDir.resolve("message.eml");
+        Files.write(file, "Subject: file\r\n\r\nfrom file\r\n".getBytes(StandardCharsets.US_ASCII));
+        var spoolDir = tempDir.resolve("spool");
+        long delivered;
+        try (var spool = new OutboundSpool(spoolDir, 64 * 1024, clock::get)) {
+            delivered = spool.enqueue("example.com", "a@sender.nl", List.of("b@example.com"), message("delivered")).get();
+            spool.enqueue("example.com", "a@sender.nl", List.of("b@example.com"), message("claimed")).get();
+            spool.enqueue("example.com", "", List.of("b@example.com"), file).get();
+            spool.enqueue("other.nl", "a@sender.nl", List.of("c@other.nl"), message("retry")).get();
+            var claimed = spool.claim("example.com", 2);
+            spool.delivered(claimed.get(0)).get();
+            Assertions.assertTrue(spool.retry(spool.claim("other.nl", 1).get(0)).get());
+        }
+        // Partially written record at the end of the segment.
+        try (var channel = FileChannel.open(segments(spoolDir).get(0), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0L, channel.size());
+            int offset = OutboundSpool.SEGMENT_HEADER_SIZE;
+            while (buffer.getInt(offset) != 0) {
+                offset += OutboundSpool.RECORD_HEADER_SIZE + buffer.getInt(offset + 4);
+            }
+            buffer.position(offset);
+            buffer.putInt(OutboundSpool.DONE).putInt(8).putInt(0).putLong(1L);
+        }
+        try (var spool = new OutboundSpool(spoolDir, 64 * 1024, clock::get)) {
+            Assertions.assertEquals(3, spool.size());
+            // The claimed message was not completed.
+            var claimed = spool.claim("example.com", 10);
+            Assertions.assertEquals(List.of("claimed", "Subject: file\r\n\r\nfrom file\r\n"),
+                    claimed.stream().map(OutboundSpoolTest::text).collect(Collectors.toList()));
+            Assertions.assertEquals("", claimed.get(1).getSender());
+            Assertions.assertTrue(spool.getReadyDomains().isEmpty());
+            clock.addAndGet(spool.getRetryInitialDelayMillis());
+            var retried = spool.claim(10);
+            Assertions.assertEquals(1, retried.get(0).getAttempts());
+            Assertions.assertEquals("retry", text(retried.get(0)));
+            // New ids do not reuse old ids.
+            Assertions.assertTrue(spool.enqueue("example.com", "a@sender.nl", List.of("b@example.com"), message("new")).get() > delivered + 3);
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void retryBackoff() {
+
+        try (var spool = newSpool(64 * 1024)) {
+            spool.setMaxAttempts(4);
+            spool.enqueue("example.com", "a@sender.nl", List.of("b@example.com"), message("retry")).get();
+            var message = spool.claim(1).get(0);
+            for (int attempt = 1; attempt < 4; attempt++) {
+                Assertions.assertTrue(spool.retry(message).get());
+                Assertions.assertTrue(spool.claim(1).isEmpty());
+                clock.addAndGet(spool.getRetryInitialDelayMillis() * (1L << (attempt - 1)) - 1L);
+                Assertions.assertTrue(spool.claim(1).isEmpty());
+                clock.incrementAndGet();
+                message = spool.claim(1).get(0);
+                Assertions.assertEquals(attempt, message.getAttempts());
+            }
+            Assertions.assertFalse(spool.retry(message).get());
+            Assertions.assertEquals(0, spool.size());
+
+            Assertions.assertEquals(spool.getRetryMaxDelayMillis(), spool.backoffMillis(7));
+            Assertions.assertEquals(spool.getRetryMaxDelayMillis(), spool.backoffMillis(100));
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void completeClaimedOnly() {
+
+        try (var spool = newSpool(64 * 1024)) {
+            spool.enqueue("example.com", "a@sender.nl", List.of("b@example.com"), message("one")).get();
+            spool.enqueue("example.com", "a@sender.nl", List.of("b@example.com"), message("two")).get();
+            var claimed = spool.claim(10);
+            spool.delivered(claimed.get(0)).get();
+            assertNotClaimed(spool.delivered(claimed.get(0)));
+            assertNotClaimed(spool.failed(claimed.get(0)));
+
+            Assertions.assertTrue(spool.retry(claimed.get(1)).get());
+            assertNotClaimed(spool.retry(claimed.get(1)));
+            assertNotClaimed(spool.delivered(claimed.get(1)));
+            Assertions.assertEquals(1, spool.size());
+            clock.addAndGet(spool.getRetryInitialDelayMillis());
+            var retried = spool.claim(10);
+            Assertions.assertEquals(1, retried.size());
+            spool.delivered(retried.get(0)).get();
+            Assertions.assertEquals(0, spool.size());
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void claimLease() {
+
+        try (var spool = newSpool(64 * 1024)) {
+            spool.setClaimTimeoutMillis(1000L);
+            long id = spool.enqueue("example.com", "a@sender.nl", List.of("b@example.com"), message("one")).get();
+            var first = spool.claim(10).get(0);
+            clock.addAndGet(999L);
+            Assertions.assertTrue(spool.claim(10).isEmpty());
+            clock.incrementAndGet();
+            // Claim expired, the message is ready again.
+            var second = spool.claim(10).get(0);
+            Assertions.assertEquals(id, second.getId());
+            assertNotClaimed(spool.delivered(first));
+            spool.delivered(second).get();
+            Assertions.assertEquals(0, spool.size());
+
+            spool.enqueue("example.com", "a@sender.nl", List.of("b@example.com"), message("two")).get();
+            var late = spool.claim(10).get(0);
+            clock.addAndGet(1000L);
+            Assertions.assertEquals(List.of("example.com"), spool.getReadyDomains());
+            // Expired, but not claimed again: the claim can still complete the message.
+            spool.delivered(late).get();
+            Assertions.assertTrue(spool.getReadyDomains().isEmpty());
+            Assertions.assertTrue(spool.claim(10).isEmpty());
+            Assertions.assertEquals(0, spool.size());
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void groupCommit() {
+
+        try (var spool = newSpool(1024 * 1024)) {
+            var futures = new ArrayList<CompletableFuture<Long>>();
+            var threads = new ArrayList<Thread>();
+            for (int t = 0; t < 4; t++) {
+                var domain = "domain" + t + ".nl";
+                var thread = new Thread(() -> {
+                    for (int i = 0; i < 250; i++) {
+                        var future = spool.enqueue(domain, "a@sender.nl", List.of("b@" + domain), message("message " + i));
+                        synchronized (futures) {
+                            futures.add(future);
+                        }
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (var thread : threads) {
+                thread.join();
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30L, TimeUnit.SECONDS);
+            Assertions.assertEquals(1000, spool.size());
+            Assertions.assertEquals(1000, futures.stream().map(CompletableFuture::join).distinct().count());
+            Assertions.assertEquals(4, spool.getReadyDomains().size());
+            var claimed = spool.claim("domain2.nl", 1000);
+            Assertions.assertEquals(250, claimed.size());
+            // Order of enqueue per domain.
+            Assertions.assertEquals("message 0", text(claimed.get(0)));
+            Assertions.assertEquals("message 249", text(claimed.get(249)));
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void deleteDoneSegments() {
+
+        var large = new byte[3000];
+        try (var spool = newSpool(4096)) {
+            var ids = new ArrayList<Long>();
+            for (int i = 0; i < 3; i++) {
+                ids.add(spool.enqueue("example.com", "a@sender.nl", List.of("b@example.com"), ByteBuffer.wrap(large)).get());
+            }
+            // A message larger than the segment size.
+            spool.enqueue("example.com", "a@sender.nl", List.of("b@example.com"), ByteBuffer.wrap(new byte[10_000])).get();
+            Assertions.assertEquals(4, spool.getSegmentCount());
+            var claimed = spool.claim(10);
+            Assertions.assertEquals(10_000, claimed.get(3).getPayload().remaining());
+
+            // Only the oldest segments can be deleted.
+            // The last segment is full, done records go to a new segment.
+            spool.delivered(claimed.get(1)).get();
+            Assertions.assertEquals(5, spool.getSegmentCount());
+            spool.delivered(claimed.get(0)).get();
+            Assertions.assertEquals(3, spool.getSegmentCount());
+            Assertions.assertEquals(3, segments(tempDir).size());
+            spool.delivered(claimed.get(3)).get();
+            spool.delivered(claimed.get(2)).get();
+            // The current segment remains.
+            Assertions.assertEquals(1, spool.getSegmentCount());
+        }
+        try (var spool = newSpool(4096)) {
+            Assertions.assertEquals(0, spool.size());
+            Assertions.assertEquals(0, spool.getSegmentCount());
+            Assertions.assertTrue(segments(tempDir).isEmpty());
+        }
+    }
+
+    OutboundSpool newSpool(int segmentSize) throws Exception {
+        return new OutboundSpool(tempDir, segmentSize, clock::get);
+    }
+
+    static void assertNotClaimed(CompletableFuture<?> future) {
+
+        var e = Assertions.assertThrows(ExecutionException.class, future::get);
+        Assertions.assertTrue(e.getCause() instanceof IllegalStateException, e.getCause().toString());
+    }
+
+    static ByteBuffer message(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    static String text(SpoolMessage message) {
+        return StandardCharsets.US_ASCII.decode(message.getPayload()).toString();
+    }
+
+    @SneakyThrows
+    static List<Path> segments(Path dir) {
+
+        try (Stream<Path> list = Files.list(dir)) {
+            return list.filter(f -> OutboundSpool.segmentSequence(f) > 0L).sorted().collect(Collectors.toList());
+        }
+    }
+
+}